@@ -1,43 +1,48 @@
 package org.uwdigi.rag.config;
 
-import static dev.langchain4j.internal.ValidationUtils.ensureNotNull;
-
-import dev.langchain4j.data.document.Document;
-import dev.langchain4j.data.document.Metadata;
-import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
-import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
-import dev.langchain4j.model.localai.LocalAiChatModel;
-import dev.langchain4j.model.ollama.OllamaChatModel;
-import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.sql.DataSource;
-import org.apache.commons.dbcp.BasicDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.data.jdbc.core.mapping.JdbcMappingContext;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.uwdigi.rag.service.BatchingEmbeddingModel;
+import org.uwdigi.rag.service.Bulkheads;
+import org.uwdigi.rag.service.CachingEmbeddingModel;
+import org.uwdigi.rag.service.HnswEmbeddingStore;
+import org.uwdigi.rag.service.LexicalIndex;
+import org.uwdigi.rag.service.ListablePgVectorEmbeddingStore;
+import org.uwdigi.rag.service.ModelFactory;
+import org.uwdigi.rag.service.PooledDataSource;
+import org.uwdigi.rag.service.QueryCostGate;
+import org.uwdigi.rag.service.QueryGovernor;
+import org.uwdigi.rag.service.SchemaCatalog;
+import org.uwdigi.rag.service.SchemaSelector;
 import org.uwdigi.rag.service.SqlDatabaseContentRetriever;
+import org.uwdigi.rag.service.SqlQueryCache;
+import org.uwdigi.rag.service.SqlQueryParser;
+import org.uwdigi.rag.service.SqlResultCache;
+import org.uwdigi.rag.service.SqlResultReader;
+import org.uwdigi.rag.service.VectorSnapshot;
 import org.uwdigi.rag.shared.Assistant;
 
 @Configuration
@@ -54,24 +59,6 @@ public class AppConfig {
   @Value("${spring.datasource.password}")
   private String dbPassword;
 
-  @Value("${app.gemini.api-key}")
-  private String geminiApiKey;
-
-  @Value("${app.openai.api-key}")
-  private String openaiApiKey;
-
-  @Value("${app.ollama.base-url}")
-  private String ollamaBaseUrl;
-
-  @Value("${app.ollama.model-name}")
-  private String ollamaModelName;
-
-  @Value("${app.local-ai.base-url}")
-  private String localAiBaseUrl;
-
-  @Value("${app.local-ai.model-name}")
-  private String localAiModelName;
-
   @Value("${app.chatWindow.memory}")
   private int maxWindowChatMemory;
 
@@ -96,9 +83,75 @@ public class AppConfig {
   @Value("${app.pgvector.table}")
   private String pgVectorTable;
 
+  @Value("${app.embedding-store.in-memory:false}")
+  private boolean inMemoryEmbeddingStore;
+
+  @Value("${app.embedding-store.hnsw.m:16}")
+  private int hnswM;
+
+  @Value("${app.embedding-store.hnsw.ef-construction:100}")
+  private int hnswEfConstruction;
+
+  @Value("${app.embedding-store.hnsw.ef-search:64}")
+  private int hnswEfSearch;
+
+  @Value("${app.embedding-cache.max-entries:10000}")
+  private int embeddingCacheMaxEntries;
+
+  @Value("${app.embedding-batch.max-size:32}")
+  private int embeddingBatchMaxSize;
+
+  @Value("${app.embedding-batch.max-delay:PT0.002S}")
+  private Duration embeddingBatchMaxDelay;
+
+  @Value("${app.embedding-batch.workers:2}")
+  private int embeddingBatchWorkers;
+
+  @Value("${app.embedding-model.threads:0}")
+  private int embeddingModelThreads;
+
   @Value("${spring.datasource.type}")
   private String datasourceType;
 
+  @Value("${app.datasource.pool.max-total:25}")
+  private int poolMaxTotal;
+
+  @Value("${app.datasource.pool.max-idle:8}")
+  private int poolMaxIdle;
+
+  @Value("${app.datasource.pool.min-idle:1}")
+  private int poolMinIdle;
+
+  @Value("${app.datasource.pool.max-wait:PT30S}")
+  private Duration poolMaxWait;
+
+  @Value("${app.datasource.pool.test-on-borrow:true}")
+  private boolean poolTestOnBorrow;
+
+  @Value("${app.datasource.pool.validation-timeout:PT5S}")
+  private Duration poolValidationTimeout;
+
+  @Value("${app.datasource.pool.eviction-interval:PT1M}")
+  private Duration poolEvictionInterval;
+
+  @Value("${app.datasource.pool.min-evictable-idle:PT5M}")
+  private Duration poolMinEvictableIdle;
+
+  @Value("${app.datasource.pool.max-lifetime:PT30M}")
+  private Duration poolMaxLifetime;
+
+  @Value("${app.datasource.pool.max-open-prepared-statements:50}")
+  private int poolMaxOpenPreparedStatements;
+
+  @Value("${app.bulkhead.jdbc:16}")
+  private int bulkheadJdbc;
+
+  @Value("${app.ingestion.read-threads:4}")
+  private int ingestionReadThreads;
+
+  @Value("${app.db.schema.introspection-threads:4}")
+  private int introspectionThreads;
+
   private final FhirDbConfig fhirDbConfig;
 
   public AppConfig(FhirDbConfig fhirDbConfig) {
@@ -111,15 +164,42 @@ public class AppConfig {
   }
 
   @Bean
-  public DataSource dataSource() {
+  public PooledDataSource dataSource() {
     try {
       log.info("Initializing DataSource with URL: {}", dbUrl);
 
-      BasicDataSource defaultDataSource = new BasicDataSource();
-      defaultDataSource.setUrl(dbUrl);
-      defaultDataSource.setUsername(dbUser);
-      defaultDataSource.setPassword(dbPassword);
-      defaultDataSource.setDriverClassName(determineDriverClassNameFromUrl(dbUrl));
+      PooledDataSource defaultDataSource =
+          new PooledDataSource(dbUrl, dbUser, dbPassword, determineDriverClassNameFromUrl(dbUrl));
+      defaultDataSource.setMaxTotal(poolMaxTotal);
+      defaultDataSource.setMaxIdle(poolMaxIdle);
+      defaultDataSource.setMinIdle(poolMinIdle);
+      defaultDataSource.setMaxWaitMillis(poolMaxWait.toMillis());
+      // Connections are checked when borrowed and while idle, so that a restarted database or a
+      // session closed by a firewall does not fail the next query
+      defaultDataSource.setTestOnBorrow(poolTestOnBorrow);
+      defaultDataSource.setTestWhileIdle(true);
+      defaultDataSource.setValidationQueryTimeout((int) poolValidationTimeout.toSeconds());
+      defaultDataSource.setTimeBetweenEvictionRunsMillis(poolEvictionInterval.toMillis());
+      defaultDataSource.setMinEvictableIdleTimeMillis(poolMinEvictableIdle.toMillis());
+      defaultDataSource.setMaxConnLifetimeMillis(poolMaxLifetime.toMillis());
+      defaultDataSource.setPoolPreparedStatements(poolMaxOpenPreparedStatements > 0);
+      defaultDataSource.setMaxOpenPreparedStatements(poolMaxOpenPreparedStatements);
+
+      // Chat queries, ingestion readers, and the schema poll with its introspection workers may all
+      // hold a connection at once; with fewer, ingestion and polls wait behind chat queries
+      int connectionsNeeded = bulkheadJdbc + ingestionReadThreads + introspectionThreads + 1;
+      if (poolMaxTotal > 0 && (bulkheadJdbc <= 0 || poolMaxTotal < connectionsNeeded)) {
+        log.warn(
+            "app.datasource.pool.max-total={} is below the {} connections that app.bulkhead.jdbc={},"
+                + " app.ingestion.read-threads={} and app.db.schema.introspection-threads={} may"
+                + " use at once; background work may wait up to {} for a connection",
+            poolMaxTotal,
+            bulkheadJdbc <= 0 ? "unbounded" : String.valueOf(connectionsNeeded),
+            bulkheadJdbc,
+            ingestionReadThreads,
+            introspectionThreads,
+            poolMaxWait);
+      }
 
       return defaultDataSource;
     } catch (Exception e) {
@@ -144,103 +224,97 @@ public class AppConfig {
   }
 
   @Bean
-  public ChatLanguageModel geminiChatModel() {
-    log.info("Initializing Gemini Chat Model...");
-    try {
-      ChatLanguageModel model =
-          GoogleAiGeminiChatModel.builder()
-              .apiKey(geminiApiKey)
-              .modelName("gemini-2.0-flash")
-              .logRequestsAndResponses(true)
-              .build();
-      log.info("Gemini Chat Model initialized successfully.");
-      return model;
-    } catch (Exception e) {
-      log.error("Failed to initialize Gemini Chat Model: {}", e.getMessage(), e);
-      throw new ModelInitializationException("Gemini Chat Model initialization failed", e);
-    }
+  public ChatLanguageModel geminiChatModel(ModelFactory modelFactory) {
+    return modelFactory.getModel("GEMINI");
   }
 
   @Bean(name = "openaiChatLanguageModel")
-  public ChatLanguageModel openAiChatModel() {
-    log.info("Initializing OpenAI Chat Model...");
-    try {
-      ChatLanguageModel model =
-          OpenAiChatModel.builder()
-              .apiKey(openaiApiKey)
-              .modelName("GPT_4_O_MINI")
-              .logRequests(true)
-              .logResponses(true)
-              .build();
-      log.info("OpenAI Chat Model initialized successfully.");
-      return model;
-    } catch (Exception e) {
-      log.error("Failed to initialize OpenAI Chat Model: {}", e.getMessage(), e);
-      throw new ModelInitializationException("OpenAI Chat Model initialization failed", e);
-    }
+  public ChatLanguageModel openAiChatModel(ModelFactory modelFactory) {
+    return modelFactory.getModel("OPENAI");
   }
 
   @Bean(name = "ollamaChatLanguageModel")
-  public ChatLanguageModel ollamaChatModel() {
-    log.info("Initializing Ollama Chat Model...");
-    try {
-      ChatLanguageModel model =
-          OllamaChatModel.builder()
-              .baseUrl(ollamaBaseUrl)
-              .modelName(ollamaModelName)
-              .logRequests(true)
-              .logResponses(true)
-              .timeout(Duration.ofMinutes(5))
-              .build();
-      log.info("Ollama Chat Model initialized successfully.");
-      return model;
-    } catch (Exception e) {
-      log.error("Failed to initialize Ollama Chat Model: {}", e.getMessage(), e);
-      throw new ModelInitializationException("Ollama Chat Model initialization failed", e);
-    }
+  public ChatLanguageModel ollamaChatModel(ModelFactory modelFactory) {
+    return modelFactory.getModel("OLLAMA");
   }
 
   @Bean
-  public ChatLanguageModel localAiChatModel() {
-    log.info("Initializing Local AI Chat Model...");
-    try {
-      ChatLanguageModel model =
-          LocalAiChatModel.builder()
-              .baseUrl(localAiBaseUrl)
-              .modelName(localAiModelName)
-              .logRequests(true)
-              .logResponses(true)
-              .temperature(0.0)
-              .timeout(Duration.ofMinutes(5))
-              .build();
-      log.info("Local AI Chat Model initialized successfully.");
-      return model;
-    } catch (Exception e) {
-      log.error("Failed to initialize Local AI Chat Model: {}", e.getMessage(), e);
-      throw new ModelInitializationException("Local AI Chat Model initialization failed", e);
-    }
+  public StreamingChatLanguageModel ollamaStreamingChatModel(ModelFactory modelFactory) {
+    return modelFactory.getOllamaStreamingModel();
+  }
+
+  @Bean
+  public ChatLanguageModel localAiChatModel(ModelFactory modelFactory) {
+    return modelFactory.getModel("LOCAL_AI");
+  }
+
+  /**
+   * The in-process model, which splits the texts of each call across {@code
+   * app.embedding-model.threads} threads (one per processor if 0) shared by every caller; idle
+   * threads exit after a minute.
+   */
+  @Bean(name = "onnxEmbeddingModel")
+  public EmbeddingModel onnxEmbeddingModel() {
+    int threads =
+        embeddingModelThreads > 0
+            ? embeddingModelThreads
+            : Runtime.getRuntime().availableProcessors();
+    log.info("Initializing Embedding Model with {} threads...", threads);
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            1,
+            TimeUnit.MINUTES,
+            new LinkedBlockingQueue<>(),
+            Thread.ofPlatform().name("onnx-embedding-", 0).daemon().factory());
+    executor.allowCoreThreadTimeOut(true);
+    return new AllMiniLmL6V2EmbeddingModel(executor);
   }
 
+  /** Gathers the embedding calls of concurrent requests into batches. */
   @Bean
-  public EmbeddingModel embeddingModel() {
-    log.info("Initializing Embedding Model...");
-    EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
-    return embeddingModel;
+  public BatchingEmbeddingModel batchingEmbeddingModel(
+      @Qualifier("onnxEmbeddingModel") EmbeddingModel onnxEmbeddingModel) {
+    return new BatchingEmbeddingModel(
+        onnxEmbeddingModel, embeddingBatchMaxSize, embeddingBatchMaxDelay, embeddingBatchWorkers);
   }
 
+  /**
+   * The model used on the request path; ingestion, which batches on its own, and the table index of
+   * the {@link SchemaSelector} use the uncached {@code onnxEmbeddingModel}.
+   */
   @Bean
-  public EmbeddingStore<TextSegment> embeddingStore(EmbeddingModel embeddingModel) {
+  @Primary
+  public CachingEmbeddingModel embeddingModel(BatchingEmbeddingModel batchingEmbeddingModel) {
+    return new CachingEmbeddingModel(batchingEmbeddingModel, embeddingCacheMaxEntries);
+  }
+
+  @Bean
+  public EmbeddingStore<TextSegment> embeddingStore(
+      EmbeddingModel embeddingModel, VectorSnapshot vectorSnapshot) {
     log.info("Initializing Embedding Store...");
-    EmbeddingStore<TextSegment> embeddingStore =
-        PgVectorEmbeddingStore.builder()
-            .host(pgVectorHost)
-            .port(pgVectorPort)
-            .database(pgVectorDatabase)
-            .user(pgVectorUser)
-            .password(pgVectorPassword)
-            .table(pgVectorTable)
-            .dimension(embeddingModel.dimension())
-            .build();
+    ListablePgVectorEmbeddingStore embeddingStore =
+        new ListablePgVectorEmbeddingStore(
+            pgVectorHost,
+            pgVectorPort,
+            pgVectorUser,
+            pgVectorPassword,
+            pgVectorDatabase,
+            pgVectorTable,
+            embeddingModel.dimension());
+    if (inMemoryEmbeddingStore) {
+      // Lookups are served from memory; pgvector stays the durable copy
+      log.info("Serving embedding searches from an in-memory HNSW index");
+      HnswEmbeddingStore hnswEmbeddingStore =
+          new HnswEmbeddingStore(hnswM, hnswEfConstruction, hnswEfSearch, embeddingStore);
+      // Values already in the snapshot or in pgvector are not embedded again by the ingestion
+      if (!vectorSnapshot.restore(hnswEmbeddingStore)) {
+        int rows = embeddingStore.loadInto(hnswEmbeddingStore);
+        log.info("Loaded {} embeddings from pgvector into the in-memory index", rows);
+      }
+      return hnswEmbeddingStore;
+    }
     return embeddingStore;
   }
 
@@ -248,50 +322,39 @@ public class AppConfig {
   public ContentRetriever sqlDatabaseContentRetriever(
       DataSource dataSource,
       String[] schemaType,
-      EmbeddingStore<TextSegment> embeddingStore,
-      EmbeddingModel embeddingModel,
       ChatLanguageModel geminiChatModel,
       @Qualifier("ollamaChatLanguageModel") ChatLanguageModel ollamaChatModel,
-      @Qualifier("openaiChatLanguageModel") ChatLanguageModel openaiChatModel) {
+      @Qualifier("openaiChatLanguageModel") ChatLanguageModel openaiChatModel,
+      SchemaCatalog schemaCatalog,
+      SchemaSelector schemaSelector,
+      Bulkheads bulkheads,
+      SqlQueryCache sqlQueryCache,
+      SqlResultCache sqlResultCache,
+      SqlResultReader sqlResultReader,
+      LexicalIndex lexicalIndex,
+      QueryGovernor queryGovernor,
+      QueryCostGate queryCostGate,
+      SqlQueryParser sqlQueryParser) {
 
     Map<String, String> tables = fhirDbConfig != null ? fhirDbConfig.getTables() : new HashMap<>();
 
-    List<Object[]> obs = new ArrayList<>();
-    for (Map.Entry<String, String> entry : tables.entrySet()) {
-      String tableName = entry.getKey();
-      String[] columns = entry.getValue().split(",");
-
-      List<Object[]> tableResults = selectColumnsFromTable(tableName, columns, dataSource);
-      if (tableResults != null) {
-        obs.addAll(tableResults);
-      }
-    }
-
-    StringBuilder output = new StringBuilder();
-
-    for (Object[] row : obs) {
-      for (Object value : row) {
-        if (value != null) {
-          output.append(value).append("\n");
-          log.debug("Metadata for embedding: {}", value);
-        }
-      }
-    }
-
-    if (output != null && !output.toString().isBlank()) {
-      Document document = Document.document(output.toString());
-
-      List<TextSegment> segments = split(document);
-
-      List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-      embeddingStore.addAll(embeddings, segments);
-    }
     return SqlDatabaseContentRetriever.builder()
         .dataSource(dataSource)
+        .sqlDialect(schemaCatalog.getSqlDialect())
+        .databaseStructure(schemaCatalog.getDatabaseStructure())
         .chatLanguageModel(openaiChatModel)
         .ollamaChatModel(ollamaChatModel)
         .tables(tables)
         .schemaType(schemaType)
+        .schemaSelector(schemaSelector)
+        .bulkheads(bulkheads)
+        .sqlQueryCache(sqlQueryCache)
+        .sqlResultCache(sqlResultCache)
+        .sqlResultReader(sqlResultReader)
+        .lexicalIndex(lexicalIndex)
+        .queryGovernor(queryGovernor)
+        .queryCostGate(queryCostGate)
+        .sqlQueryParser(sqlQueryParser)
         .build();
   }
 
@@ -314,77 +377,4 @@ public class AppConfig {
   public JdbcMappingContext jdbcMappingContext() {
     return new JdbcMappingContext();
   }
-
-  public List<TextSegment> split(Document document) {
-    ensureNotNull(document, "document");
-
-    List<TextSegment> segments = new ArrayList<>();
-
-    String[] parts = document.text().split("\n");
-    for (int i = 0; i < parts.length; i++) {
-      if (parts[i] != null && !parts[i].isEmpty()) {
-        segments.add(createSegment(parts[i], document, i));
-      }
-    }
-    return segments;
-  }
-
-  static TextSegment createSegment(String text, Document document, int index) {
-    Metadata metadata = document.metadata().copy().put("index", String.valueOf(index));
-    return TextSegment.from(text, metadata);
-  }
-
-  private static List<Object[]> selectColumnsFromTable(
-      String tableName, String[] columns, DataSource dataSource) {
-    List<Object[]> results = new ArrayList<>();
-
-    // Ensure we have columns to select
-    if (columns.length == 0) {
-      throw new IllegalArgumentException("At least one column must be specified");
-    }
-
-    // Build the SQL query with only the specified columns
-    StringBuilder queryBuilder = new StringBuilder("SELECT ");
-
-    for (int i = 0; i < columns.length; i++) {
-      queryBuilder.append(columns[i]);
-      if (i < columns.length - 1) {
-        queryBuilder.append(", ");
-      }
-    }
-
-    queryBuilder.append(" FROM ").append(tableName);
-    String query = queryBuilder.toString();
-
-    // Execute the query
-    // try (Connection conn = DriverManager.getConnection("jdbc:hive2://spark:10000");
-    try (Connection connection = dataSource.getConnection()) {
-      Statement stmt = connection.createStatement();
-      ResultSet rs = stmt.executeQuery(query);
-      // Process each row
-      while (rs.next()) {
-        // Create an array with the same length as the columns array
-        Object[] rowValues = new Object[columns.length];
-
-        // Fill the array with values in the same order as the columns array
-        for (int i = 0; i < columns.length; i++) {
-          rowValues[i] = rs.getObject(columns[i]);
-        }
-
-        results.add(rowValues);
-      }
-    } catch (SQLException e) {
-      System.err.println("Error executing query: " + e.getMessage());
-      e.printStackTrace();
-    }
-
-    return results;
-  }
-}
-
-// Custom exception for model initialization errors
-class ModelInitializationException extends RuntimeException {
-  public ModelInitializationException(String message, Throwable cause) {
-    super(message, cause);
-  }
 }
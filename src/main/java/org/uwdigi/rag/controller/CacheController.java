@@ -0,0 +1,47 @@
+package org.uwdigi.rag.controller;
+
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.uwdigi.rag.service.SchemaCatalog;
+import org.uwdigi.rag.service.SqlResultCache;
+
+@RestController
+@RequestMapping("/api/cache")
+public class CacheController {
+
+  private final SqlResultCache sqlResultCache;
+  private final SchemaCatalog schemaCatalog;
+
+  @Autowired
+  public CacheController(SqlResultCache sqlResultCache, SchemaCatalog schemaCatalog) {
+    this.sqlResultCache = sqlResultCache;
+    this.schemaCatalog = schemaCatalog;
+  }
+
+  /** Invalidates the cached results of queries reading the table, or all of them. */
+  @DeleteMapping("/results")
+  public ResponseEntity<Map<String, Object>> invalidateResults(
+      @RequestParam(required = false) String table) {
+    if (table == null || table.isBlank()) {
+      sqlResultCache.clear();
+      return ResponseEntity.ok(Map.of("cleared", true));
+    }
+    return ResponseEntity.ok(
+        Map.of("table", table, "invalidated", sqlResultCache.invalidateTable(table)));
+  }
+
+  /**
+   * Discards the cached schema catalog and reads every table again, e.g. after a column change on
+   * Hive, which the schema poll does not see.
+   */
+  @DeleteMapping("/schema")
+  public ResponseEntity<Map<String, Object>> rebuildSchema() {
+    schemaCatalog.rebuild();
+    return ResponseEntity.ok(Map.of("version", schemaCatalog.getVersion()));
+  }
+}
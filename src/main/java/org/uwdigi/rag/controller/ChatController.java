@@ -1,36 +1,115 @@
 package org.uwdigi.rag.controller;
 
+import java.io.IOException;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.uwdigi.rag.service.AssistantService;
+import org.uwdigi.rag.shared.PipelineListener;
 import org.uwdigi.rag.shared.QueryResponse;
 
 @RestController
 @RequestMapping("/api/chat")
 public class ChatController {
 
+  private static final Logger log = LoggerFactory.getLogger(ChatController.class);
   private final AssistantService assistantService;
+  private final TaskExecutor taskExecutor;
+  private final Duration streamTimeout;
 
   @Autowired
-  public ChatController(AssistantService assistantService) {
+  public ChatController(
+      AssistantService assistantService,
+      @Qualifier("applicationTaskExecutor") TaskExecutor taskExecutor,
+      @Value("${app.chat.stream-timeout:PT10M}") Duration streamTimeout) {
     this.assistantService = assistantService;
+    this.taskExecutor = taskExecutor;
+    this.streamTimeout = streamTimeout;
   }
 
   @PostMapping
   public ResponseEntity<ChatResponse> chat(@RequestBody ChatRequest request) {
     QueryResponse queryResponse =
-        assistantService.processQuery(request.getQuery(), request.getModel());
+        assistantService.processQuery(request.getQuery(), request.getModel(), request.getMode());
     return ResponseEntity.ok(
         new ChatResponse(queryResponse.getResponse(), queryResponse.getSqlRun()));
   }
 
+  /**
+   * Streaming variant of {@link #chat(ChatRequest)}. Sends a Server-Sent Event for every stage of
+   * the request ({@code schema-ready}, {@code sql-generated}, {@code rows-fetched}), a {@code
+   * token} event for every part of the local answer as it is generated, and finally a {@code done}
+   * event with the same body as the blocking endpoint.
+   */
+  @PostMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter chatStream(@RequestBody ChatRequest request) {
+    SseEmitter emitter = new SseEmitter(streamTimeout.toMillis());
+    taskExecutor.execute(
+        () -> {
+          SseListener listener = new SseListener(emitter);
+          try {
+            QueryResponse queryResponse =
+                QueryResponse.from(
+                    assistantService.process(
+                        request.getQuery(), request.getModel(), request.getMode(), listener));
+            listener.send(
+                "done", new ChatResponse(queryResponse.getResponse(), queryResponse.getSqlRun()));
+            emitter.complete();
+          } catch (Exception e) {
+            log.error("Streaming chat failed: {}", e.getMessage(), e);
+            emitter.completeWithError(e);
+          }
+        });
+    return emitter;
+  }
+
+  /** Forwards pipeline events to the client; stops sending once the client has gone away. */
+  private static class SseListener implements PipelineListener {
+    private final SseEmitter emitter;
+    private volatile boolean open = true;
+
+    private SseListener(SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+
+    @Override
+    public void onStage(String stage, String detail) {
+      send(stage, detail != null ? detail : "");
+    }
+
+    @Override
+    public void onToken(String token) {
+      send("token", token);
+    }
+
+    private void send(String name, Object data) {
+      if (!open) {
+        return;
+      }
+      try {
+        emitter.send(SseEmitter.event().name(name).data(data));
+      } catch (IOException | IllegalStateException e) {
+        log.debug("Client left the stream: {}", e.getMessage());
+        open = false;
+      }
+    }
+  }
+
   public static class ChatRequest {
     private String query;
     private String model;
+    private String mode;
 
     public ChatRequest() {}
 
@@ -54,6 +133,15 @@ public class ChatController {
     public void setModel(String model) {
       this.model = model;
     }
+
+    /** Optional {@code PipelineMode} ("assistant" or "direct") overriding the configured one. */
+    public String getMode() {
+      return mode;
+    }
+
+    public void setMode(String mode) {
+      this.mode = mode;
+    }
   }
 
   public static class ChatResponse {
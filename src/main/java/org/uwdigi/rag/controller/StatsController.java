@@ -0,0 +1,32 @@
+package org.uwdigi.rag.controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.uwdigi.rag.shared.StatsProvider;
+
+@RestController
+@RequestMapping("/api/stats")
+public class StatsController {
+
+  private final ObjectProvider<StatsProvider> statsProviders;
+
+  @Autowired
+  public StatsController(ObjectProvider<StatsProvider> statsProviders) {
+    this.statsProviders = statsProviders;
+  }
+
+  @GetMapping
+  public ResponseEntity<Map<String, Map<String, Object>>> stats() {
+    Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+    statsProviders
+        .orderedStream()
+        .forEach(provider -> stats.put(provider.getStatsName(), provider.getStats()));
+    return ResponseEntity.ok(stats);
+  }
+}
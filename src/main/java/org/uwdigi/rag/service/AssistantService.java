@@ -3,8 +3,10 @@ package org.uwdigi.rag.service;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import javax.sql.DataSource;
@@ -12,8 +14,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.uwdigi.rag.shared.Assistant;
+import org.uwdigi.rag.shared.PipelineContext;
+import org.uwdigi.rag.shared.PipelineListener;
+import org.uwdigi.rag.shared.PipelineMode;
 import org.uwdigi.rag.shared.QueryResponse;
 
 /**
@@ -30,9 +36,20 @@ public class AssistantService {
   private final EmbeddingStore<TextSegment> embeddingStore;
   private final ModelFactory modelFactory;
   private final ChatLanguageModel ollamaChatModel;
-  private String response;
-  private String sqlRun;
-  private String[] schemaType;
+  private final StreamingChatLanguageModel ollamaStreamingChatModel;
+  private final SchemaCatalog schemaCatalog;
+  private final SchemaSelector schemaSelector;
+  private final Bulkheads bulkheads;
+  private final SqlQueryCache sqlQueryCache;
+  private final SqlResultCache sqlResultCache;
+  private final SqlResultReader sqlResultReader;
+  private final LexicalIndex lexicalIndex;
+  private final MetadataIngestion metadataIngestion;
+  private final QueryGovernor queryGovernor;
+  private final QueryCostGate queryCostGate;
+  private final SqlQueryParser sqlQueryParser;
+  private final String[] schemaType;
+  private final PipelineMode defaultMode;
 
   @Autowired
   public AssistantService(
@@ -42,34 +59,40 @@ public class AssistantService {
       EmbeddingStore<TextSegment> embeddingStore,
       EmbeddingModel embeddingModel,
       ModelFactory modelFactory,
-      @Qualifier("ollamaChatLanguageModel") ChatLanguageModel ollamaChatModel) {
+      SchemaCatalog schemaCatalog,
+      SchemaSelector schemaSelector,
+      Bulkheads bulkheads,
+      SqlQueryCache sqlQueryCache,
+      SqlResultCache sqlResultCache,
+      SqlResultReader sqlResultReader,
+      LexicalIndex lexicalIndex,
+      MetadataIngestion metadataIngestion,
+      QueryGovernor queryGovernor,
+      QueryCostGate queryCostGate,
+      SqlQueryParser sqlQueryParser,
+      @Qualifier("ollamaChatLanguageModel") ChatLanguageModel ollamaChatModel,
+      StreamingChatLanguageModel ollamaStreamingChatModel,
+      @Value("${app.pipeline.mode:direct}") String defaultMode) {
     this.assistant = assistant;
     this.dataSource = dataSource;
     this.modelFactory = modelFactory;
     this.embeddingModel = embeddingModel;
     this.embeddingStore = embeddingStore;
     this.ollamaChatModel = ollamaChatModel;
-    this.response = "Unexpected Error occured";
-    this.sqlRun = "Unexpected Error occured";
+    this.ollamaStreamingChatModel = ollamaStreamingChatModel;
+    this.schemaCatalog = schemaCatalog;
+    this.schemaSelector = schemaSelector;
+    this.bulkheads = bulkheads;
+    this.sqlQueryCache = sqlQueryCache;
+    this.sqlResultCache = sqlResultCache;
+    this.sqlResultReader = sqlResultReader;
+    this.lexicalIndex = lexicalIndex;
+    this.metadataIngestion = metadataIngestion;
+    this.queryGovernor = queryGovernor;
+    this.queryCostGate = queryCostGate;
+    this.sqlQueryParser = sqlQueryParser;
     this.schemaType = schemaType;
-  }
-
-  public void updateSqlRun(String sqlRun) {
-    log.debug("Updating SQL Query run on DB: {}", sqlRun);
-    this.sqlRun = sqlRun;
-  }
-
-  public String getSqlRun() {
-    return this.sqlRun;
-  }
-
-  public void updateResponse(String response) {
-    log.debug("Updating response to: {}", response);
-    this.response = response;
-  }
-
-  public String getResponse() {
-    return this.response;
+    this.defaultMode = PipelineMode.from(defaultMode, PipelineMode.DIRECT);
   }
 
   /**
@@ -80,32 +103,85 @@ public class AssistantService {
    * @return The response
    */
   public QueryResponse processQuery(String query, String modelName) {
-    log.debug("Processing with model: {}", modelName);
+    return QueryResponse.from(process(query, modelName));
+  }
 
-    ChatLanguageModel chatLanguageModel = this.modelFactory.createModel(modelName);
+  /**
+   * Same as {@link #processQuery(String, String)}, in the given {@link PipelineMode} ({@code null}
+   * for the configured {@code app.pipeline.mode}).
+   */
+  public QueryResponse processQuery(String query, String modelName, String mode) {
+    return QueryResponse.from(process(query, modelName, mode, null));
+  }
+
+  /**
+   * Runs a query through the pipeline and returns its {@link PipelineContext}, which holds the
+   * generated SQL, the local answer, retries and timings of this request only. Safe to call
+   * concurrently.
+   *
+   * @param query The user query
+   * @param modelName The model used to generate the SQL query
+   * @return The context of the request
+   */
+  public PipelineContext process(String query, String modelName) {
+    return process(query, modelName, null, null);
+  }
+
+  /**
+   * Same as {@link #process(String, String)}, in the given {@link PipelineMode} ({@code null} for
+   * the configured {@code app.pipeline.mode}). Reports the stages of the request and streams the
+   * local answer to the listener, if any.
+   */
+  public PipelineContext process(
+      String query, String modelName, String mode, PipelineListener listener) {
+    PipelineMode pipelineMode = PipelineMode.from(mode, defaultMode);
+    log.debug("Processing with model: {} in {} mode", modelName, pipelineMode);
+    PipelineContext context = new PipelineContext(query, modelName);
+    context.setListener(listener);
+
+    ChatLanguageModel chatLanguageModel = this.modelFactory.getModel(modelName);
 
     ContentRetriever contentRetriever =
         SqlDatabaseContentRetriever.builder()
             .dataSource(dataSource)
+            .sqlDialect(schemaCatalog.getSqlDialect())
+            .databaseStructure(schemaCatalog.getDatabaseStructure())
             .chatLanguageModel(chatLanguageModel)
             .ollamaChatModel(ollamaChatModel)
+            .ollamaStreamingChatModel(ollamaStreamingChatModel)
             .embeddingModel(embeddingModel)
             .embeddingStore(embeddingStore)
             .schemaType(schemaType)
-            .assistantService(this)
+            .schemaSelector(schemaSelector)
+            .bulkheads(bulkheads)
+            .sqlQueryCache(sqlQueryCache)
+            .sqlResultCache(sqlResultCache)
+            .sqlResultReader(sqlResultReader)
+            .lexicalIndex(lexicalIndex)
+            .metadataIngestion(metadataIngestion)
+            .queryGovernor(queryGovernor)
+            .queryCostGate(queryCostGate)
+            .sqlQueryParser(sqlQueryParser)
+            .pipelineContext(context)
             .build();
     log.debug("Processing query through AssistantService: {}", query);
-    String answer =
-        AiServices.builder(Assistant.class)
-            .chatLanguageModel(chatLanguageModel)
-            .contentRetriever(contentRetriever)
-            .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
-            .build()
-            .answer(query);
-    log.debug("The Cloud AI answer is : {}", answer);
-    log.debug("The Local AI answer is : {}", this.response);
-    log.debug("The SQL query run is : {}", this.sqlRun);
+    if (pipelineMode == PipelineMode.DIRECT) {
+      contentRetriever.retrieve(Query.from(query));
+    } else {
+      String answer =
+          AiServices.builder(Assistant.class)
+              .chatLanguageModel(chatLanguageModel)
+              .contentRetriever(contentRetriever)
+              .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
+              .build()
+              .answer(query);
+      log.debug("The Cloud AI answer is : {}", answer);
+    }
+    context.complete();
+    log.debug("The Local AI answer is : {}", context.getAnswer());
+    log.debug("The SQL query run is : {}", context.getSqlQuery());
+    log.debug("Pipeline timings (ms): {}, retries: {}", context.getTimings(), context.getRetries());
 
-    return new QueryResponse(this.response, this.sqlRun);
+    return context;
   }
 }
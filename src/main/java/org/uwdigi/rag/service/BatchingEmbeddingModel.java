@@ -0,0 +1,210 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * {@link EmbeddingModel} that gathers the calls of concurrent requests into batches, so that the
+ * in-process model runs a bounded number of batches at a time instead of one call per request
+ * thread. <br>
+ * A dispatcher thread waits for a free worker, takes the oldest call and adds the calls queued
+ * behind it until the batch holds {@code maxBatchSize} texts or {@code maxDelay} has passed; a call
+ * is never split. Each batch is embedded by one of {@code workers} threads in a single call to the
+ * delegate, and every caller gets its own embeddings back. While all workers are busy, calls keep
+ * queueing, so batches grow with the load. <br>
+ * Closing fails the calls that are queued or gathered into a batch no worker has started.
+ */
+public class BatchingEmbeddingModel implements EmbeddingModel, StatsProvider, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(BatchingEmbeddingModel.class);
+
+  private final EmbeddingModel delegate;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final int workers;
+  private final BlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+  private final Semaphore freeWorkers;
+  private final ExecutorService executor;
+  private final Thread dispatcher;
+  private volatile boolean closed;
+
+  private final AtomicLong callCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong textCount = new AtomicLong();
+  private final AtomicLong largestBatch = new AtomicLong();
+
+  private record Call(List<TextSegment> segments, CompletableFuture<List<Embedding>> result) {}
+
+  /** A batch handed to a worker, so that {@link #close} can fail the batches it never started. */
+  private record Batch(List<Call> calls, BatchingEmbeddingModel model) implements Runnable {
+    @Override
+    public void run() {
+      model.embed(calls);
+    }
+  }
+
+  public BatchingEmbeddingModel(
+      EmbeddingModel delegate, int maxBatchSize, Duration maxDelay, int workers) {
+    this.delegate = delegate;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.workers = Math.max(1, workers);
+    this.freeWorkers = new Semaphore(this.workers);
+    this.executor =
+        Executors.newFixedThreadPool(
+            this.workers, Thread.ofPlatform().name("embedding-worker-", 0).daemon().factory());
+    this.dispatcher =
+        Thread.ofPlatform().name("embedding-batcher").daemon().start(this::dispatchBatches);
+  }
+
+  @Override
+  public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+    if (textSegments.isEmpty()) {
+      return Response.from(List.of());
+    }
+    if (closed) {
+      throw new IllegalStateException("The embedding batcher is closed");
+    }
+    Call call = new Call(textSegments, new CompletableFuture<>());
+    callCount.incrementAndGet();
+    calls.add(call);
+    if (closed && calls.remove(call)) {
+      // Closed while adding; nothing will take the call
+      throw new IllegalStateException("The embedding batcher is closed");
+    }
+    try {
+      return Response.from(call.result().join());
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    }
+  }
+
+  @Override
+  public int dimension() {
+    return delegate.dimension();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    dispatcher.interrupt();
+    for (Runnable task : executor.shutdownNow()) {
+      if (task instanceof Batch batch) {
+        failClosed(batch.calls());
+      }
+    }
+    List<Call> queued = new ArrayList<>();
+    calls.drainTo(queued);
+    failClosed(queued);
+  }
+
+  @Override
+  public String getStatsName() {
+    return "embeddingBatcher";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long batches = batchCount.get();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("calls", callCount.get());
+    stats.put("batches", batches);
+    stats.put("texts", textCount.get());
+    stats.put("averageBatchSize", batches == 0 ? 0.0 : (double) textCount.get() / batches);
+    stats.put("largestBatch", largestBatch.get());
+    stats.put("queuedCalls", calls.size());
+    stats.put("workers", workers);
+    return stats;
+  }
+
+  private void dispatchBatches() {
+    // The calls taken from the queue but not handed to a worker yet
+    List<Call> batch = new ArrayList<>();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        freeWorkers.acquire();
+        batch = new ArrayList<>();
+        Call first = calls.take();
+        batch.add(first);
+        int size = first.segments().size();
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (size < maxBatchSize) {
+          Call next = calls.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          size += next.segments().size();
+        }
+        executor.execute(new Batch(batch, this));
+        batch = List.of();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RejectedExecutionException e) {
+      // Closed while handing the batch over; failed below
+    } finally {
+      // Empty unless closed while gathering or handing over a batch, whose callers would otherwise
+      // wait forever
+      failClosed(batch);
+    }
+  }
+
+  private static void failClosed(List<Call> batch) {
+    for (Call call : batch) {
+      call.result()
+          .completeExceptionally(new IllegalStateException("The embedding batcher is closed"));
+    }
+  }
+
+  private void embed(List<Call> batch) {
+    try {
+      List<TextSegment> segments = new ArrayList<>();
+      for (Call call : batch) {
+        segments.addAll(call.segments());
+      }
+      batchCount.incrementAndGet();
+      textCount.addAndGet(segments.size());
+      largestBatch.accumulateAndGet(segments.size(), Math::max);
+
+      List<Embedding> embeddings = delegate.embedAll(segments).content();
+      int offset = 0;
+      for (Call call : batch) {
+        int end = offset + call.segments().size();
+        call.result().complete(new ArrayList<>(embeddings.subList(offset, end)));
+        offset = end;
+      }
+    } catch (Throwable e) {
+      // Errors as well, or their callers would wait forever
+      log.error("Failed to embed a batch of {} calls: {}", batch.size(), e.getMessage());
+      for (Call call : batch) {
+        call.result().completeExceptionally(e);
+      }
+      if (e instanceof Error error) {
+        throw error;
+      }
+    } finally {
+      freeWorkers.release();
+    }
+  }
+}
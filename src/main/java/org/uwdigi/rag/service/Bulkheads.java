@@ -0,0 +1,155 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.listener.ChatModelListener;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.Response;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the number of concurrent calls to each downstream service. Requests run on virtual
+ * threads, so the thread pool no longer bounds how many of them wait on a backend at the same time;
+ * these limits do, per backend, so that a slow backend (e.g. a CPU-only Ollama) only queues the
+ * requests that need it and cannot exhaust connections or memory shared with the others. <br>
+ * A call waits up to {@code app.bulkhead.max-wait} for a permit and then fails with {@link
+ * BulkheadFullException}. A limit of 0 or less disables the bulkhead of that backend.
+ */
+@Component
+public class Bulkheads {
+
+  /** The downstream services calls are grouped by. */
+  public enum Backend {
+    CLOUD_LLM,
+    OLLAMA,
+    JDBC,
+    PGVECTOR
+  }
+
+  /** A call to a backend, which may throw a checked exception. */
+  @FunctionalInterface
+  public interface BackendCall<T, E extends Exception> {
+    T call() throws E;
+  }
+
+  private final Map<Backend, Semaphore> permits = new EnumMap<>(Backend.class);
+  private final Duration maxWait;
+
+  public Bulkheads(
+      @Value("${app.bulkhead.cloud-llm:32}") int cloudLlm,
+      @Value("${app.bulkhead.ollama:4}") int ollama,
+      @Value("${app.bulkhead.jdbc:16}") int jdbc,
+      @Value("${app.bulkhead.pgvector:16}") int pgvector,
+      @Value("${app.bulkhead.max-wait:PT2M}") Duration maxWait) {
+    this.maxWait = maxWait;
+    limit(Backend.CLOUD_LLM, cloudLlm);
+    limit(Backend.OLLAMA, ollama);
+    limit(Backend.JDBC, jdbc);
+    limit(Backend.PGVECTOR, pgvector);
+  }
+
+  private void limit(Backend backend, int maxConcurrentCalls) {
+    if (maxConcurrentCalls > 0) {
+      permits.put(backend, new Semaphore(maxConcurrentCalls, true));
+    }
+  }
+
+  /** Runs the call once a permit of the backend is available. */
+  public <T, E extends Exception> T call(Backend backend, BackendCall<T, E> call) throws E {
+    Semaphore semaphore = permits.get(backend);
+    if (semaphore == null) {
+      return call.call();
+    }
+    acquire(backend, semaphore);
+    try {
+      return call.call();
+    } finally {
+      semaphore.release();
+    }
+  }
+
+  /** The number of calls the backend can accept right now, or -1 if it is not limited. */
+  public int availablePermits(Backend backend) {
+    Semaphore semaphore = permits.get(backend);
+    return semaphore != null ? semaphore.availablePermits() : -1;
+  }
+
+  /** Wraps a chat model so that every call to it goes through the bulkhead of the backend. */
+  public ChatLanguageModel decorate(ChatLanguageModel model, Backend backend) {
+    return new BulkheadChatLanguageModel(model, backend);
+  }
+
+  private void acquire(Backend backend, Semaphore semaphore) {
+    try {
+      if (!semaphore.tryAcquire(maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+        throw new BulkheadFullException(backend, maxWait);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BulkheadFullException(backend, maxWait);
+    }
+  }
+
+  private final class BulkheadChatLanguageModel implements ChatLanguageModel {
+    private final ChatLanguageModel delegate;
+    private final Backend backend;
+
+    private BulkheadChatLanguageModel(ChatLanguageModel delegate, Backend backend) {
+      this.delegate = delegate;
+      this.backend = backend;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest chatRequest) {
+      return call(backend, () -> delegate.chat(chatRequest));
+    }
+
+    @Override
+    @SuppressWarnings("removal")
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+      return call(backend, () -> delegate.generate(messages));
+    }
+
+    @Override
+    @SuppressWarnings("removal")
+    public Response<AiMessage> generate(
+        List<ChatMessage> messages, List<ToolSpecification> toolSpecifications) {
+      return call(backend, () -> delegate.generate(messages, toolSpecifications));
+    }
+
+    @Override
+    public List<ChatModelListener> listeners() {
+      return delegate.listeners();
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+      return delegate.defaultRequestParameters();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+      return delegate.supportedCapabilities();
+    }
+  }
+
+  /** Thrown when a backend stays at its concurrency limit for longer than the maximum wait. */
+  public static class BulkheadFullException extends RuntimeException {
+    public BulkheadFullException(Backend backend, Duration maxWait) {
+      super("Too many concurrent calls to " + backend + ", no permit within " + maxWait);
+    }
+  }
+}
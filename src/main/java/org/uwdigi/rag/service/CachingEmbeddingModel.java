@@ -0,0 +1,132 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * {@link EmbeddingModel} that remembers the vectors of the most recently embedded texts, so that
+ * the literals and questions that come back across requests ("positive", "completed", "HIV") are
+ * not run through the model again. <br>
+ * Texts are keyed after lowercasing and collapsing whitespace, which does not change their
+ * embedding with the uncased all-MiniLM-L6-v2 tokenizer. At most {@code maxEntries} vectors are
+ * kept as {@code float[]}, evicting the least recently used; 0 disables the cache. The texts
+ * missing from the cache are embedded in a single call to the delegate.
+ */
+public class CachingEmbeddingModel implements EmbeddingModel, StatsProvider {
+
+  private final EmbeddingModel delegate;
+  private final int maxEntries;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<String, float[]> vectors;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public CachingEmbeddingModel(EmbeddingModel delegate, int maxEntries) {
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+    this.vectors =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            if (size() > CachingEmbeddingModel.this.maxEntries) {
+              evictions.incrementAndGet();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  @Override
+  public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+    if (maxEntries <= 0) {
+      return delegate.embedAll(textSegments);
+    }
+
+    List<String> keys = new ArrayList<>(textSegments.size());
+    float[][] found = new float[textSegments.size()][];
+    Map<String, Integer> missing = new LinkedHashMap<>();
+    List<TextSegment> toEmbed = new ArrayList<>();
+    lock.lock();
+    try {
+      for (int i = 0; i < textSegments.size(); i++) {
+        String key = LexicalIndex.normalize(textSegments.get(i).text());
+        keys.add(key);
+        found[i] = vectors.get(key);
+        if (found[i] == null && missing.putIfAbsent(key, toEmbed.size()) == null) {
+          toEmbed.add(textSegments.get(i));
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    hits.addAndGet(textSegments.size() - toEmbed.size());
+    misses.addAndGet(toEmbed.size());
+
+    List<Embedding> embedded = toEmbed.isEmpty() ? List.of() : delegate.embedAll(toEmbed).content();
+    if (!embedded.isEmpty()) {
+      lock.lock();
+      try {
+        for (Map.Entry<String, Integer> entry : missing.entrySet()) {
+          vectors.put(entry.getKey(), embedded.get(entry.getValue()).vector());
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    List<Embedding> embeddings = new ArrayList<>(textSegments.size());
+    for (int i = 0; i < textSegments.size(); i++) {
+      float[] vector =
+          found[i] != null ? found[i] : embedded.get(missing.get(keys.get(i))).vector();
+      // Callers may modify the vector they get
+      embeddings.add(Embedding.from(vector.clone()));
+    }
+    return Response.from(embeddings);
+  }
+
+  @Override
+  public int dimension() {
+    return delegate.dimension();
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return vectors.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "embeddingCache";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    long lookups = hitCount + missCount;
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("hitRate", lookups == 0 ? 0.0 : (double) hitCount / lookups);
+    stats.put("evictions", evictions.get());
+    stats.put("size", size());
+    stats.put("maxEntries", maxEntries);
+    return stats;
+  }
+}
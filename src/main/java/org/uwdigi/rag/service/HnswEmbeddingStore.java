@@ -0,0 +1,589 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory {@link EmbeddingStore} that searches a Hierarchical Navigable Small World graph (Malkov
+ * and Yashunin, 2016) over normalized vectors kept in one primitive {@code float[]}, for the tens
+ * of thousands of short metadata values the literal substitution looks up. <br>
+ * When a durable store (pgvector) is given, every write also goes to it, while searches are served
+ * from memory only; on start the graph is rebuilt from the same rows with {@link #load}, unless a
+ * snapshot is restored. <br>
+ * Searches with a {@link Filter} scan all vectors. Removed embeddings stay in the graph as
+ * tombstones and are skipped in results. Safe for concurrent use: searches share a read lock and
+ * writes take the write lock. <br>
+ * The vectors, segments and graph can be saved and restored with a {@link VectorSnapshot}, so that
+ * a restart does not rebuild the graph.
+ */
+public class HnswEmbeddingStore implements ListableEmbeddingStore {
+
+  private final int m;
+  private final int maxNeighborsLevel0;
+  private final int efConstruction;
+  private final int efSearch;
+  private final double levelMultiplier;
+  private final EmbeddingStore<TextSegment> durableStore;
+  private final SplittableRandom random = new SplittableRandom(42);
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private int dimension = -1;
+  private int size;
+  private float[] vectors = new float[0];
+  private String[] ids = new String[0];
+  private TextSegment[] segments = new TextSegment[0];
+  private boolean[] removed = new boolean[0];
+  // neighbors[node][level] holds the neighbor count followed by the neighbors
+  private int[][][] neighbors = new int[0][][];
+  private final Map<String, Integer> nodesById = new HashMap<>();
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  /**
+   * @param m The number of neighbors of a node on the upper levels; level 0 keeps twice as many.
+   * @param efConstruction The number of candidates considered when inserting a node.
+   * @param efSearch The minimum number of candidates considered when searching.
+   * @param durableStore The store writes are forwarded to, or {@code null}.
+   */
+  public HnswEmbeddingStore(
+      int m, int efConstruction, int efSearch, EmbeddingStore<TextSegment> durableStore) {
+    this.m = m;
+    this.maxNeighborsLevel0 = 2 * m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.efSearch = efSearch;
+    this.levelMultiplier = 1 / Math.log(m);
+    this.durableStore = durableStore;
+  }
+
+  public HnswEmbeddingStore() {
+    this(16, 100, 64, null);
+  }
+
+  @Override
+  public String add(Embedding embedding) {
+    return add(embedding, null);
+  }
+
+  @Override
+  public void add(String id, Embedding embedding) {
+    addAll(List.of(id), List.of(embedding), Collections.singletonList(null));
+  }
+
+  @Override
+  public String add(Embedding embedding, TextSegment textSegment) {
+    String id = UUID.randomUUID().toString();
+    addAll(List.of(id), List.of(embedding), Collections.singletonList(textSegment));
+    return id;
+  }
+
+  @Override
+  public List<String> addAll(List<Embedding> embeddings) {
+    return addAll(embeddings, null);
+  }
+
+  @Override
+  public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+    List<String> newIds = generateIds(embeddings.size());
+    addAll(newIds, embeddings, textSegments);
+    return newIds;
+  }
+
+  @Override
+  public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+    if (durableStore != null) {
+      durableStore.addAll(ids, embeddings, textSegments);
+    }
+    load(ids, embeddings, textSegments);
+  }
+
+  /** Adds embeddings that the durable store already holds, without writing them to it again. */
+  public void load(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < embeddings.size(); i++) {
+        insert(ids.get(i), embeddings.get(i), textSegments != null ? textSegments.get(i) : null);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void removeAll(Collection<String> ids) {
+    if (durableStore != null) {
+      durableStore.removeAll(ids);
+    }
+    lock.writeLock().lock();
+    try {
+      for (String id : ids) {
+        Integer node = nodesById.remove(id);
+        if (node != null) {
+          removed[node] = true;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void removeAll() {
+    if (durableStore != null) {
+      durableStore.removeAll();
+    }
+    lock.writeLock().lock();
+    try {
+      size = 0;
+      vectors = new float[0];
+      ids = new String[0];
+      segments = new TextSegment[0];
+      removed = new boolean[0];
+      neighbors = new int[0][][];
+      nodesById.clear();
+      entryPoint = -1;
+      maxLevel = -1;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+    float[] query = normalize(request.queryEmbedding().vector());
+    int k = request.maxResults();
+    lock.readLock().lock();
+    try {
+      if (size == 0) {
+        return new EmbeddingSearchResult<>(List.of());
+      }
+      checkDimension(query);
+      int[] nodes =
+          request.filter() != null
+              ? scan(query, k, request.filter())
+              : searchGraph(query, k, Math.max(efSearch, k));
+      List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(nodes.length);
+      for (int node : nodes) {
+        double score = RelevanceScore.fromCosineSimilarity(dot(query, node));
+        if (score >= request.minScore()) {
+          matches.add(
+              new EmbeddingMatch<>(score, ids[node], Embedding.from(vector(node)), segments[node]));
+        }
+      }
+      return new EmbeddingSearchResult<>(matches);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** The ids of the embeddings held in memory, which are not necessarily all durable ones. */
+  @Override
+  public Set<String> ids() {
+    lock.readLock().lock();
+    try {
+      return new HashSet<>(nodesById.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** The number of embeddings in the store, including removed ones. */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** A copy of the vectors, segments and graph, for {@link VectorSnapshot}. */
+  record Contents(
+      int dimension,
+      int size,
+      float[] vectors,
+      String[] ids,
+      TextSegment[] segments,
+      boolean[] removed,
+      int[][][] neighbors,
+      int entryPoint,
+      int maxLevel) {}
+
+  Contents contents() {
+    lock.readLock().lock();
+    try {
+      // Later inserts add links to existing nodes, so the link arrays are copied too
+      int[][][] links = new int[size][][];
+      for (int node = 0; node < size; node++) {
+        links[node] = new int[neighbors[node].length][];
+        for (int l = 0; l < links[node].length; l++) {
+          links[node][l] = neighbors[node][l].clone();
+        }
+      }
+      return new Contents(
+          Math.max(dimension, 0),
+          size,
+          Arrays.copyOf(vectors, size * Math.max(dimension, 0)),
+          Arrays.copyOf(ids, size),
+          Arrays.copyOf(segments, size),
+          Arrays.copyOf(removed, size),
+          links,
+          entryPoint,
+          maxLevel);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Replaces the index with the contents, without writing to the durable store. */
+  void restore(Contents contents) {
+    lock.writeLock().lock();
+    try {
+      dimension = contents.size() > 0 ? contents.dimension() : -1;
+      size = contents.size();
+      vectors = contents.vectors();
+      ids = contents.ids();
+      segments = contents.segments();
+      removed = contents.removed();
+      neighbors = contents.neighbors();
+      entryPoint = contents.entryPoint();
+      maxLevel = contents.maxLevel();
+      nodesById.clear();
+      for (int node = 0; node < size; node++) {
+        if (!removed[node]) {
+          nodesById.put(ids[node], node);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** The exact nearest neighbors by scanning every vector, used to measure recall. */
+  EmbeddingSearchResult<TextSegment> searchExact(EmbeddingSearchRequest request) {
+    lock.readLock().lock();
+    try {
+      float[] query = normalize(request.queryEmbedding().vector());
+      List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>();
+      for (int node : scan(query, request.maxResults(), request.filter())) {
+        double score = RelevanceScore.fromCosineSimilarity(dot(query, node));
+        if (score >= request.minScore()) {
+          matches.add(new EmbeddingMatch<>(score, ids[node], null, segments[node]));
+        }
+      }
+      return new EmbeddingSearchResult<>(matches);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Must be called with the write lock held. */
+  private void insert(String id, Embedding embedding, TextSegment segment) {
+    float[] vector = normalize(embedding.vector());
+    if (dimension < 0) {
+      dimension = vector.length;
+    }
+    checkDimension(vector);
+    Integer existing = nodesById.get(id);
+    if (existing != null) {
+      removed[existing] = true;
+    }
+
+    int node = size;
+    ensureCapacity(node + 1);
+    System.arraycopy(vector, 0, vectors, node * dimension, dimension);
+    ids[node] = id;
+    segments[node] = segment;
+    nodesById.put(id, node);
+    int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    neighbors[node] = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      neighbors[node][l] = new int[1 + maxNeighbors(l)];
+    }
+    size++;
+
+    if (entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = level;
+      return;
+    }
+
+    int current = entryPoint;
+    for (int l = maxLevel; l > level; l--) {
+      current = greedyClosest(vector, current, l);
+    }
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      Candidate[] candidates = searchLayer(vector, current, efConstruction, l);
+      int[] selected = selectNeighbors(candidates, m);
+      for (int neighbor : selected) {
+        connect(node, neighbor, l);
+        connect(neighbor, node, l);
+      }
+      current = candidates[0].node;
+    }
+    if (level > maxLevel) {
+      maxLevel = level;
+      entryPoint = node;
+    }
+  }
+
+  private int[] searchGraph(float[] query, int k, int ef) {
+    int current = entryPoint;
+    for (int l = maxLevel; l > 0; l--) {
+      current = greedyClosest(query, current, l);
+    }
+    Candidate[] candidates = searchLayer(query, current, ef, 0);
+    int[] nodes = new int[Math.min(k, candidates.length)];
+    int count = 0;
+    for (Candidate candidate : candidates) {
+      if (count == nodes.length) {
+        break;
+      }
+      if (!removed[candidate.node]) {
+        nodes[count++] = candidate.node;
+      }
+    }
+    return Arrays.copyOf(nodes, count);
+  }
+
+  private int greedyClosest(float[] query, int start, int level) {
+    int current = start;
+    double currentSimilarity = dot(query, current);
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      int[] links = neighbors[current][level];
+      for (int i = 1; i <= links[0]; i++) {
+        double similarity = dot(query, links[i]);
+        if (similarity > currentSimilarity) {
+          currentSimilarity = similarity;
+          current = links[i];
+          improved = true;
+        }
+      }
+    }
+    return current;
+  }
+
+  /** The {@code ef} nodes closest to the query found from the entry node, closest first. */
+  private Candidate[] searchLayer(float[] query, int entry, int ef, int level) {
+    boolean[] visited = new boolean[size];
+    // Most similar first, and least similar first
+    PriorityQueue<Candidate> candidates =
+        new PriorityQueue<>((a, b) -> Double.compare(b.similarity, a.similarity));
+    PriorityQueue<Candidate> results =
+        new PriorityQueue<>((a, b) -> Double.compare(a.similarity, b.similarity));
+    Candidate first = new Candidate(entry, dot(query, entry));
+    visited[entry] = true;
+    candidates.add(first);
+    results.add(first);
+
+    while (!candidates.isEmpty()) {
+      Candidate closest = candidates.poll();
+      if (results.size() >= ef && closest.similarity < results.peek().similarity) {
+        break;
+      }
+      int[] links = neighbors[closest.node][level];
+      for (int i = 1; i <= links[0]; i++) {
+        int neighbor = links[i];
+        if (visited[neighbor]) {
+          continue;
+        }
+        visited[neighbor] = true;
+        double similarity = dot(query, neighbor);
+        if (results.size() < ef || similarity > results.peek().similarity) {
+          Candidate candidate = new Candidate(neighbor, similarity);
+          candidates.add(candidate);
+          results.add(candidate);
+          if (results.size() > ef) {
+            results.poll();
+          }
+        }
+      }
+    }
+
+    Candidate[] sorted = results.toArray(new Candidate[0]);
+    Arrays.sort(sorted, (a, b) -> Double.compare(b.similarity, a.similarity));
+    return sorted;
+  }
+
+  /**
+   * Picks up to {@code max} neighbors from candidates sorted closest first, skipping candidates
+   * that are closer to an already selected neighbor than to the new node, so that the links spread
+   * in different directions.
+   */
+  private int[] selectNeighbors(Candidate[] candidates, int max) {
+    int[] selected = new int[max];
+    int count = 0;
+    for (Candidate candidate : candidates) {
+      if (count == max) {
+        break;
+      }
+      boolean diverse = true;
+      for (int i = 0; i < count && diverse; i++) {
+        diverse = dot(candidate.node, selected[i]) < candidate.similarity;
+      }
+      if (diverse) {
+        selected[count++] = candidate.node;
+      }
+    }
+    // Fill up with the closest remaining candidates
+    for (int i = 0; i < candidates.length && count < max; i++) {
+      int node = candidates[i].node;
+      boolean present = false;
+      for (int j = 0; j < count && !present; j++) {
+        present = selected[j] == node;
+      }
+      if (!present) {
+        selected[count++] = node;
+      }
+    }
+    return Arrays.copyOf(selected, count);
+  }
+
+  /** Links {@code from} to {@code to}, pruning the links of {@code from} if it has too many. */
+  private void connect(int from, int to, int level) {
+    int[] links = neighbors[from][level];
+    int count = links[0];
+    if (count < links.length - 1) {
+      links[count + 1] = to;
+      links[0] = count + 1;
+      return;
+    }
+    Candidate[] candidates = new Candidate[count + 1];
+    for (int i = 0; i < count; i++) {
+      candidates[i] = new Candidate(links[i + 1], dot(from, links[i + 1]));
+    }
+    candidates[count] = new Candidate(to, dot(from, to));
+    // Drop the farthest link; the diversity heuristic is only applied to the links of new nodes
+    int farthest = count;
+    for (int i = 0; i < count; i++) {
+      if (candidates[i].similarity < candidates[farthest].similarity) {
+        farthest = i;
+      }
+    }
+    if (farthest < count) {
+      links[farthest + 1] = to;
+    }
+  }
+
+  private int[] scan(float[] query, int k, Filter filter) {
+    PriorityQueue<Candidate> results =
+        new PriorityQueue<>((a, b) -> Double.compare(a.similarity, b.similarity));
+    for (int node = 0; node < size; node++) {
+      if (removed[node]
+          || (filter != null
+              && (segments[node] == null || !filter.test(segments[node].metadata())))) {
+        continue;
+      }
+      results.add(new Candidate(node, dot(query, node)));
+      if (results.size() > k) {
+        results.poll();
+      }
+    }
+    int[] nodes = new int[results.size()];
+    for (int i = nodes.length - 1; i >= 0; i--) {
+      nodes[i] = results.poll().node;
+    }
+    return nodes;
+  }
+
+  private int maxNeighbors(int level) {
+    return level == 0 ? maxNeighborsLevel0 : m;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= ids.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, Math.max(16, ids.length * 2));
+    vectors = Arrays.copyOf(vectors, newCapacity * dimension);
+    ids = Arrays.copyOf(ids, newCapacity);
+    segments = Arrays.copyOf(segments, newCapacity);
+    removed = Arrays.copyOf(removed, newCapacity);
+    neighbors = Arrays.copyOf(neighbors, newCapacity);
+  }
+
+  private void checkDimension(float[] vector) {
+    if (vector.length != dimension) {
+      throw new IllegalArgumentException(
+          "Embedding dimension "
+              + vector.length
+              + " does not match the store dimension "
+              + dimension);
+    }
+  }
+
+  private float[] vector(int node) {
+    return Arrays.copyOfRange(vectors, node * dimension, (node + 1) * dimension);
+  }
+
+  private double dot(float[] query, int node) {
+    return dot(query, 0, vectors, node * dimension, dimension);
+  }
+
+  private double dot(int a, int b) {
+    return dot(vectors, a * dimension, vectors, b * dimension, dimension);
+  }
+
+  /** Four independent sums, which the JIT can keep in separate registers. */
+  private static double dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+    float sum0 = 0;
+    float sum1 = 0;
+    float sum2 = 0;
+    float sum3 = 0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      sum0 += a[offsetA + i] * b[offsetB + i];
+      sum1 += a[offsetA + i + 1] * b[offsetB + i + 1];
+      sum2 += a[offsetA + i + 2] * b[offsetB + i + 2];
+      sum3 += a[offsetA + i + 3] * b[offsetB + i + 3];
+    }
+    for (; i < length; i++) {
+      sum0 += a[offsetA + i] * b[offsetB + i];
+    }
+    return sum0 + sum1 + sum2 + sum3;
+  }
+
+  private static float[] normalize(float[] vector) {
+    double norm = 0;
+    for (float value : vector) {
+      norm += value * value;
+    }
+    norm = Math.sqrt(norm);
+    float[] normalized = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      normalized[i] = norm == 0 ? 0 : (float) (vector[i] / norm);
+    }
+    return normalized;
+  }
+
+  private static final class Candidate {
+    private final int node;
+    private final double similarity;
+
+    private Candidate(int node, double similarity) {
+      this.node = node;
+      this.similarity = similarity;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package org.uwdigi.rag.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Index of the column values configured in {@code FHIR_DB_TABLES}, consulted by the literal
+ * substitution before the embedding search. A value matches a literal when both are equal after
+ * lowercasing and collapsing whitespace ("HIV viral load" and "HIV Viral Load"), or, failing that,
+ * when exactly one value has a trigram Dice similarity of at least {@code
+ * app.lexical-index.min-similarity} with it ("Haemoglobin" and "Hemoglobin"). Literals containing
+ * digits are only matched exactly, so that dates and codes are never swapped for a neighbor.
+ */
+@Component
+public class LexicalIndex implements StatsProvider {
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final double minSimilarity;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, String> valuesByKey = new HashMap<>();
+  private final List<String> values = new ArrayList<>();
+  private final List<Integer> trigramCounts = new ArrayList<>();
+  private final Map<String, List<Integer>> postings = new HashMap<>();
+
+  private final AtomicLong exactHits = new AtomicLong();
+  private final AtomicLong fuzzyHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public LexicalIndex(@Value("${app.lexical-index.min-similarity:0.75}") double minSimilarity) {
+    this.minSimilarity = minSimilarity;
+  }
+
+  /** Adds the values to the index; blank and already indexed values are ignored. */
+  public void addAll(Iterable<String> newValues) {
+    lock.writeLock().lock();
+    try {
+      for (String value : newValues) {
+        if (value == null || value.isBlank()) {
+          continue;
+        }
+        String key = normalize(value);
+        if (valuesByKey.putIfAbsent(key, value) != null) {
+          continue;
+        }
+        int id = values.size();
+        values.add(value);
+        Set<String> trigrams = trigrams(key);
+        trigramCounts.add(trigrams.size());
+        for (String trigram : trigrams) {
+          postings.computeIfAbsent(trigram, t -> new ArrayList<>()).add(id);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Removes every value. */
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      valuesByKey.clear();
+      values.clear();
+      trigramCounts.clear();
+      postings.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The indexed value matching the literal, with or without its surrounding quotes, or {@code null}
+   * if there is no confident match.
+   */
+  public String lookup(String literal) {
+    String key = normalize(unquote(literal));
+    if (key.isEmpty()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      String exact = valuesByKey.get(key);
+      if (exact != null) {
+        exactHits.incrementAndGet();
+        return exact;
+      }
+      String fuzzy = hasDigit(key) ? null : closest(key);
+      (fuzzy != null ? fuzzyHits : misses).incrementAndGet();
+      return fuzzy;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return values.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "lexicalIndex";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long exact = exactHits.get();
+    long fuzzy = fuzzyHits.get();
+    long missCount = misses.get();
+    long lookups = exact + fuzzy + missCount;
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("exactHits", exact);
+    stats.put("fuzzyHits", fuzzy);
+    stats.put("misses", missCount);
+    stats.put("hitRatio", lookups == 0 ? 0.0 : (double) (exact + fuzzy) / lookups);
+    stats.put("values", size());
+    return stats;
+  }
+
+  /** Must be called with the read lock held. */
+  private String closest(String key) {
+    Set<String> trigrams = trigrams(key);
+    Map<Integer, Integer> overlaps = new HashMap<>();
+    for (String trigram : trigrams) {
+      List<Integer> ids = postings.get(trigram);
+      if (ids != null) {
+        for (Integer id : ids) {
+          overlaps.merge(id, 1, Integer::sum);
+        }
+      }
+    }
+
+    int best = -1;
+    double bestSimilarity = 0;
+    double secondSimilarity = 0;
+    for (Map.Entry<Integer, Integer> overlap : overlaps.entrySet()) {
+      double similarity =
+          2.0 * overlap.getValue() / (trigrams.size() + trigramCounts.get(overlap.getKey()));
+      if (similarity > bestSimilarity) {
+        secondSimilarity = bestSimilarity;
+        bestSimilarity = similarity;
+        best = overlap.getKey();
+      } else if (similarity > secondSimilarity) {
+        secondSimilarity = similarity;
+      }
+    }
+    // Two equally close values are ambiguous
+    if (best < 0 || bestSimilarity < minSimilarity || secondSimilarity == bestSimilarity) {
+      return null;
+    }
+    return values.get(best);
+  }
+
+  /** Lowercases the text and collapses whitespace. */
+  static String normalize(String text) {
+    return WHITESPACE.matcher(text.trim().toLowerCase(Locale.ROOT)).replaceAll(" ");
+  }
+
+  /** The trigrams of a normalized text, padded so that short words have some. */
+  static Set<String> trigrams(String key) {
+    String padded = "  " + key + " ";
+    Set<String> trigrams = new LinkedHashSet<>();
+    for (int i = 0; i + 3 <= padded.length(); i++) {
+      trigrams.add(padded.substring(i, i + 3));
+    }
+    return trigrams;
+  }
+
+  private static String unquote(String literal) {
+    if (literal.length() >= 2) {
+      char first = literal.charAt(0);
+      if ((first == '\'' || first == '"') && literal.charAt(literal.length() - 1) == first) {
+        return literal.substring(1, literal.length() - 1);
+      }
+    }
+    return literal;
+  }
+
+  private static boolean hasDigit(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      if (Character.isDigit(key.charAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
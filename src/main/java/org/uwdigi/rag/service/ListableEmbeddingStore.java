@@ -0,0 +1,15 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import java.util.Set;
+
+/**
+ * An {@link EmbeddingStore} that can list the ids it holds, so that {@link MetadataIngestion} only
+ * embeds the values that are not stored yet.
+ */
+public interface ListableEmbeddingStore extends EmbeddingStore<TextSegment> {
+
+  /** The ids of every stored embedding. */
+  Set<String> ids();
+}
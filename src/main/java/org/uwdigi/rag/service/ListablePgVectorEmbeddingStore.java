@@ -0,0 +1,90 @@
+package org.uwdigi.rag.service;
+
+import com.pgvector.PGvector;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** {@link PgVectorEmbeddingStore} that lists the ids of its table. */
+public class ListablePgVectorEmbeddingStore extends PgVectorEmbeddingStore
+    implements ListableEmbeddingStore {
+
+  private static final int FETCH_SIZE = 1000;
+
+  public ListablePgVectorEmbeddingStore(
+      String host,
+      Integer port,
+      String user,
+      String password,
+      String database,
+      String table,
+      Integer dimension) {
+    super(host, port, user, password, database, table, dimension, null, null, null, null, null);
+  }
+
+  @Override
+  public Set<String> ids() {
+    Set<String> ids = new HashSet<>();
+    try (Connection connection = getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT embedding_id FROM " + table)) {
+      while (resultSet.next()) {
+        ids.add(resultSet.getString(1));
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to list the ids of " + table, e);
+    }
+    return ids;
+  }
+
+  /**
+   * Reads every row of the table into the in-memory store without writing it back, so that the
+   * values stored by earlier runs are searchable and not embedded again.
+   *
+   * @return the number of rows read.
+   */
+  public int loadInto(HnswEmbeddingStore store) {
+    int rows = 0;
+    try (Connection connection = getConnection()) {
+      // The PostgreSQL driver only fetches in batches inside a transaction
+      connection.setAutoCommit(false);
+      try (Statement statement = connection.createStatement()) {
+        statement.setFetchSize(FETCH_SIZE);
+        try (ResultSet resultSet =
+            statement.executeQuery("SELECT embedding_id, embedding, text FROM " + table)) {
+          List<String> ids = new ArrayList<>(FETCH_SIZE);
+          List<Embedding> embeddings = new ArrayList<>(FETCH_SIZE);
+          List<TextSegment> segments = new ArrayList<>(FETCH_SIZE);
+          while (resultSet.next()) {
+            ids.add(resultSet.getString(1));
+            embeddings.add(Embedding.from(new PGvector(resultSet.getString(2)).toArray()));
+            String text = resultSet.getString(3);
+            segments.add(text != null ? TextSegment.from(text) : null);
+            if (ids.size() == FETCH_SIZE) {
+              store.load(ids, embeddings, segments);
+              rows += ids.size();
+              ids.clear();
+              embeddings.clear();
+              segments.clear();
+            }
+          }
+          store.load(ids, embeddings, segments);
+          rows += ids.size();
+        }
+      } finally {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to load the embeddings of " + table, e);
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,453 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.config.FhirDbConfig;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Loads the values of the columns configured in {@code FHIR_DB_TABLES} into the embedding store and
+ * the {@link LexicalIndex}, for the literal substitution. <br>
+ * Each value is stored under an id derived from its text, so ingesting the same values again embeds
+ * nothing when the store is a {@link ListableEmbeddingStore}, and overwrites the same rows instead
+ * of adding duplicates otherwise. With {@code app.ingestion.remove-stale}, stored values that are
+ * no longer in the tables, including those stored under random ids by earlier versions, are
+ * removed; not after a run that failed to read a column, as its values would be taken for stale.
+ * <br>
+ * Ingestion is a pipeline: {@code read-threads} workers stream {@code SELECT DISTINCT} of one
+ * column at a time and hand the values that need embedding to {@code embed-threads} workers in
+ * batches of {@code batch-size}, which embed and store them. At most {@code queue-capacity} batches
+ * wait between the two, so memory does not grow with the size of the tables. <br>
+ * At startup, ingestion runs in the background once the application is ready, so that startup time
+ * does not depend on the number of values. Until the first ingestion completes, or finds values
+ * already stored by earlier runs or restored from a snapshot, {@link #isReady()} is false and the
+ * literal substitution only uses the lexical index, which fills up as values are read. A failed
+ * background ingestion is retried after {@code retry-delay}, twice as long after each further
+ * failure, up to an hour. The state and progress are reported under "ingestion" in {@code
+ * /api/stats}. <br>
+ * When the embedding store is a {@link HnswEmbeddingStore}, it is saved to the {@link
+ * VectorSnapshot} after every ingestion that changed it.
+ */
+@Component
+public class MetadataIngestion implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(MetadataIngestion.class);
+  private static final List<String> END = List.of();
+  private static final Duration MAX_RETRY_DELAY = Duration.ofHours(1);
+
+  public enum State {
+    PENDING,
+    RUNNING,
+    READY,
+    FAILED
+  }
+
+  private final DataSource dataSource;
+  private final FhirDbConfig fhirDbConfig;
+  private final EmbeddingModel embeddingModel;
+  private final EmbeddingStore<TextSegment> embeddingStore;
+  private final LexicalIndex lexicalIndex;
+  private final VectorSnapshot vectorSnapshot;
+  private final boolean removeStale;
+  private final int batchSize;
+  private final int readThreads;
+  private final int embedThreads;
+  private final int fetchSize;
+  private final int queueCapacity;
+  private final Duration retryDelay;
+
+  private final ReentrantLock ingestLock = new ReentrantLock();
+  private volatile State state = State.PENDING;
+  private volatile boolean ready;
+  private volatile Run current;
+  private volatile Map<String, Object> lastRun = Map.of();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  public MetadataIngestion(
+      DataSource dataSource,
+      FhirDbConfig fhirDbConfig,
+      @Qualifier("onnxEmbeddingModel") EmbeddingModel embeddingModel,
+      EmbeddingStore<TextSegment> embeddingStore,
+      LexicalIndex lexicalIndex,
+      VectorSnapshot vectorSnapshot,
+      @Value("${app.ingestion.remove-stale:false}") boolean removeStale,
+      @Value("${app.ingestion.batch-size:64}") int batchSize,
+      @Value("${app.ingestion.read-threads:4}") int readThreads,
+      @Value("${app.ingestion.embed-threads:2}") int embedThreads,
+      @Value("${app.ingestion.fetch-size:1000}") int fetchSize,
+      @Value("${app.ingestion.queue-capacity:8}") int queueCapacity,
+      @Value("${app.ingestion.retry-delay:PT1M}") Duration retryDelay) {
+    this.dataSource = dataSource;
+    this.fhirDbConfig = fhirDbConfig;
+    this.embeddingModel = embeddingModel;
+    this.embeddingStore = embeddingStore;
+    this.lexicalIndex = lexicalIndex;
+    this.vectorSnapshot = vectorSnapshot;
+    this.removeStale = removeStale;
+    this.batchSize = Math.max(1, batchSize);
+    this.readThreads = Math.max(1, readThreads);
+    this.embedThreads = Math.max(1, embedThreads);
+    this.fetchSize = fetchSize;
+    this.queueCapacity = Math.max(1, queueCapacity);
+    this.retryDelay = retryDelay;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void onApplicationReady() {
+    startWithRetry();
+  }
+
+  /**
+   * Runs {@link #ingest()} on a background thread until it succeeds, waiting {@code retry-delay}
+   * after the first failure and twice as long after each further one. The future completes with the
+   * first successful ingestion, or fails with the first failure if retries are disabled.
+   */
+  public CompletableFuture<Void> startWithRetry() {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    attempt(done, retryDelay);
+    return done;
+  }
+
+  private void attempt(CompletableFuture<Void> done, Duration delay) {
+    start()
+        .whenComplete(
+            (ignored, failure) -> {
+              if (failure == null) {
+                done.complete(null);
+              } else if (retryDelay.isZero() || retryDelay.isNegative()) {
+                done.completeExceptionally(failure);
+              } else {
+                log.warn("Retrying metadata ingestion in {}", delay);
+                Duration next = delay.multipliedBy(2);
+                Executor delayed =
+                    CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS);
+                delayed.execute(
+                    () ->
+                        attempt(
+                            done, next.compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : next));
+              }
+            });
+  }
+
+  /** Runs {@link #ingest()} on a background thread; the future fails if ingestion fails. */
+  public CompletableFuture<Void> start() {
+    return CompletableFuture.runAsync(
+        this::ingest, task -> Thread.ofPlatform().name("metadata-ingestion").daemon().start(task));
+  }
+
+  /**
+   * Whether an ingestion has completed, so that the embedding store holds every value. Stays true
+   * while later ingestions run.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /** Embeds the values of the configured columns that are not stored yet. */
+  public void ingest() {
+    ingestLock.lock();
+    try {
+      state = State.RUNNING;
+      boolean changed = runIngestion();
+      ready = true;
+      state = State.READY;
+      if (changed
+          && vectorSnapshot != null
+          && embeddingStore instanceof HnswEmbeddingStore hnswEmbeddingStore) {
+        vectorSnapshot.save(hnswEmbeddingStore);
+      }
+    } catch (RuntimeException e) {
+      state = State.FAILED;
+      failures.incrementAndGet();
+      log.error("Failed to ingest metadata values: {}", e.getMessage(), e);
+      throw e;
+    } finally {
+      current = null;
+      ingestLock.unlock();
+    }
+  }
+
+  /** Returns whether the embedding store changed. */
+  private boolean runIngestion() {
+    long start = System.nanoTime();
+    Set<String> storedIds =
+        embeddingStore instanceof ListableEmbeddingStore listable
+            ? listable.ids()
+            : new HashSet<>();
+    if (!storedIds.isEmpty()) {
+      // Values stored by an earlier run or restored from a snapshot are already searchable
+      ready = true;
+    }
+    List<String[]> columns = new ArrayList<>();
+    Map<String, String> tables = fhirDbConfig != null ? fhirDbConfig.getTables() : Map.of();
+    for (Map.Entry<String, String> entry : tables.entrySet()) {
+      for (String column : entry.getValue().trim().split("\\s*,\\s*")) {
+        if (!column.isEmpty()) {
+          columns.add(new String[] {entry.getKey(), column});
+        }
+      }
+    }
+    Run run = new Run(storedIds, columns.size());
+    current = run;
+
+    ExecutorService embedders = Executors.newFixedThreadPool(embedThreads);
+    ExecutorService readers = Executors.newFixedThreadPool(readThreads);
+    try {
+      List<Future<?>> embedding = new ArrayList<>();
+      for (int i = 0; i < embedThreads; i++) {
+        embedding.add(embedders.submit(run::embed));
+      }
+      List<Future<?>> reading = new ArrayList<>();
+      for (String[] column : columns) {
+        reading.add(readers.submit(() -> run.read(column[0], column[1])));
+      }
+      awaitAll(reading);
+      for (int i = 0; i < embedThreads; i++) {
+        run.batches.put(END);
+      }
+      awaitAll(embedding);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while ingesting metadata values", e);
+    } finally {
+      readers.shutdownNow();
+      embedders.shutdownNow();
+    }
+    if (run.failure.get() != null) {
+      throw new IllegalStateException("Failed to embed metadata values", run.failure.get());
+    }
+
+    List<String> failedColumns = new ArrayList<>(run.failedColumns);
+    int removed = 0;
+    if (removeStale && !failedColumns.isEmpty()) {
+      log.warn(
+          "Not removing stale metadata values, as {} columns could not be read: {}",
+          failedColumns.size(),
+          failedColumns);
+    } else if (removeStale) {
+      for (String value : run.values) {
+        storedIds.remove(contentId(value));
+      }
+      if (!storedIds.isEmpty()) {
+        embeddingStore.removeAll(storedIds);
+        removed = storedIds.size();
+      }
+    }
+
+    int values = run.values.size();
+    int embedded = run.embedded.get();
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    log.info(
+        "Ingested {} metadata values in {} ms: {} embedded in {} batches, {} already stored, {}"
+            + " removed",
+        values,
+        millis,
+        embedded,
+        run.batchCount.get(),
+        values - embedded,
+        removed);
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("values", values);
+    stats.put("embedded", embedded);
+    stats.put("batches", run.batchCount.get());
+    stats.put("alreadyStored", values - embedded);
+    stats.put("removed", removed);
+    stats.put("failedColumns", failedColumns);
+    stats.put("durationMillis", millis);
+    lastRun = stats;
+    return embedded > 0 || removed > 0;
+  }
+
+  /** The state shared by the readers and embedders of one ingestion. */
+  private final class Run {
+
+    final Set<String> storedIds;
+    final int columns;
+    final AtomicInteger columnsRead = new AtomicInteger();
+    final Set<String> values = ConcurrentHashMap.newKeySet();
+    final BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(queueCapacity);
+    final AtomicInteger embedded = new AtomicInteger();
+    final AtomicInteger batchCount = new AtomicInteger();
+    final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    final Set<String> failedColumns = ConcurrentHashMap.newKeySet();
+
+    Run(Set<String> storedIds, int columns) {
+      this.storedIds = storedIds;
+      this.columns = columns;
+    }
+
+    /** Streams the distinct values of one column, queueing the new ones in batches. */
+    void read(String table, String column) {
+      String query = "SELECT DISTINCT " + column + " FROM " + table;
+      List<String> found = new ArrayList<>(batchSize);
+      List<String> batch = new ArrayList<>(batchSize);
+      try (Connection connection = dataSource.getConnection()) {
+        // The PostgreSQL driver only streams by fetch size inside a transaction
+        boolean cursor =
+            connection.getAutoCommit()
+                && connection.getMetaData().getDatabaseProductName().contains("PostgreSQL");
+        if (cursor) {
+          connection.setAutoCommit(false);
+        }
+        try (Statement statement = connection.createStatement()) {
+          statement.setFetchSize(fetchSize);
+          try (ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+              Object value = resultSet.getObject(1);
+              if (value == null) {
+                continue;
+              }
+              for (String line : value.toString().split("\n")) {
+                if (line.isBlank() || !values.add(line)) {
+                  continue;
+                }
+                log.debug("Metadata for embedding: {}", line);
+                found.add(line);
+                if (!storedIds.contains(contentId(line))) {
+                  batch.add(line);
+                }
+                if (found.size() == batchSize) {
+                  lexicalIndex.addAll(found);
+                  found = new ArrayList<>(batchSize);
+                }
+                if (batch.size() == batchSize) {
+                  batches.put(batch);
+                  batch = new ArrayList<>(batchSize);
+                }
+              }
+            }
+          }
+        } finally {
+          if (cursor) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+          }
+        }
+      } catch (SQLException e) {
+        log.error("Error executing query: {}", query, e);
+        failedColumns.add(table + "." + column);
+      } catch (InterruptedException e) {
+        failedColumns.add(table + "." + column);
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        columnsRead.incrementAndGet();
+      }
+      lexicalIndex.addAll(found);
+      if (!batch.isEmpty()) {
+        try {
+          batches.put(batch);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /** Embeds and stores queued batches until the end marker. */
+    void embed() {
+      try {
+        for (List<String> batch = batches.take(); batch != END; batch = batches.take()) {
+          // After a failure, keep draining so the readers are not blocked
+          if (failure.get() != null) {
+            continue;
+          }
+          try {
+            List<String> ids = new ArrayList<>(batch.size());
+            List<TextSegment> segments = new ArrayList<>(batch.size());
+            for (String value : batch) {
+              ids.add(contentId(value));
+              segments.add(TextSegment.from(value));
+            }
+            List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+            embeddingStore.addAll(ids, embeddings, segments);
+            embedded.addAndGet(batch.size());
+            batchCount.incrementAndGet();
+          } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Metadata ingestion worker failed", e.getCause());
+      }
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "ingestion";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("state", state);
+    stats.put("ready", ready);
+    stats.put("failures", failures.get());
+    Run run = current;
+    if (run != null) {
+      stats.put("columnsRead", run.columnsRead.get());
+      stats.put("columns", run.columns);
+      stats.put("valuesRead", run.values.size());
+      stats.put("embedded", run.embedded.get());
+    }
+    if (!lastRun.isEmpty()) {
+      stats.put("lastRun", lastRun);
+    }
+    return stats;
+  }
+
+  /** The id a value is stored under: a name-based UUID, as pgvector ids are UUIDs. */
+  static String contentId(String value) {
+    return UUID.nameUUIDFromBytes(value.getBytes(StandardCharsets.UTF_8)).toString();
+  }
+}
@@ -1,43 +1,140 @@
 package org.uwdigi.rag.service;
 
+import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
 import dev.langchain4j.model.anthropic.AnthropicChatModel;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
 import dev.langchain4j.model.localai.LocalAiChatModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
+import java.net.http.HttpClient;
 import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.uwdigi.rag.config.ModelConfig;
+import org.uwdigi.rag.service.Bulkheads.Backend;
 
 /**
- * Factory service class for running the appropriate function based on the currently active model
- * type.
+ * Registry of chat model clients. Each backend is built once, on first use, and shared by all
+ * requests afterwards, so requests reuse its HTTP client and keep-alive connections instead of
+ * paying for client construction and TLS handshakes every time. <br>
+ * Clients are keyed by model name and the {@link ModelConfig} settings they were built with; if
+ * those settings change, the next request transparently gets a new client. {@link #reload(String)}
+ * drops a client explicitly. <br>
+ * Gemini and Ollama use the JDK {@link HttpClient}, whose keep-alive pool can only be sized for the
+ * whole JVM, with the {@code jdk.httpclient.connectionPoolSize} and {@code
+ * jdk.httpclient.keepalive.timeout} system properties (see application.properties); the client has
+ * no per-instance connection limit. The connections a backend opens are bounded by its bulkhead
+ * instead, since each call holds at most one. With {@code app.models.http.threads} above 0, the JDK
+ * clients of each backend run their asynchronous work on a fixed pool of that many threads of their
+ * own, so that a slow backend cannot tie up the threads of another. OpenAI and Anthropic keep their
+ * own OkHttp pool per client, which is reused now that the client is shared. <br>
+ * Blocking clients are wrapped in the {@link Bulkheads} of their backend: Ollama and LocalAI count
+ * as the local {@code OLLAMA} backend, all others as {@code CLOUD_LLM}.
  */
 @Service
 public class ModelFactory {
 
   private static final Logger log = LoggerFactory.getLogger(ModelFactory.class);
   private final ModelConfig modelConfig;
+  private final Bulkheads bulkheads;
+  private final Duration connectTimeout;
+  private final int httpThreads;
+  private final ConcurrentMap<Backend, ExecutorService> httpExecutors = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, RegisteredModel<ChatLanguageModel>> models =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, RegisteredModel<StreamingChatLanguageModel>> streamingModels =
+      new ConcurrentHashMap<>();
 
-  public ModelFactory(ModelConfig modelConfig) {
+  @Autowired
+  public ModelFactory(
+      ModelConfig modelConfig,
+      Bulkheads bulkheads,
+      @Value("${app.models.http.connect-timeout:PT10S}") Duration connectTimeout,
+      @Value("${app.models.http.threads:0}") int httpThreads) {
     this.modelConfig = modelConfig;
+    this.bulkheads = bulkheads;
+    this.connectTimeout = connectTimeout;
+    this.httpThreads = httpThreads;
   }
 
-  /** Creates an instance of ChatLanguageModel based on the currently active model type. */
-  public ChatLanguageModel createModel(String modelName) {
-    // log.info("Creating model of type: {}", modelConfig.getActiveModel());
+  public ModelFactory(ModelConfig modelConfig, Bulkheads bulkheads, Duration connectTimeout) {
+    this(modelConfig, bulkheads, connectTimeout, 0);
+  }
+
+  /**
+   * Returns the shared instance of the ChatLanguageModel for the given model type, creating it on
+   * first use or when its settings have changed.
+   */
+  public ChatLanguageModel getModel(String modelName) {
+    return registered(models, normalize(modelName), this::createModel);
+  }
+
+  /**
+   * Returns the shared streaming client of the local Ollama model, creating it on first use or when
+   * its settings have changed.
+   */
+  public StreamingChatLanguageModel getOllamaStreamingModel() {
+    return registered(streamingModels, "OLLAMA", type -> createOllamaStreamingModel());
+  }
+
+  private <T> T registered(
+      ConcurrentMap<String, RegisteredModel<T>> registry,
+      String type,
+      Function<String, T> factory) {
+    List<String> settings = settingsOf(type);
+    RegisteredModel<T> existing = registry.get(type);
+    if (existing != null && existing.settings.equals(settings)) {
+      return existing.model;
+    }
+    if (existing != null) {
+      log.info("Settings of {} changed, rebuilding client", type);
+    }
+    // Built outside the map, which would otherwise block other lookups while the client connects;
+    // if concurrent callers build one each, the first one registered is kept
+    RegisteredModel<T> built = new RegisteredModel<>(settings, factory.apply(type));
+    return registry.compute(
+            type,
+            (key, current) ->
+                current != null && current.settings.equals(settings) ? current : built)
+        .model;
+  }
 
+  /** Drops the cached client of the given model type; the next request builds a new one. */
+  public void reload(String modelName) {
+    String type = normalize(modelName);
+    streamingModels.remove(type);
+    if (models.remove(type) != null) {
+      log.info("Client of {} will be rebuilt on next use", type);
+    }
+  }
+
+  /** Drops all cached clients. */
+  public void reloadAll() {
+    models.clear();
+    streamingModels.clear();
+  }
+
+  private ChatLanguageModel createModel(String type) {
     try {
-      return switch (modelName) {
-        case "GEMINI" -> createGeminiModel();
-        case "CLAUDE" -> createClaudeModel();
-        case "OPENAI" -> createOpenAiChatModel();
-        case "OLLAMA" -> createOllamaModel();
-        case "LOCAL_AI" -> createLocalAiModel();
-        default -> createGeminiModel();
+      return switch (type) {
+        case "CLAUDE" -> bulkheads.decorate(createClaudeModel(), Backend.CLOUD_LLM);
+        case "OPENAI" -> bulkheads.decorate(createOpenAiChatModel(), Backend.CLOUD_LLM);
+        case "OLLAMA" -> bulkheads.decorate(createOllamaModel(), Backend.OLLAMA);
+        case "LOCAL_AI" -> bulkheads.decorate(createLocalAiModel(), Backend.OLLAMA);
+        default -> bulkheads.decorate(createGeminiModel(), Backend.CLOUD_LLM);
       };
     } catch (Exception e) {
       log.error("Failed to create model: {}", e.getMessage(), e);
@@ -45,6 +142,61 @@ public class ModelFactory {
     }
   }
 
+  private static String normalize(String modelName) {
+    if (modelName == null) {
+      return "GEMINI";
+    }
+    return switch (modelName) {
+      case "CLAUDE", "OPENAI", "OLLAMA", "LOCAL_AI" -> modelName;
+      default -> "GEMINI";
+    };
+  }
+
+  /** The configuration values a client of the given type is built from. */
+  private List<String> settingsOf(String type) {
+    return switch (type) {
+      case "CLAUDE" -> List.of(String.valueOf(modelConfig.getClaudeApiKey()));
+      case "OPENAI" -> List.of(String.valueOf(modelConfig.getOpenaiApiKey()));
+      case "OLLAMA" ->
+          List.of(
+              String.valueOf(modelConfig.getOllamaBaseUrl()),
+              String.valueOf(modelConfig.getOllamaModelName()));
+      case "LOCAL_AI" ->
+          List.of(
+              String.valueOf(modelConfig.getLocalAiBaseUrl()),
+              String.valueOf(modelConfig.getLocalAiModelName()));
+      default -> List.of(String.valueOf(modelConfig.getGeminiApiKey()));
+    };
+  }
+
+  private JdkHttpClientBuilder httpClientBuilder(Backend backend) {
+    HttpClient.Builder builder = HttpClient.newBuilder().connectTimeout(connectTimeout);
+    ExecutorService executor = httpExecutor(backend);
+    if (executor != null) {
+      builder.executor(executor);
+    }
+    return new JdkHttpClientBuilder().httpClientBuilder(builder);
+  }
+
+  /**
+   * The executor shared by the JDK HTTP clients of the backend, or {@code null} for the default
+   * executor of each client.
+   */
+  ExecutorService httpExecutor(Backend backend) {
+    if (httpThreads <= 0) {
+      return null;
+    }
+    return httpExecutors.computeIfAbsent(
+        backend,
+        key ->
+            Executors.newFixedThreadPool(
+                httpThreads,
+                Thread.ofPlatform()
+                    .name("http-" + key.name().toLowerCase(Locale.ROOT) + "-", 0)
+                    .daemon()
+                    .factory()));
+  }
+
   private ChatLanguageModel createGeminiModel() {
     log.info("Initializing Gemini Chat Model...");
     return GoogleAiGeminiChatModel.builder()
@@ -78,6 +230,7 @@ public class ModelFactory {
   private ChatLanguageModel createOllamaModel() {
     log.info("Initializing Ollama Chat Model...");
     return OllamaChatModel.builder()
+        .httpClientBuilder(httpClientBuilder(Backend.OLLAMA))
         .baseUrl(modelConfig.getOllamaBaseUrl())
         .modelName(modelConfig.getOllamaModelName())
         .logRequests(true)
@@ -86,6 +239,23 @@ public class ModelFactory {
         .build();
   }
 
+  private StreamingChatLanguageModel createOllamaStreamingModel() {
+    log.info("Initializing Ollama Streaming Chat Model...");
+    try {
+      return OllamaStreamingChatModel.builder()
+          .httpClientBuilder(httpClientBuilder(Backend.OLLAMA))
+          .baseUrl(modelConfig.getOllamaBaseUrl())
+          .modelName(modelConfig.getOllamaModelName())
+          .logRequests(true)
+          .logResponses(true)
+          .timeout(Duration.ofMinutes(5))
+          .build();
+    } catch (Exception e) {
+      log.error("Failed to create model: {}", e.getMessage(), e);
+      throw new ModelInitializationException("Failed to initialize model", e);
+    }
+  }
+
   private ChatLanguageModel createLocalAiModel() {
     log.info("Initializing Local AI Chat Model...");
     return LocalAiChatModel.builder()
@@ -97,6 +267,16 @@ public class ModelFactory {
         .timeout(Duration.ofMinutes(5))
         .build();
   }
+
+  private static final class RegisteredModel<T> {
+    private final List<String> settings;
+    private final T model;
+
+    private RegisteredModel(List<String> settings, T model) {
+      this.settings = settings;
+      this.model = model;
+    }
+  }
 }
 
 /** Custom exception for model initialization errors */
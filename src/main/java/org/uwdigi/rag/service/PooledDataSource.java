@@ -0,0 +1,109 @@
+package org.uwdigi.rag.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Connection pool of the FHIR database that reports how busy it is: the active and idle
+ * connections, the requests waiting for one, and how long {@link #getConnection()} waited, so that
+ * the pool can be sized against the limits of the database (e.g. the sessions of a HiveServer2).
+ * <br>
+ * Connections are validated with the query suited to the database of the URL; see {@link
+ * #validationQuery(String)}.
+ */
+public class PooledDataSource extends BasicDataSource implements StatsProvider {
+
+  private final AtomicLong acquisitions = new AtomicLong();
+  private final AtomicLong failedAcquisitions = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  public PooledDataSource(String url, String username, String password, String driverClassName) {
+    setUrl(url);
+    setUsername(username);
+    setPassword(password);
+    setDriverClassName(driverClassName);
+    setValidationQuery(validationQuery(url));
+    connectionProperties(url).forEach(this::addConnectionProperty);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      Connection connection = super.getConnection();
+      acquisitions.incrementAndGet();
+      return connection;
+    } catch (SQLException e) {
+      failedAcquisitions.incrementAndGet();
+      throw e;
+    } finally {
+      long waited = System.nanoTime() - start;
+      waitNanos.addAndGet(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "connectionPool";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long acquired = acquisitions.get();
+    long failed = failedAcquisitions.get();
+    GenericObjectPool<PoolableConnection> pool = getConnectionPool();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("active", getNumActive());
+    stats.put("idle", getNumIdle());
+    stats.put("maxTotal", getMaxTotal());
+    stats.put("waiting", pool != null ? pool.getNumWaiters() : 0);
+    stats.put("acquisitions", acquired);
+    stats.put("failedAcquisitions", failed);
+    stats.put(
+        "averageWaitMillis",
+        acquired + failed == 0 ? 0.0 : waitNanos.get() / 1e6 / (acquired + failed));
+    stats.put("maxWaitMillis", maxWaitNanos.get() / 1_000_000);
+    stats.put("created", pool != null ? pool.getCreatedCount() : 0);
+    stats.put("evicted", pool != null ? pool.getDestroyedByEvictorCount() : 0);
+    stats.put("invalidated", pool != null ? pool.getDestroyedByBorrowValidationCount() : 0);
+    return stats;
+  }
+
+  /**
+   * The query validating a pooled connection of the database at the URL, or {@code null} to use
+   * {@link Connection#isValid(int)}. MySQL Connector/J answers queries starting with a {@code ping}
+   * comment with a protocol ping instead of running them; the MariaDB and PostgreSQL drivers
+   * implement {@code isValid} with a ping and an empty query; Hive and Spark run {@code SELECT 1},
+   * which they answer without launching a job.
+   */
+  public static String validationQuery(String url) {
+    if (url.contains("mysql")) {
+      return "/* ping */ SELECT 1";
+    } else if (url.contains("hive") || url.contains("spark")) {
+      return "SELECT 1";
+    }
+    return null;
+  }
+
+  /**
+   * The driver properties to add for the database at the URL. MySQL Connector/J reads the whole
+   * result of a query into memory unless {@code useCursorFetch} is set, which makes it fetch {@link
+   * java.sql.Statement#setFetchSize(int)} rows at a time like the other drivers; a value in the URL
+   * is kept.
+   */
+  public static Map<String, String> connectionProperties(String url) {
+    if (url.contains("mysql") && !url.contains("useCursorFetch")) {
+      return Map.of("useCursorFetch", "true");
+    }
+    return Map.of();
+  }
+}
@@ -0,0 +1,293 @@
+package org.uwdigi.rag.service;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Asks the database for its plan of a generated query before running it, and stops the queries it
+ * expects to handle more than {@code app.sql.cost-gate.max-estimated-rows} rows. The estimate is
+ * the largest number of rows any step of the plan handles:
+ *
+ * <ul>
+ *   <li>MySQL and MariaDB: the rows examined by the joins of the {@code EXPLAIN} table, i.e. the
+ *       product of the {@code rows} of each table and the {@code filtered} share of the ones
+ *       before;
+ *   <li>PostgreSQL: the largest {@code rows=} of the {@code EXPLAIN} plan;
+ *   <li>Hive: the largest {@code Num rows} of the {@code EXPLAIN} operator statistics;
+ *   <li>Spark: the largest {@code rowCount} of {@code EXPLAIN COST}.
+ * </ul>
+ *
+ * With {@code app.sql.cost-gate.action=reject} an expensive query fails with a {@link
+ * QueryTooExpensiveException}, which sends it back to the model to add filters or aggregation; with
+ * {@code limit} it runs with a {@code LIMIT} of {@code app.sql.cost-gate.limit} rows, which bounds
+ * what it returns and, for plans that stream (scans and joins without sorting or aggregation), what
+ * it reads. A query the database cannot explain, or explains without row estimates (e.g. tables
+ * without statistics), runs as is. Every decision is logged with its estimate.
+ */
+@Component
+public class QueryCostGate implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(QueryCostGate.class);
+
+  static final Pattern POSTGRESQL_ROWS = Pattern.compile("\\brows=(\\d+)");
+  static final Pattern HIVE_ROWS = Pattern.compile("\\bNum rows: (\\d+)");
+  static final Pattern SPARK_ROWS = Pattern.compile("\\browCount=([0-9.]+(?:E[+-]?\\d+)?)");
+
+  /** What happens to a query estimated above the threshold. */
+  public enum Action {
+    REJECT,
+    LIMIT;
+
+    static Action from(String value) {
+      return value != null && value.trim().equalsIgnoreCase("limit") ? LIMIT : REJECT;
+    }
+  }
+
+  /**
+   * The outcome of the gate for a query.
+   *
+   * @param sql The query to run, with a {@code LIMIT} if the gate added one.
+   * @param estimatedRows The estimate of the database, or -1 if there is none.
+   * @param limited Whether the query was limited to {@code app.sql.cost-gate.limit} rows.
+   */
+  public record Decision(String sql, long estimatedRows, boolean limited) {}
+
+  private final long maxEstimatedRows;
+  private final Action action;
+  private final int limit;
+
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong unknown = new AtomicLong();
+  private final AtomicLong limitedCount = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong largestEstimate = new AtomicLong();
+
+  public QueryCostGate(
+      @Value("${app.sql.cost-gate.max-estimated-rows:50000000}") long maxEstimatedRows,
+      @Value("${app.sql.cost-gate.action:reject}") String action,
+      @Value("${app.sql.cost-gate.limit:1000}") int limit) {
+    this.maxEstimatedRows = maxEstimatedRows;
+    this.action = Action.from(action);
+    this.limit = Math.max(1, limit);
+  }
+
+  /**
+   * Explains the query on the statement and decides whether and how it runs.
+   *
+   * @param sqlDialect The database product name, e.g. "MySQL" or "Apache Hive".
+   * @throws QueryTooExpensiveException if the query is rejected.
+   */
+  public Decision check(Statement statement, String sqlDialect, String sqlQuery)
+      throws SQLException {
+    if (maxEstimatedRows <= 0) {
+      return new Decision(sqlQuery, -1, false);
+    }
+    checked.incrementAndGet();
+    long estimate = estimate(statement, sqlDialect, sqlQuery);
+    if (estimate < 0) {
+      unknown.incrementAndGet();
+      log.debug("Cost gate: no row estimate, running the query as is: {}", sqlQuery);
+      return new Decision(sqlQuery, -1, false);
+    }
+    largestEstimate.accumulateAndGet(estimate, Math::max);
+    if (estimate <= maxEstimatedRows) {
+      log.debug(
+          "Cost gate: accepted, about {} rows (threshold {}): {}",
+          estimate,
+          maxEstimatedRows,
+          sqlQuery);
+      return new Decision(sqlQuery, estimate, false);
+    }
+    if (action == Action.LIMIT) {
+      limitedCount.incrementAndGet();
+      String limitedQuery = withLimit(sqlQuery, limit);
+      log.info(
+          "Cost gate: limited to {} rows, about {} rows (threshold {}): {}",
+          limit,
+          estimate,
+          maxEstimatedRows,
+          sqlQuery);
+      return new Decision(limitedQuery, estimate, true);
+    }
+    rejected.incrementAndGet();
+    log.info(
+        "Cost gate: rejected, about {} rows (threshold {}): {}",
+        estimate,
+        maxEstimatedRows,
+        sqlQuery);
+    throw new QueryTooExpensiveException(estimate, maxEstimatedRows);
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  @Override
+  public String getStatsName() {
+    return "costGate";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("checked", checked.get());
+    stats.put("withoutEstimate", unknown.get());
+    stats.put("limited", limitedCount.get());
+    stats.put("rejected", rejected.get());
+    stats.put("largestEstimate", largestEstimate.get());
+    stats.put("maxEstimatedRows", maxEstimatedRows);
+    stats.put("action", action.name().toLowerCase(Locale.ROOT));
+    return stats;
+  }
+
+  /** The row estimate of the database for the query, or -1 if it has none. */
+  private long estimate(Statement statement, String sqlDialect, String sqlQuery)
+      throws SQLException {
+    String dialect = sqlDialect != null ? sqlDialect.toLowerCase(Locale.ROOT) : "";
+    String query = stripSemicolon(sqlQuery);
+    try {
+      if (dialect.contains("mysql") || dialect.contains("mariadb")) {
+        try (ResultSet plan = statement.executeQuery("EXPLAIN " + query)) {
+          return examinedRows(plan);
+        }
+      } else if (dialect.contains("postgresql")) {
+        return largest(POSTGRESQL_ROWS, planLines(statement, "EXPLAIN " + query));
+      } else if (dialect.contains("hive")) {
+        return largest(HIVE_ROWS, planLines(statement, "EXPLAIN " + query));
+      } else if (dialect.contains("spark")) {
+        return largest(SPARK_ROWS, planLines(statement, "EXPLAIN COST " + query));
+      }
+    } catch (SQLException e) {
+      if (e.getSQLState() != null && e.getSQLState().startsWith("42")) {
+        // A syntax or semantic error, which running the query would report as well; running it
+        // after a failed EXPLAIN in a PostgreSQL transaction would only report the abort
+        throw e;
+      }
+      log.debug("Cost gate: could not explain the query: {}", e.getMessage());
+    }
+    return -1;
+  }
+
+  /**
+   * The rows examined by the nested-loop joins of a MySQL or MariaDB {@code EXPLAIN} table: the
+   * rows of each table are multiplied by those joined before it in the same {@code SELECT} (same
+   * {@code id}), and the largest product of any {@code SELECT} is returned.
+   */
+  static long examinedRows(ResultSet plan) throws SQLException {
+    ResultSetMetaData metaData = plan.getMetaData();
+    int rowsColumn = -1;
+    int filteredColumn = -1;
+    int idColumn = -1;
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      String name = metaData.getColumnLabel(i);
+      if ("id".equalsIgnoreCase(name)) {
+        idColumn = i;
+      } else if ("rows".equalsIgnoreCase(name)) {
+        rowsColumn = i;
+      } else if ("filtered".equalsIgnoreCase(name)) {
+        filteredColumn = i;
+      }
+    }
+    if (rowsColumn < 0) {
+      return -1;
+    }
+    double joined = 1;
+    double largest = -1;
+    String selectId = null;
+    while (plan.next()) {
+      if (idColumn > 0) {
+        String id = plan.getString(idColumn);
+        if (!Objects.equals(id, selectId)) {
+          // A subquery or UNION part, joined separately
+          selectId = id;
+          joined = 1;
+        }
+      }
+      double rows = plan.getDouble(rowsColumn);
+      if (plan.wasNull()) {
+        continue;
+      }
+      double examined = joined * rows;
+      largest = Math.max(largest, examined);
+      double filtered = 100;
+      if (filteredColumn > 0) {
+        double value = plan.getDouble(filteredColumn);
+        if (!plan.wasNull()) {
+          filtered = value;
+        }
+      }
+      joined = examined * filtered / 100;
+    }
+    return largest < 0 ? -1 : (long) Math.min(largest, Long.MAX_VALUE);
+  }
+
+  /** The largest number captured by the pattern in the lines, or -1 if it matches none. */
+  static long largest(Pattern pattern, List<String> lines) {
+    double largest = -1;
+    for (String line : lines) {
+      Matcher matcher = pattern.matcher(line);
+      while (matcher.find()) {
+        largest = Math.max(largest, Double.parseDouble(matcher.group(1)));
+      }
+    }
+    return largest < 0 ? -1 : (long) Math.min(largest, Long.MAX_VALUE);
+  }
+
+  /**
+   * The query with a {@code LIMIT} of at most {@code limit} rows; see {@link
+   * SqlQueryParser#withLimit(String, long)}.
+   */
+  static String withLimit(String sqlQuery, int limit) {
+    return SqlQueryParser.withLimit(stripSemicolon(sqlQuery), limit);
+  }
+
+  private static List<String> planLines(Statement statement, String explain) throws SQLException {
+    List<String> lines = new ArrayList<>();
+    try (ResultSet plan = statement.executeQuery(explain)) {
+      int columns = plan.getMetaData().getColumnCount();
+      while (plan.next()) {
+        for (int i = 1; i <= columns; i++) {
+          String value = plan.getString(i);
+          if (value != null) {
+            lines.add(value);
+          }
+        }
+      }
+    }
+    return lines;
+  }
+
+  private static String stripSemicolon(String sqlQuery) {
+    String query = sqlQuery.strip();
+    return query.endsWith(";") ? query.substring(0, query.length() - 1).strip() : query;
+  }
+
+  /** Thrown when the database expects a generated query to handle too many rows. */
+  public static class QueryTooExpensiveException extends SQLException {
+    public QueryTooExpensiveException(long estimatedRows, long maxEstimatedRows) {
+      super(
+          "The query is too expensive: the database estimates it handles about "
+              + estimatedRows
+              + " rows, more than the limit of "
+              + maxEstimatedRows
+              + ". Add filters (WHERE) or aggregation (GROUP BY, COUNT) so that it reads fewer"
+              + " rows.");
+    }
+  }
+}
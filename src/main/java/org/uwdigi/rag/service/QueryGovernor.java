@@ -0,0 +1,272 @@
+package org.uwdigi.rag.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.service.Bulkheads.Backend;
+import org.uwdigi.rag.service.Bulkheads.BulkheadFullException;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Runs generated SQL within limits, so that one expensive query (e.g. a cross join on {@code
+ * observation_flat}) cannot hold a database executor and a pooled connection for minutes while the
+ * other requests queue behind it:
+ *
+ * <ul>
+ *   <li>the statement is cancelled after {@code app.sql.governor.timeout}, by the driver or, when
+ *       it does not support query timeouts, by a watchdog;
+ *   <li>the driver returns at most {@code app.sql.governor.max-rows} rows;
+ *   <li>the connection is read-only ({@code app.sql.governor.read-only}) where the driver supports
+ *       it, which Hive does not; on PostgreSQL the query then runs in a read-only transaction;
+ *   <li>at most {@code app.bulkhead.jdbc} generated queries run at once, see {@link Bulkheads}.
+ * </ul>
+ *
+ * A query that is cancelled or finds no free slot fails with a {@link QueryCancelledException},
+ * which tells the retry loop whether generating cheaper SQL can help.
+ */
+@Component
+public class QueryGovernor implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(QueryGovernor.class);
+
+  /** Why a query was cancelled. */
+  public enum Reason {
+    /** The query ran longer than the timeout; cheaper SQL may succeed. */
+    TIMED_OUT,
+    /** Too many queries were running; the query was not started. */
+    REJECTED
+  }
+
+  /** Runs a query on a statement the limits have been applied to. */
+  @FunctionalInterface
+  public interface QueryCall<T> {
+    T call(Statement statement) throws SQLException;
+  }
+
+  private final Bulkheads bulkheads;
+  private final Duration timeout;
+  private final int maxRows;
+  private final boolean readOnly;
+  private volatile boolean queryTimeoutSupported = true;
+  private volatile boolean readOnlySupported = true;
+  private final ScheduledExecutorService watchdog =
+      Executors.newSingleThreadScheduledExecutor(
+          Thread.ofPlatform().name("query-watchdog").daemon().factory());
+
+  private final AtomicLong queries = new AtomicLong();
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public QueryGovernor(
+      Bulkheads bulkheads,
+      @Value("${app.sql.governor.timeout:PT60S}") Duration timeout,
+      @Value("${app.sql.governor.max-rows:100000}") int maxRows,
+      @Value("${app.sql.governor.read-only:true}") boolean readOnly) {
+    this.bulkheads = bulkheads;
+    this.timeout = timeout;
+    this.maxRows = maxRows;
+    this.readOnly = readOnly;
+  }
+
+  /**
+   * Runs the query on a connection of the data source within the limits.
+   *
+   * @throws QueryCancelledException if the query timed out or was rejected.
+   */
+  public <T> T execute(DataSource dataSource, QueryCall<T> query) throws SQLException {
+    try {
+      return bulkheads != null
+          ? bulkheads.call(Backend.JDBC, () -> run(dataSource, query))
+          : run(dataSource, query);
+    } catch (BulkheadFullException e) {
+      rejected.incrementAndGet();
+      throw new QueryCancelledException(Reason.REJECTED, e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "queryGovernor";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("queries", queries.get());
+    stats.put("running", running.get());
+    stats.put("timedOut", timedOut.get());
+    stats.put("rejected", rejected.get());
+    stats.put("timeoutSeconds", timeout.toSeconds());
+    stats.put("maxRows", maxRows);
+    stats.put("readOnly", readOnly && readOnlySupported);
+    return stats;
+  }
+
+  private <T> T run(DataSource dataSource, QueryCall<T> query) throws SQLException {
+    queries.incrementAndGet();
+    running.incrementAndGet();
+    try (Connection connection = dataSource.getConnection()) {
+      boolean madeReadOnly = makeReadOnly(connection);
+      // The PostgreSQL driver only enforces read-only mode inside a transaction
+      boolean transaction =
+          madeReadOnly
+              && connection.getAutoCommit()
+              && connection.getMetaData().getDatabaseProductName().contains("PostgreSQL");
+      if (transaction) {
+        connection.setAutoCommit(false);
+      }
+      AtomicBoolean cancelled = new AtomicBoolean();
+      ScheduledFuture<?> cancel = null;
+      try (Statement statement = connection.createStatement()) {
+        if (!limit(statement)) {
+          cancel =
+              watchdog.schedule(
+                  () -> cancel(statement, cancelled), timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return query.call(statement);
+      } catch (SQLException e) {
+        if (cancelled.get() || isTimeout(e)) {
+          timedOut.incrementAndGet();
+          throw new QueryCancelledException(
+              Reason.TIMED_OUT,
+              "The query was cancelled after running for "
+                  + timeout.toSeconds()
+                  + " s. Write a cheaper query: filter with WHERE, aggregate instead of listing"
+                  + " rows and join only on related columns.",
+              e);
+        }
+        throw e;
+      } finally {
+        if (cancel != null) {
+          cancel.cancel(false);
+        }
+        restore(connection, transaction, madeReadOnly);
+      }
+    } finally {
+      running.decrementAndGet();
+    }
+  }
+
+  /**
+   * Applies the timeout and the row cap to the statement.
+   *
+   * @return whether the driver enforces the timeout.
+   */
+  private boolean limit(Statement statement) {
+    if (maxRows > 0) {
+      try {
+        // One more than the cap tells "more than" apart
+        statement.setMaxRows(maxRows + 1);
+      } catch (SQLException e) {
+        log.debug("Could not set max rows: {}", e.getMessage());
+      }
+    }
+    if (timeout.isZero() || timeout.isNegative()) {
+      return true;
+    }
+    if (queryTimeoutSupported) {
+      try {
+        statement.setQueryTimeout((int) Math.max(1, timeout.toSeconds()));
+        return true;
+      } catch (SQLException e) {
+        queryTimeoutSupported = false;
+        log.info(
+            "The database driver does not support query timeouts, cancelling queries after {}: {}",
+            timeout,
+            e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  private boolean makeReadOnly(Connection connection) {
+    if (!readOnly || !readOnlySupported) {
+      return false;
+    }
+    try {
+      if (connection.isReadOnly()) {
+        return false;
+      }
+      connection.setReadOnly(true);
+      return true;
+    } catch (SQLException e) {
+      readOnlySupported = false;
+      log.info(
+          "The database driver does not support read-only connections, relying on the permissions"
+              + " of the database user: {}",
+          e.getMessage());
+      return false;
+    }
+  }
+
+  /** Returns the connection to the pool as it was borrowed. */
+  private static void restore(Connection connection, boolean transaction, boolean readOnly) {
+    try {
+      if (transaction) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      if (readOnly) {
+        connection.setReadOnly(false);
+      }
+    } catch (SQLException e) {
+      log.debug("Could not restore the connection after a query: {}", e.getMessage());
+    }
+  }
+
+  private static void cancel(Statement statement, AtomicBoolean cancelled) {
+    cancelled.set(true);
+    try {
+      statement.cancel();
+    } catch (SQLException e) {
+      log.warn("Could not cancel a query that exceeded its timeout: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Whether the exception reports a query cancelled by its timeout: PostgreSQL's {@code
+   * query_canceled} state, MySQL's and MariaDB's "query execution was interrupted", or a {@link
+   * SQLTimeoutException}, which Hive and the other drivers throw.
+   */
+  static boolean isTimeout(SQLException e) {
+    return e instanceof SQLTimeoutException
+        || "57014".equals(e.getSQLState())
+        || "70100".equals(e.getSQLState());
+  }
+
+  /** Thrown when a generated query is cancelled by the {@link QueryGovernor}. */
+  public static class QueryCancelledException extends SQLException {
+    private final Reason reason;
+
+    public QueryCancelledException(Reason reason, String message, Throwable cause) {
+      super(message, cause);
+      this.reason = reason;
+    }
+
+    public Reason getReason() {
+      return reason;
+    }
+
+    /** Whether generating another query may succeed. */
+    public boolean isRetryable() {
+      return reason == Reason.TIMED_OUT;
+    }
+  }
+}
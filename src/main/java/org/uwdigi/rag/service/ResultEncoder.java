@@ -0,0 +1,443 @@
+package org.uwdigi.rag.service;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+
+/**
+ * Writes the rows of a {@link ResultSet} into a single buffer in one of the {@link Format}s sent to
+ * the models. Each cell is read once with the getter of its SQL type, so that numbers and booleans
+ * are appended without boxing or {@code toString()}, and text is escaped as it is copied. <br>
+ * An encoder is created per result with {@link #create}, and is not thread-safe.
+ */
+public abstract class ResultEncoder {
+
+  /** The output formats of a query result. */
+  public enum Format {
+    /** RFC 4180 CSV: a header line, then one line per row. */
+    CSV,
+    /** A markdown table: a header line, a separator line, then one line per row. */
+    MARKDOWN,
+    /** Columnar JSON: {"rows":2,"columns":{"ID":[1,2],"NAME":["a","b"]}}. */
+    JSON;
+
+    /**
+     * Parses a format name, ignoring case; {@code null} or blank gives the default.
+     *
+     * @throws IllegalArgumentException if the name is not one of the formats.
+     */
+    public static Format from(String format, Format defaultFormat) {
+      if (format == null || format.isBlank()) {
+        return defaultFormat;
+      }
+      try {
+        return valueOf(format.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Unknown result format '" + format + "', expected one of: csv, markdown, json");
+      }
+    }
+  }
+
+  private enum Kind {
+    INT,
+    LONG,
+    DOUBLE,
+    DECIMAL,
+    BOOLEAN,
+    TEXT
+  }
+
+  protected final String[] columns;
+  private final Kind[] kinds;
+
+  private ResultEncoder(ResultSetMetaData metaData) throws SQLException {
+    int columnCount = metaData.getColumnCount();
+    this.columns = new String[columnCount];
+    this.kinds = new Kind[columnCount];
+    for (int i = 0; i < columnCount; i++) {
+      // The label is the alias of the select list, which getColumnName ignores on most drivers
+      columns[i] = metaData.getColumnLabel(i + 1);
+      kinds[i] = kind(metaData, i + 1);
+    }
+  }
+
+  /** Creates an encoder for the columns of the result set and writes the header. */
+  public static ResultEncoder create(Format format, ResultSet resultSet) throws SQLException {
+    ResultSetMetaData metaData = resultSet.getMetaData();
+    switch (format) {
+      case MARKDOWN:
+        return new MarkdownEncoder(metaData);
+      case JSON:
+        return new JsonEncoder(metaData);
+      default:
+        return new CsvEncoder(metaData);
+    }
+  }
+
+  /** Appends the current row of the result set. */
+  public abstract void writeRow(ResultSet resultSet) throws SQLException;
+
+  /** Removes the row written last, e.g. because it did not fit the budget. */
+  public abstract void discardRow();
+
+  /** The number of characters written so far. */
+  public abstract int length();
+
+  /** Returns the encoded result of {@code rows} rows. */
+  public abstract String finish(int rows);
+
+  /** The number of rows in a result encoded in the format, excluding any trailing note line. */
+  static long countRows(Format format, String result, boolean hasNote) {
+    if (format == Format.JSON) {
+      int end = result.indexOf(',');
+      return end > 8 ? Long.parseLong(result.substring(8, end)) : 0;
+    }
+    // Line breaks inside quoted CSV values do not end a row
+    long lines = 0;
+    boolean quoted = false;
+    for (int i = 0; i < result.length(); i++) {
+      char c = result.charAt(i);
+      if (c == '"' && format == Format.CSV) {
+        quoted = !quoted;
+      } else if (c == '\n' && !quoted) {
+        lines++;
+      }
+    }
+    long headerLines = format == Format.MARKDOWN ? 2 : 1;
+    return Math.max(0, lines + 1 - headerLines - (hasNote ? 1 : 0));
+  }
+
+  /**
+   * Reads cell {@code i} (0-based) with the getter of its type and passes it to the writer. Returns
+   * false for SQL NULL.
+   */
+  protected final boolean appendCell(
+      ResultSet resultSet, int i, StringBuilder out, CellWriter writer) throws SQLException {
+    int column = i + 1;
+    switch (kinds[i]) {
+      case INT:
+        int intValue = resultSet.getInt(column);
+        if (resultSet.wasNull()) {
+          return false;
+        }
+        out.append(intValue);
+        return true;
+      case LONG:
+        long longValue = resultSet.getLong(column);
+        if (resultSet.wasNull()) {
+          return false;
+        }
+        out.append(longValue);
+        return true;
+      case DOUBLE:
+        double doubleValue = resultSet.getDouble(column);
+        if (resultSet.wasNull()) {
+          return false;
+        }
+        if (Double.isFinite(doubleValue)) {
+          out.append(doubleValue);
+        } else {
+          // NaN and Infinity are values, not NULL, but no JSON number: they are written as text
+          writer.writeText(Double.toString(doubleValue), out);
+        }
+        return true;
+      case DECIMAL:
+        BigDecimal decimal = resultSet.getBigDecimal(column);
+        if (decimal == null) {
+          return false;
+        }
+        out.append(decimal.toPlainString());
+        return true;
+      case BOOLEAN:
+        boolean booleanValue = resultSet.getBoolean(column);
+        if (resultSet.wasNull()) {
+          return false;
+        }
+        out.append(booleanValue);
+        return true;
+      default:
+        String text = resultSet.getString(column);
+        if (text == null) {
+          return false;
+        }
+        writer.writeText(text, out);
+        return true;
+    }
+  }
+
+  private static boolean isSigned(ResultSetMetaData metaData, int column) {
+    try {
+      return metaData.isSigned(column);
+    } catch (SQLException e) {
+      // Not supported by the Hive driver, whose integer types are all signed
+      return true;
+    }
+  }
+
+  private static int precision(ResultSetMetaData metaData, int column) {
+    try {
+      return metaData.getPrecision(column);
+    } catch (SQLException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * The getter of a column. Unsigned columns (MySQL and MariaDB) get the getter of the next wider
+   * type, as their values may not fit the signed one: Connector/J rejects an {@code INT UNSIGNED}
+   * above 2^31-1 read with {@code getInt}. Only a single {@code BIT} is a boolean; the bit strings
+   * of {@code BIT(n)} are read as text.
+   */
+  private static Kind kind(ResultSetMetaData metaData, int column) throws SQLException {
+    int sqlType = metaData.getColumnType(column);
+    boolean signed = isSigned(metaData, column);
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+        return Kind.INT;
+      case Types.INTEGER:
+        return signed ? Kind.INT : Kind.LONG;
+      case Types.BIGINT:
+        return signed ? Kind.LONG : Kind.DECIMAL;
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        return Kind.DOUBLE;
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return Kind.DECIMAL;
+      case Types.BIT:
+        return precision(metaData, column) <= 1 ? Kind.BOOLEAN : Kind.TEXT;
+      case Types.BOOLEAN:
+        return Kind.BOOLEAN;
+      default:
+        return Kind.TEXT;
+    }
+  }
+
+  /** Copies a text value into the output, escaping it for the format. */
+  @FunctionalInterface
+  protected interface CellWriter {
+    void writeText(String text, StringBuilder out);
+  }
+
+  /** Formats that write one line per row into a single buffer. */
+  private abstract static class LineEncoder extends ResultEncoder {
+    protected final StringBuilder out = new StringBuilder(1024);
+    private int rowStart;
+
+    private LineEncoder(ResultSetMetaData metaData) throws SQLException {
+      super(metaData);
+    }
+
+    @Override
+    public final void writeRow(ResultSet resultSet) throws SQLException {
+      rowStart = out.length();
+      out.append('\n');
+      writeCells(resultSet);
+    }
+
+    protected abstract void writeCells(ResultSet resultSet) throws SQLException;
+
+    @Override
+    public final void discardRow() {
+      out.setLength(rowStart);
+    }
+
+    @Override
+    public final int length() {
+      return out.length();
+    }
+
+    @Override
+    public String finish(int rows) {
+      return out.toString();
+    }
+  }
+
+  private static final class CsvEncoder extends LineEncoder {
+
+    private static final CellWriter ESCAPE = CsvEncoder::escape;
+
+    private CsvEncoder(ResultSetMetaData metaData) throws SQLException {
+      super(metaData);
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        escape(columns[i], out);
+      }
+    }
+
+    @Override
+    protected void writeCells(ResultSet resultSet) throws SQLException {
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        appendCell(resultSet, i, out, ESCAPE);
+      }
+    }
+
+    private static void escape(String text, StringBuilder out) {
+      boolean quote = false;
+      for (int i = 0; i < text.length() && !quote; i++) {
+        char c = text.charAt(i);
+        quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+        out.append(text);
+        return;
+      }
+      out.append('"');
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '"') {
+          out.append('"');
+        }
+        out.append(c);
+      }
+      out.append('"');
+    }
+  }
+
+  private static final class MarkdownEncoder extends LineEncoder {
+
+    private static final CellWriter ESCAPE = MarkdownEncoder::escape;
+
+    private MarkdownEncoder(ResultSetMetaData metaData) throws SQLException {
+      super(metaData);
+      out.append('|');
+      for (String column : columns) {
+        out.append(' ');
+        escape(column, out);
+        out.append(" |");
+      }
+      out.append("\n|");
+      for (int i = 0; i < columns.length; i++) {
+        out.append(" --- |");
+      }
+    }
+
+    @Override
+    protected void writeCells(ResultSet resultSet) throws SQLException {
+      out.append('|');
+      for (int i = 0; i < columns.length; i++) {
+        out.append(' ');
+        appendCell(resultSet, i, out, ESCAPE);
+        out.append(" |");
+      }
+    }
+
+    private static void escape(String text, StringBuilder out) {
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '|' || c == '\\') {
+          out.append('\\').append(c);
+        } else if (c == '\n' || c == '\r') {
+          out.append(' ');
+        } else {
+          out.append(c);
+        }
+      }
+    }
+  }
+
+  /** Writes the values of each column into its own buffer, joined by {@link #finish}. */
+  private static final class JsonEncoder extends ResultEncoder {
+
+    private static final CellWriter ESCAPE = JsonEncoder::quote;
+
+    private final StringBuilder[] values;
+    private final int[] rowStarts;
+    private int length;
+
+    private JsonEncoder(ResultSetMetaData metaData) throws SQLException {
+      super(metaData);
+      values = new StringBuilder[columns.length];
+      rowStarts = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        values[i] = new StringBuilder(256);
+        length += columns[i].length() + 6;
+      }
+      length += 32;
+    }
+
+    @Override
+    public void writeRow(ResultSet resultSet) throws SQLException {
+      for (int i = 0; i < columns.length; i++) {
+        StringBuilder column = values[i];
+        rowStarts[i] = column.length();
+        if (column.length() > 0) {
+          column.append(',');
+        }
+        if (!appendCell(resultSet, i, column, ESCAPE)) {
+          column.append("null");
+        }
+        length += column.length() - rowStarts[i];
+      }
+    }
+
+    @Override
+    public void discardRow() {
+      for (int i = 0; i < columns.length; i++) {
+        length -= values[i].length() - rowStarts[i];
+        values[i].setLength(rowStarts[i]);
+      }
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public String finish(int rows) {
+      StringBuilder out = new StringBuilder(length + 16);
+      out.append("{\"rows\":").append(rows).append(",\"columns\":{");
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        quote(columns[i], out);
+        out.append(":[").append(values[i]).append(']');
+      }
+      return out.append("}}").toString();
+    }
+
+    private static void quote(String text, StringBuilder out) {
+      out.append('"');
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        switch (c) {
+          case '"':
+            out.append("\\\"");
+            break;
+          case '\\':
+            out.append("\\\\");
+            break;
+          case '\n':
+            out.append("\\n");
+            break;
+          case '\r':
+            out.append("\\r");
+            break;
+          case '\t':
+            out.append("\\t");
+            break;
+          default:
+            if (c < 0x20) {
+              out.append(String.format("\\u%04x", (int) c));
+            } else {
+              out.append(c);
+            }
+        }
+      }
+      out.append('"');
+    }
+  }
+}
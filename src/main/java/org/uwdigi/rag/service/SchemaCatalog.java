@@ -0,0 +1,345 @@
+package org.uwdigi.rag.service;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.service.SchemaIntrospector.ForeignKeyMetadata;
+import org.uwdigi.rag.service.SchemaIntrospector.TableMetadata;
+
+/**
+ * Shared, thread-safe cache of the database schema. The DDL for every table and the SQL dialect are
+ * read once at startup and served to every chat request from memory. <br>
+ * Changes are detected by a periodic poll that only computes the {@link
+ * SchemaIntrospector#fingerprint} of the database: a checksum per table over the table list and all
+ * columns, read in one pass each, plus the keys where one query reads them all (MySQL, MariaDB,
+ * PostgreSQL, H2). Only the tables whose checksum changed (or that are new) are introspected again
+ * and have their DDL regenerated; dropped tables are removed. On Hive and Spark, whose fingerprint
+ * only reads the table list, a change to the columns or keys of a table shows with the next change
+ * to its comment (or last-modified time, where the driver reports one), or with {@link #rebuild()}
+ * ({@code DELETE /api/cache/schema}).
+ */
+@Component
+public class SchemaCatalog {
+
+  private static final Logger log = LoggerFactory.getLogger(SchemaCatalog.class);
+
+  private final DataSource dataSource;
+  private final SchemaIntrospector introspector;
+  // Not a monitor: loading does JDBC I/O, which would pin the virtual threads waiting for it
+  private final ReentrantLock refreshLock = new ReentrantLock();
+
+  private volatile Snapshot snapshot;
+
+  public SchemaCatalog(
+      DataSource dataSource,
+      String[] schemaType,
+      @Value("${app.db.schema.introspection-threads:4}") int introspectionThreads) {
+    this.dataSource = dataSource;
+    this.introspector = new SchemaIntrospector(dataSource, schemaType, introspectionThreads);
+  }
+
+  @PostConstruct
+  public void initialize() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      // The database may not be reachable yet; the catalog is built on first use instead
+      log.error("Failed to build schema catalog at startup: {}", e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The current content of the catalog. Callers reading several values, e.g. the table names and
+   * then the DDL of each, should read them from one snapshot, which a concurrent refresh does not
+   * change.
+   */
+  public Snapshot getSnapshot() {
+    return current();
+  }
+
+  /** The SQL dialect (database product name) of the configured {@link DataSource}. */
+  public String getSqlDialect() {
+    return current().getSqlDialect();
+  }
+
+  /** The "CREATE TABLE ..." DDL of all tables, in the order reported by the driver. */
+  public String getDatabaseStructure() {
+    return current().getDatabaseStructure();
+  }
+
+  /** The DDL of a single table, or {@code null} if the table is unknown. */
+  public String getTableDdl(String tableName) {
+    return current().getTableDdl(tableName);
+  }
+
+  /**
+   * The tables that the given table references through a foreign key, and the tables that reference
+   * it.
+   */
+  public Set<String> getRelatedTables(String tableName) {
+    return current().getRelatedTables(tableName);
+  }
+
+  /** The names of all tables in the catalog. */
+  public Set<String> getTableNames() {
+    return current().getTableNames();
+  }
+
+  /** Incremented every time the catalog content changes. */
+  public long getVersion() {
+    return current().getVersion();
+  }
+
+  /** Polls the database for schema changes and regenerates the DDL of changed tables only. */
+  @Scheduled(
+      initialDelayString = "${app.db.schema.refresh-interval:PT5M}",
+      fixedDelayString = "${app.db.schema.refresh-interval:PT5M}")
+  public void scheduledRefresh() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      log.error("Failed to refresh schema catalog: {}", e.getMessage(), e);
+    }
+  }
+
+  /** Detects changed tables and regenerates their DDL. */
+  public void refresh() {
+    refreshLock.lock();
+    try {
+      snapshot = load(snapshot);
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  /** Discards the cached catalog and regenerates the DDL of every table. */
+  public void rebuild() {
+    refreshLock.lock();
+    try {
+      Snapshot previous = snapshot;
+      Snapshot rebuilt = load(null);
+      snapshot =
+          previous == null
+              ? rebuilt
+              : new Snapshot(
+                  rebuilt.sqlDialect,
+                  rebuilt.tables,
+                  rebuilt.databaseStructure,
+                  rebuilt.fingerprint,
+                  previous.version + 1);
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  private Snapshot current() {
+    Snapshot current = snapshot;
+    if (current == null) {
+      refreshLock.lock();
+      try {
+        if (snapshot == null) {
+          snapshot = load(null);
+        }
+        current = snapshot;
+      } finally {
+        refreshLock.unlock();
+      }
+    }
+    return current;
+  }
+
+  private Snapshot load(Snapshot previous) {
+    long start = System.currentTimeMillis();
+
+    try (Connection connection = dataSource.getConnection()) {
+      DatabaseMetaData metaData = connection.getMetaData();
+      String sqlDialect = metaData.getDatabaseProductName();
+      String currentDb = SqlDatabaseContentRetriever.getCurrentDatabase(connection);
+
+      Map<String, Long> fingerprint = introspector.fingerprint(connection, currentDb);
+      boolean dialectChanged = previous != null && !Objects.equals(previous.sqlDialect, sqlDialect);
+      if (previous != null && !dialectChanged && previous.fingerprint.equals(fingerprint)) {
+        log.debug("Schema catalog unchanged ({} tables)", previous.tables.size());
+        return previous;
+      }
+
+      Map<String, TableMetadata> metadata;
+      if (previous == null || dialectChanged) {
+        metadata = introspector.introspect(connection, currentDb);
+      } else {
+        metadata = new HashMap<>();
+        for (Map.Entry<String, Long> table : fingerprint.entrySet()) {
+          TableEntry existing = previous.tables.get(table.getKey());
+          if (existing == null || existing.checksum != table.getValue()) {
+            TableMetadata read =
+                introspector.introspectTable(connection, currentDb, table.getKey());
+            if (read != null) {
+              metadata.put(table.getKey(), read);
+            }
+          }
+        }
+      }
+
+      Map<String, TableEntry> tables = new LinkedHashMap<>();
+      Set<String> changed = new LinkedHashSet<>();
+      for (Map.Entry<String, Long> table : fingerprint.entrySet()) {
+        String tableName = table.getKey();
+        TableEntry existing = previous != null ? previous.tables.get(tableName) : null;
+        TableMetadata read = metadata.get(tableName);
+        if (read == null) {
+          // Unchanged, or dropped since the fingerprint was read
+          if (existing != null && existing.checksum == table.getValue()) {
+            tables.put(tableName, existing);
+          }
+          continue;
+        }
+        String ddl = SchemaIntrospector.render(read);
+        Set<String> referencedTables = new LinkedHashSet<>();
+        for (ForeignKeyMetadata foreignKey : read.getForeignKeys()) {
+          referencedTables.add(foreignKey.getReferencedTable());
+        }
+        tables.put(tableName, new TableEntry(ddl, table.getValue(), referencedTables));
+        if (existing == null || !existing.ddl.equals(ddl)) {
+          changed.add(tableName);
+        }
+      }
+
+      Set<String> dropped = new LinkedHashSet<>();
+      if (previous != null) {
+        for (String tableName : previous.tables.keySet()) {
+          if (!tables.containsKey(tableName)) {
+            dropped.add(tableName);
+          }
+        }
+      }
+
+      if (previous != null && changed.isEmpty() && dropped.isEmpty() && !dialectChanged) {
+        // E.g. a new last-modified time; the next poll compares the new fingerprint
+        log.debug("Schema catalog unchanged ({} tables)", tables.size());
+        return new Snapshot(
+            previous.sqlDialect,
+            Collections.unmodifiableMap(tables),
+            previous.databaseStructure,
+            fingerprint,
+            previous.version);
+      }
+
+      StringBuilder ddl = new StringBuilder();
+      for (TableEntry entry : tables.values()) {
+        ddl.append(entry.ddl).append("\n");
+      }
+
+      long version = previous != null ? previous.version + 1 : 1;
+      log.info(
+          "Schema catalog version {} built in {} ms: {} tables, {} regenerated, {} dropped",
+          version,
+          System.currentTimeMillis() - start,
+          tables.size(),
+          changed.size(),
+          dropped.size());
+      return new Snapshot(
+          sqlDialect, Collections.unmodifiableMap(tables), ddl.toString(), fingerprint, version);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final class TableEntry {
+    private final String ddl;
+    private final long checksum;
+    private final Set<String> referencedTables;
+
+    private TableEntry(String ddl, long checksum, Set<String> referencedTables) {
+      this.ddl = ddl;
+      this.checksum = checksum;
+      this.referencedTables = referencedTables;
+    }
+  }
+
+  /** The immutable content of the catalog at one version. */
+  public static final class Snapshot {
+    private final String sqlDialect;
+    private final Map<String, TableEntry> tables;
+    private final String databaseStructure;
+    private final Map<String, Long> fingerprint;
+    private final long version;
+    private final Map<String, Set<String>> relatedTables = new HashMap<>();
+
+    private Snapshot(
+        String sqlDialect,
+        Map<String, TableEntry> tables,
+        String databaseStructure,
+        Map<String, Long> fingerprint,
+        long version) {
+      this.sqlDialect = sqlDialect;
+      this.tables = tables;
+      this.databaseStructure = databaseStructure;
+      this.fingerprint = fingerprint;
+      this.version = version;
+
+      tables.forEach(
+          (tableName, entry) -> {
+            for (String referencedTable : entry.referencedTables) {
+              if (tables.containsKey(referencedTable) && !referencedTable.equals(tableName)) {
+                relatedTables
+                    .computeIfAbsent(tableName, k -> new LinkedHashSet<>())
+                    .add(referencedTable);
+                relatedTables
+                    .computeIfAbsent(referencedTable, k -> new LinkedHashSet<>())
+                    .add(tableName);
+              }
+            }
+          });
+    }
+
+    /** The SQL dialect (database product name) of the configured {@link DataSource}. */
+    public String getSqlDialect() {
+      return sqlDialect;
+    }
+
+    /** The "CREATE TABLE ..." DDL of all tables, in the order reported by the driver. */
+    public String getDatabaseStructure() {
+      return databaseStructure;
+    }
+
+    /** The DDL of a single table, or {@code null} if the table is unknown. */
+    public String getTableDdl(String tableName) {
+      TableEntry entry = tables.get(tableName);
+      return entry != null ? entry.ddl : null;
+    }
+
+    /**
+     * The tables that the given table references through a foreign key, and the tables that
+     * reference it.
+     */
+    public Set<String> getRelatedTables(String tableName) {
+      Set<String> related = relatedTables.get(tableName);
+      return related != null ? Collections.unmodifiableSet(related) : Collections.emptySet();
+    }
+
+    /** The names of all tables, in the order reported by the driver. */
+    public Set<String> getTableNames() {
+      return tables.keySet();
+    }
+
+    /** Incremented every time the catalog content changes. */
+    public long getVersion() {
+      return version;
+    }
+  }
+}
@@ -0,0 +1,562 @@
+package org.uwdigi.rag.service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the metadata of all tables in as few round trips as the driver allows and renders it as
+ * "CREATE TABLE ..." DDL. <br>
+ * For MySQL, MariaDB, PostgreSQL and H2 all columns come from a single {@code getColumns} call and
+ * all primary/foreign keys from a single catalog query: {@code pg_catalog} on PostgreSQL, whose
+ * {@code information_schema} only shows the constraints of tables the user has more than SELECT on,
+ * and {@code information_schema} elsewhere. When that query finds no keys at all, e.g. because the
+ * user may not see them, the keys are read per table like for other drivers. Hive and Spark Thrift
+ * servers have no efficient catalog-wide calls, so their per-table lookups are spread over a
+ * bounded number of pooled connections, and their {@link #fingerprint} only reads the table list.
+ */
+public class SchemaIntrospector {
+
+  private static final Logger log = LoggerFactory.getLogger(SchemaIntrospector.class);
+
+  /** The number of columns {@link DatabaseMetaData#getTables} defines. */
+  private static final int STANDARD_TABLE_COLUMNS = 10;
+
+  private static final String MYSQL_KEYS_QUERY =
+      "SELECT TABLE_NAME, COLUMN_NAME, ORDINAL_POSITION,"
+          + " CASE WHEN CONSTRAINT_NAME = 'PRIMARY' THEN 'PRIMARY KEY' ELSE 'FOREIGN KEY' END"
+          + " AS CONSTRAINT_TYPE, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME"
+          + " FROM information_schema.KEY_COLUMN_USAGE"
+          + " WHERE TABLE_SCHEMA = ?"
+          + " AND (CONSTRAINT_NAME = 'PRIMARY' OR REFERENCED_TABLE_NAME IS NOT NULL)"
+          + " ORDER BY TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION";
+
+  private static final String STANDARD_KEYS_QUERY =
+      "SELECT kcu.table_name, kcu.column_name, kcu.ordinal_position, tc.constraint_type,"
+          + " ref.table_name AS referenced_table_name, ref.column_name AS referenced_column_name"
+          + " FROM information_schema.table_constraints tc"
+          + " JOIN information_schema.key_column_usage kcu"
+          + " ON kcu.constraint_schema = tc.constraint_schema"
+          + " AND kcu.constraint_name = tc.constraint_name"
+          + " LEFT JOIN information_schema.referential_constraints rc"
+          + " ON rc.constraint_schema = tc.constraint_schema"
+          + " AND rc.constraint_name = tc.constraint_name"
+          + " LEFT JOIN information_schema.key_column_usage ref"
+          + " ON ref.constraint_schema = rc.unique_constraint_schema"
+          + " AND ref.constraint_name = rc.unique_constraint_name"
+          + " AND ref.ordinal_position = kcu.position_in_unique_constraint"
+          + " WHERE tc.constraint_type IN ('PRIMARY KEY', 'FOREIGN KEY')"
+          + " AND tc.table_catalog = ?"
+          + " ORDER BY kcu.table_name, kcu.constraint_name, kcu.ordinal_position";
+
+  // pg_constraint is readable by every user, unlike information_schema.table_constraints
+  private static final String POSTGRESQL_KEYS_QUERY =
+      "SELECT c.relname AS table_name, a.attname AS column_name,"
+          + " k.ordinality AS ordinal_position,"
+          + " CASE con.contype WHEN 'p' THEN 'PRIMARY KEY' ELSE 'FOREIGN KEY' END"
+          + " AS constraint_type, rc.relname AS referenced_table_name,"
+          + " ra.attname AS referenced_column_name"
+          + " FROM pg_catalog.pg_constraint con"
+          + " JOIN pg_catalog.pg_class c ON c.oid = con.conrelid"
+          + " JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace"
+          + " CROSS JOIN LATERAL unnest(con.conkey) WITH ORDINALITY AS k(attnum, ordinality)"
+          + " JOIN pg_catalog.pg_attribute a ON a.attrelid = con.conrelid AND a.attnum = k.attnum"
+          + " LEFT JOIN pg_catalog.pg_class rc ON rc.oid = con.confrelid"
+          + " LEFT JOIN pg_catalog.pg_attribute ra ON ra.attrelid = con.confrelid"
+          + " AND ra.attnum = con.confkey[k.ordinality]"
+          + " WHERE con.contype IN ('p', 'f')"
+          + " AND n.nspname NOT IN ('pg_catalog', 'information_schema')"
+          + " AND current_database() = ?"
+          + " ORDER BY c.relname, con.conname, k.ordinality";
+
+  private final DataSource dataSource;
+  private final String[] schemaType;
+  private final int parallelism;
+
+  /**
+   * @param dataSource The {@link DataSource} to read the metadata from.
+   * @param schemaType The table types to include, e.g. {@code TABLE,VIEW}.
+   * @param parallelism The maximum number of connections used at once for per-table lookups.
+   */
+  public SchemaIntrospector(DataSource dataSource, String[] schemaType, int parallelism) {
+    this.dataSource = dataSource;
+    this.schemaType = schemaType;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /** Reads the metadata of every table, keyed by table name in the order reported by the driver. */
+  public Map<String, TableMetadata> introspect(Connection connection, String currentDb)
+      throws SQLException {
+    long start = System.currentTimeMillis();
+    DatabaseMetaData metaData = connection.getMetaData();
+
+    Map<String, TableMetadata> tables = new LinkedHashMap<>();
+    try (ResultSet rs = metaData.getTables(currentDb, null, "%", schemaType)) {
+      while (rs.next()) {
+        String tableName = rs.getString("TABLE_NAME");
+        tables.put(tableName, new TableMetadata(tableName, rs.getString("REMARKS")));
+      }
+    }
+
+    String productName = metaData.getDatabaseProductName();
+    if (isHive(productName)) {
+      readPerTable(tables);
+    } else {
+      readColumns(metaData, currentDb, tables);
+      if (!readKeys(connection, productName, currentDb, tables)) {
+        for (TableMetadata table : tables.values()) {
+          readKeys(metaData, table);
+        }
+      }
+    }
+
+    log.debug(
+        "Introspected {} tables of {} in {} ms",
+        tables.size(),
+        productName,
+        System.currentTimeMillis() - start);
+    return tables;
+  }
+
+  /**
+   * Reads the metadata of one table with per-table {@link DatabaseMetaData} calls, the way the DDL
+   * used to be generated before catalog-wide introspection.
+   */
+  static TableMetadata readTable(String tableName, DatabaseMetaData metaData) throws SQLException {
+    String remarks = null;
+    try (ResultSet rs = metaData.getTables(null, null, tableName, null)) {
+      if (rs.next()) {
+        remarks = rs.getString("REMARKS");
+      }
+    }
+    TableMetadata table = new TableMetadata(tableName, remarks);
+    readColumns(metaData, table);
+    if (!isHive(metaData.getDatabaseProductName())) {
+      readKeys(metaData, table);
+    }
+    return table;
+  }
+
+  /**
+   * A checksum per table, keyed by table name in the order reported by the driver, so that it can
+   * be polled to tell which tables {@link #introspectTable} should read again. <br>
+   * It covers the table comment, all columns and, where one catalog query reads them, all keys, at
+   * the cost of one {@code getTables} and one {@code getColumns} call plus that query. On Hive and
+   * Spark it only covers the {@code getTables} row: the comment and any columns the driver reports
+   * beyond the standard ones, such as a last-modified time.
+   */
+  public Map<String, Long> fingerprint(Connection connection, String currentDb)
+      throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    Map<String, CRC32> checksums = new LinkedHashMap<>();
+    try (ResultSet rs = metaData.getTables(currentDb, null, "%", schemaType)) {
+      int columnCount = rs.getMetaData().getColumnCount();
+      while (rs.next()) {
+        CRC32 crc = new CRC32();
+        update(crc, rs.getString("REMARKS"));
+        for (int i = STANDARD_TABLE_COLUMNS + 1; i <= columnCount; i++) {
+          update(crc, rs.getString(i));
+        }
+        checksums.put(rs.getString("TABLE_NAME"), crc);
+      }
+    }
+
+    String productName = metaData.getDatabaseProductName();
+    if (!isHive(productName)) {
+      try (ResultSet columns = metaData.getColumns(currentDb, null, "%", null)) {
+        while (columns.next()) {
+          CRC32 crc = checksums.get(columns.getString("TABLE_NAME"));
+          if (crc != null) {
+            update(crc, columns.getString("COLUMN_NAME"));
+            update(crc, columns.getString("TYPE_NAME"));
+            update(crc, columns.getString("COLUMN_SIZE"));
+            update(crc, columns.getString("IS_NULLABLE"));
+            update(crc, columns.getString("COLUMN_DEF"));
+            update(crc, columns.getString("REMARKS"));
+          }
+        }
+      }
+      String query = keysQuery(productName, currentDb);
+      if (query != null) {
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setString(1, currentDb);
+          try (ResultSet rs = statement.executeQuery()) {
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+              CRC32 crc = checksums.get(rs.getString("table_name"));
+              if (crc != null) {
+                for (int i = 1; i <= columnCount; i++) {
+                  update(crc, rs.getString(i));
+                }
+              }
+            }
+          }
+        } catch (SQLException e) {
+          log.debug(
+              "Key lookup failed, leaving the keys out of the fingerprint: {}", e.getMessage());
+        }
+      }
+    }
+
+    Map<String, Long> fingerprint = new LinkedHashMap<>();
+    checksums.forEach((tableName, crc) -> fingerprint.put(tableName, crc.getValue()));
+    return fingerprint;
+  }
+
+  /**
+   * Reads the metadata of one table with per-table {@link DatabaseMetaData} calls, for the few
+   * tables whose {@link #fingerprint} changed.
+   *
+   * @return {@code null} if the table no longer exists.
+   */
+  public TableMetadata introspectTable(Connection connection, String currentDb, String tableName)
+      throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    TableMetadata table;
+    try (ResultSet rs = metaData.getTables(currentDb, null, tableName, schemaType)) {
+      if (!rs.next()) {
+        return null;
+      }
+      table = new TableMetadata(tableName, rs.getString("REMARKS"));
+    }
+    readColumns(metaData, table);
+    if (!isHive(metaData.getDatabaseProductName())) {
+      readKeys(metaData, table);
+    }
+    return table;
+  }
+
+  /** Renders the metadata of one table as a "CREATE TABLE ..." statement with comments. */
+  public static String render(TableMetadata table) {
+    StringBuilder createTableStatement = new StringBuilder();
+    String tableName = table.getName();
+
+    createTableStatement.append("CREATE TABLE ").append(tableName).append(" (\n");
+
+    for (ColumnMetadata column : table.getColumns()) {
+      createTableStatement
+          .append("  ")
+          .append(column.name)
+          .append(" ")
+          .append(column.type)
+          .append("(")
+          .append(column.size)
+          .append(")")
+          .append(column.nullable ? " NULL" : " NOT NULL")
+          .append(column.defaultValue != null ? " DEFAULT " + column.defaultValue : "");
+
+      if (column.name.equals(table.primaryKeyColumn)) {
+        createTableStatement.append(" PRIMARY KEY");
+      }
+
+      createTableStatement.append(",\n");
+
+      if (column.remarks != null && !column.remarks.isEmpty()) {
+        createTableStatement
+            .append("  COMMENT ON COLUMN ")
+            .append(tableName)
+            .append(".")
+            .append(column.name)
+            .append(" IS '")
+            .append(column.remarks)
+            .append("',\n");
+      }
+    }
+
+    for (ForeignKeyMetadata foreignKey : table.getForeignKeys()) {
+      createTableStatement
+          .append("  FOREIGN KEY (")
+          .append(foreignKey.columnName)
+          .append(") REFERENCES ")
+          .append(foreignKey.referencedTable)
+          .append("(")
+          .append(foreignKey.referencedColumn)
+          .append("),\n");
+    }
+
+    if (createTableStatement.charAt(createTableStatement.length() - 2) == ',') {
+      createTableStatement.delete(createTableStatement.length() - 2, createTableStatement.length());
+    }
+
+    createTableStatement.append(");\n");
+
+    if (table.remarks != null && !table.remarks.isEmpty()) {
+      createTableStatement
+          .append("COMMENT ON TABLE ")
+          .append(tableName)
+          .append(" IS '")
+          .append(table.remarks)
+          .append("';\n");
+    }
+
+    return createTableStatement.toString();
+  }
+
+  static boolean isHive(String productName) {
+    return productName != null && (productName.contains("Hive") || productName.contains("Spark"));
+  }
+
+  private void readPerTable(Map<String, TableMetadata> tables) throws SQLException {
+    List<List<TableMetadata>> partitions = new ArrayList<>();
+    int workers = Math.min(parallelism, Math.max(1, tables.size()));
+    for (int i = 0; i < workers; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    int i = 0;
+    for (TableMetadata table : tables.values()) {
+      partitions.get(i++ % workers).add(table);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (List<TableMetadata> partition : partitions) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  // Each worker holds one pooled connection for its whole share of the tables
+                  try (Connection connection = dataSource.getConnection()) {
+                    DatabaseMetaData metaData = connection.getMetaData();
+                    for (TableMetadata table : partition) {
+                      readColumns(metaData, table);
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while reading table metadata", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException sqlException) {
+        throw sqlException;
+      }
+      throw new SQLException("Failed to read table metadata", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void readColumns(
+      DatabaseMetaData metaData, String currentDb, Map<String, TableMetadata> tables)
+      throws SQLException {
+    try (ResultSet columns = metaData.getColumns(currentDb, null, "%", null)) {
+      while (columns.next()) {
+        TableMetadata table = tables.get(columns.getString("TABLE_NAME"));
+        if (table != null) {
+          table.columns.add(ColumnMetadata.from(columns));
+        }
+      }
+    }
+  }
+
+  private static void readColumns(DatabaseMetaData metaData, TableMetadata table)
+      throws SQLException {
+    try (ResultSet columns = metaData.getColumns(null, null, table.getName(), null)) {
+      while (columns.next()) {
+        table.columns.add(ColumnMetadata.from(columns));
+      }
+    }
+  }
+
+  private static void readKeys(DatabaseMetaData metaData, TableMetadata table) throws SQLException {
+    try (ResultSet pk = metaData.getPrimaryKeys(null, null, table.getName())) {
+      if (pk.next()) {
+        table.primaryKeyColumn = pk.getString("COLUMN_NAME");
+      }
+    }
+    try (ResultSet fks = metaData.getImportedKeys(null, null, table.getName())) {
+      while (fks.next()) {
+        table.foreignKeys.add(
+            new ForeignKeyMetadata(
+                fks.getString("FKCOLUMN_NAME"),
+                fks.getString("PKTABLE_NAME"),
+                fks.getString("PKCOLUMN_NAME"),
+                fks.getInt("KEY_SEQ")));
+      }
+    }
+  }
+
+  /**
+   * Reads the primary and foreign keys of all tables with one catalog query.
+   *
+   * @return {@code false} if the database has no supported bulk query, the query failed or it found
+   *     no keys of the tables, in which case the keys must be read per table
+   */
+  private static boolean readKeys(
+      Connection connection,
+      String productName,
+      String currentDb,
+      Map<String, TableMetadata> tables) {
+    String query = keysQuery(productName, currentDb);
+    if (query == null) {
+      return false;
+    }
+
+    int keyColumns = 0;
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setString(1, currentDb);
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          TableMetadata table = tables.get(rs.getString("table_name"));
+          if (table == null) {
+            continue;
+          }
+          keyColumns++;
+          String columnName = rs.getString("column_name");
+          String referencedTable = rs.getString("referenced_table_name");
+          int position = rs.getInt("ordinal_position");
+          if ("PRIMARY KEY".equals(rs.getString("constraint_type"))) {
+            if (position == 1) {
+              table.primaryKeyColumn = columnName;
+            }
+          } else if (referencedTable != null) {
+            table.foreignKeys.add(
+                new ForeignKeyMetadata(
+                    columnName, referencedTable, rs.getString("referenced_column_name"), position));
+          }
+        }
+      }
+    } catch (SQLException e) {
+      log.warn("Bulk key lookup failed, reading keys per table: {}", e.getMessage());
+      for (TableMetadata table : tables.values()) {
+        table.primaryKeyColumn = null;
+        table.foreignKeys.clear();
+      }
+      return false;
+    }
+    if (keyColumns == 0 && !tables.isEmpty()) {
+      // Either the tables have no keys, or the catalog hides them from this user; the per-table
+      // lookups tell them apart
+      log.debug("Bulk key lookup found no keys, reading keys per table");
+      return false;
+    }
+
+    // Same order as DatabaseMetaData.getImportedKeys
+    for (TableMetadata table : tables.values()) {
+      table.foreignKeys.sort(
+          Comparator.comparing((ForeignKeyMetadata fk) -> fk.referencedTable)
+              .thenComparingInt(fk -> fk.keySeq));
+    }
+    return true;
+  }
+
+  /**
+   * The query reading the keys of all tables of the database named by its single parameter, or
+   * {@code null} if the database has none.
+   */
+  private static String keysQuery(String productName, String currentDb) {
+    if (productName == null || currentDb == null) {
+      return null;
+    } else if (productName.contains("MySQL") || productName.contains("MariaDB")) {
+      return MYSQL_KEYS_QUERY;
+    } else if (productName.contains("PostgreSQL")) {
+      return POSTGRESQL_KEYS_QUERY;
+    } else if (productName.contains("H2")) {
+      return STANDARD_KEYS_QUERY;
+    }
+    return null;
+  }
+
+  private static void update(CRC32 crc, String value) {
+    if (value != null) {
+      crc.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+    crc.update(0);
+  }
+
+  /** Columns, keys and comments of one table. */
+  public static final class TableMetadata {
+    private final String name;
+    private final String remarks;
+    private final List<ColumnMetadata> columns = new ArrayList<>();
+    private final List<ForeignKeyMetadata> foreignKeys = new ArrayList<>();
+    private String primaryKeyColumn;
+
+    TableMetadata(String name, String remarks) {
+      this.name = name;
+      this.remarks = remarks;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<ColumnMetadata> getColumns() {
+      return columns;
+    }
+
+    public List<ForeignKeyMetadata> getForeignKeys() {
+      return foreignKeys;
+    }
+  }
+
+  /** One column as reported by {@link DatabaseMetaData#getColumns}. */
+  public static final class ColumnMetadata {
+    private final String name;
+    private final String type;
+    private final int size;
+    private final boolean nullable;
+    private final String defaultValue;
+    private final String remarks;
+
+    private ColumnMetadata(
+        String name, String type, int size, boolean nullable, String defaultValue, String remarks) {
+      this.name = name;
+      this.type = type;
+      this.size = size;
+      this.nullable = nullable;
+      this.defaultValue = defaultValue;
+      this.remarks = remarks;
+    }
+
+    private static ColumnMetadata from(ResultSet columns) throws SQLException {
+      return new ColumnMetadata(
+          columns.getString("COLUMN_NAME"),
+          columns.getString("TYPE_NAME"),
+          columns.getInt("COLUMN_SIZE"),
+          "YES".equals(columns.getString("IS_NULLABLE")),
+          columns.getString("COLUMN_DEF"),
+          columns.getString("REMARKS"));
+    }
+  }
+
+  /** One column of a foreign key and the column it references. */
+  public static final class ForeignKeyMetadata {
+    private final String columnName;
+    private final String referencedTable;
+    private final String referencedColumn;
+    private final int keySeq;
+
+    private ForeignKeyMetadata(
+        String columnName, String referencedTable, String referencedColumn, int keySeq) {
+      this.columnName = columnName;
+      this.referencedTable = referencedTable;
+      this.referencedColumn = referencedColumn;
+      this.keySeq = keySeq;
+    }
+
+    public String getReferencedTable() {
+      return referencedTable;
+    }
+  }
+}
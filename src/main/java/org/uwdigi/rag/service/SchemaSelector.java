@@ -0,0 +1,171 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.service.SchemaCatalog.Snapshot;
+
+/**
+ * Picks the part of the schema that is relevant to a question, so that the SQL generation prompt
+ * grows with the question and not with the database. <br>
+ * The DDL of every table (which includes its column comments) is embedded once with the uncached
+ * {@code onnxEmbeddingModel}, like the metadata values, so that it does not fill the request-path
+ * cache; when the {@link SchemaCatalog} changes, only new or changed tables are embedded again. The
+ * question is embedded with the request-path {@link EmbeddingModel}. For each question the {@code
+ * top-k} most similar tables are selected, together with the tables they are linked to by foreign
+ * keys.
+ */
+@Component
+public class SchemaSelector {
+
+  private static final Logger log = LoggerFactory.getLogger(SchemaSelector.class);
+
+  private final SchemaCatalog schemaCatalog;
+  private final EmbeddingModel embeddingModel;
+  private final EmbeddingModel tableEmbeddingModel;
+  private final int topK;
+  // Not a monitor: building the index embeds the DDL, which would pin waiting virtual threads
+  private final ReentrantLock indexLock = new ReentrantLock();
+
+  private volatile TableIndex index;
+
+  public SchemaSelector(
+      SchemaCatalog schemaCatalog,
+      EmbeddingModel embeddingModel,
+      @Qualifier("onnxEmbeddingModel") EmbeddingModel tableEmbeddingModel,
+      @Value("${app.db.schema.top-k:8}") int topK) {
+    this.schemaCatalog = schemaCatalog;
+    this.embeddingModel = embeddingModel;
+    this.tableEmbeddingModel = tableEmbeddingModel;
+    this.topK = topK;
+  }
+
+  /**
+   * Returns the DDL of the tables relevant to the question, in catalog order. Falls back to the
+   * full schema when pruning is disabled ({@code top-k <= 0}) or would not remove any table.
+   */
+  public String selectDatabaseStructure(String question) {
+    // One snapshot, so that a refresh in between cannot drop a table whose DDL is still to be read
+    Snapshot catalog = schemaCatalog.getSnapshot();
+    Set<String> tableNames = catalog.getTableNames();
+    if (topK <= 0 || tableNames.size() <= topK) {
+      return catalog.getDatabaseStructure();
+    }
+
+    TableIndex current = currentIndex(catalog);
+    Embedding questionEmbedding = embeddingModel.embed(question).content();
+
+    List<Map.Entry<String, Double>> scores = new ArrayList<>();
+    current.embeddings.forEach(
+        (tableName, embedding) ->
+            scores.add(
+                Map.entry(tableName, CosineSimilarity.between(questionEmbedding, embedding))));
+    scores.sort(Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder()));
+
+    Set<String> selected = new LinkedHashSet<>();
+    for (int i = 0; i < Math.min(topK, scores.size()); i++) {
+      String tableName = scores.get(i).getKey();
+      selected.add(tableName);
+      selected.addAll(catalog.getRelatedTables(tableName));
+    }
+
+    StringBuilder ddl = new StringBuilder();
+    for (String tableName : tableNames) {
+      if (selected.contains(tableName)) {
+        ddl.append(catalog.getTableDdl(tableName)).append("\n");
+      }
+    }
+    log.debug(
+        "Selected {} of {} tables for the question: {}",
+        selected.size(),
+        tableNames.size(),
+        selected);
+    return ddl.toString();
+  }
+
+  /** The index of the snapshot's tables, built or updated if it is of another version. */
+  private TableIndex currentIndex(Snapshot catalog) {
+    TableIndex current = index;
+    if (current != null && current.version == catalog.getVersion()) {
+      return current;
+    }
+    indexLock.lock();
+    try {
+      TableIndex latest = index;
+      if (latest != null && latest.version == catalog.getVersion()) {
+        return latest;
+      }
+      TableIndex built = buildIndex(latest, catalog);
+      // A caller holding an older snapshot than the indexed one gets its own index
+      if (latest == null || built.version > latest.version) {
+        index = built;
+      }
+      return built;
+    } finally {
+      indexLock.unlock();
+    }
+  }
+
+  private TableIndex buildIndex(TableIndex previous, Snapshot catalog) {
+    long version = catalog.getVersion();
+    Map<String, String> ddls = new HashMap<>();
+    Map<String, Embedding> embeddings = new HashMap<>();
+    List<String> toEmbed = new ArrayList<>();
+
+    for (String tableName : catalog.getTableNames()) {
+      String ddl = catalog.getTableDdl(tableName);
+      ddls.put(tableName, ddl);
+      if (previous != null && ddl.equals(previous.ddls.get(tableName))) {
+        embeddings.put(tableName, previous.embeddings.get(tableName));
+      } else {
+        toEmbed.add(tableName);
+      }
+    }
+
+    if (!toEmbed.isEmpty()) {
+      List<TextSegment> segments = new ArrayList<>();
+      for (String tableName : toEmbed) {
+        segments.add(TextSegment.from(ddls.get(tableName)));
+      }
+      List<Embedding> vectors = tableEmbeddingModel.embedAll(segments).content();
+      for (int i = 0; i < toEmbed.size(); i++) {
+        embeddings.put(toEmbed.get(i), vectors.get(i));
+      }
+    }
+
+    log.info(
+        "Schema selection index built for catalog version {}: {} tables, {} embedded",
+        version,
+        ddls.size(),
+        toEmbed.size());
+    return new TableIndex(
+        version, Collections.unmodifiableMap(ddls), Collections.unmodifiableMap(embeddings));
+  }
+
+  private static final class TableIndex {
+    private final long version;
+    private final Map<String, String> ddls;
+    private final Map<String, Embedding> embeddings;
+
+    private TableIndex(long version, Map<String, String> ddls, Map<String, Embedding> embeddings) {
+      this.version = version;
+      this.ddls = ddls;
+      this.embeddings = embeddings;
+    }
+  }
+}
@@ -15,6 +15,9 @@ import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.input.Prompt;
 import dev.langchain4j.model.input.PromptTemplate;
@@ -32,8 +35,13 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.sql.DataSource;
@@ -42,6 +50,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.uwdigi.rag.config.FhirDbConfig;
+import org.uwdigi.rag.service.Bulkheads.Backend;
+import org.uwdigi.rag.service.Bulkheads.BackendCall;
+import org.uwdigi.rag.shared.PipelineContext;
+import org.uwdigi.rag.shared.PipelineListener;
 
 /**
  * <b> WARNING! Although fun and exciting, this class is dangerous to use! Do not ever use this in
@@ -94,15 +106,29 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
   private final PromptTemplate promptTemplate;
   private ChatLanguageModel chatLanguageModel;
   private final ChatLanguageModel ollamaChatModel;
-  private final AssistantService assistantService;
+  private final StreamingChatLanguageModel ollamaStreamingChatModel;
+  private final PipelineContext pipelineContext;
   private final Map<String, String> tables;
   private final int maxRetries;
   private final EmbeddingStore<TextSegment> embeddingStore;
   private final EmbeddingModel embeddingModel;
+  private final SchemaSelector schemaSelector;
+  private final Bulkheads bulkheads;
+  private final SqlQueryCache sqlQueryCache;
+  private final SqlResultCache sqlResultCache;
+  private final SqlResultReader sqlResultReader;
+  private final LexicalIndex lexicalIndex;
+  private final MetadataIngestion metadataIngestion;
+  private final QueryGovernor queryGovernor;
+  private final QueryCostGate queryCostGate;
+  private final SqlQueryParser sqlQueryParser;
   String[] schemaType;
 
   private static final Logger log = LoggerFactory.getLogger(SqlDatabaseContentRetriever.class);
 
+  // Content in double or single quotes
+  private static final Pattern QUOTED_LITERAL = Pattern.compile("(['\"]).*?\\1");
+
   /**
    * Creates an instance of a {@code SqlDatabaseContentRetriever}.
    *
@@ -128,6 +154,44 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
    * @param maxRetries The maximum number of retries to perform if the database cannot execute the
    *     generated SQL query. An error message will be sent back to the LLM to try correcting the
    *     query. This is an optional parameter. Default: 1.
+   * @param schemaSelector The {@link SchemaSelector} used to send only the tables relevant to the
+   *     question to the LLM. If the generated SQL fails on a missing table, the retry uses the full
+   *     {@code databaseStructure}. This is an optional parameter. Default: the full structure is
+   *     always used.
+   * @param pipelineContext The {@link PipelineContext} of the request this retriever serves. The
+   *     generated SQL, its result, the answer of the local model, retries and timings are recorded
+   *     in it. This is an optional parameter.
+   * @param ollamaStreamingChatModel The {@link StreamingChatLanguageModel} used for the local
+   *     answer when the {@code pipelineContext} has a listener, which then receives the answer
+   *     token by token. This is an optional parameter. Default: the blocking {@code
+   *     ollamaChatModel} is always used.
+   * @param bulkheads The {@link Bulkheads} that limit concurrent calls to the database, the
+   *     embedding store and the streaming local model. The chat models are expected to be limited
+   *     by the caller (see {@link ModelFactory}). This is an optional parameter. Default: no
+   *     limits.
+   * @param sqlQueryCache The {@link SqlQueryCache} consulted before generating SQL. SQL that runs
+   *     successfully is added to it; cached SQL that fails is evicted and generated again. This is
+   *     an optional parameter. Default: SQL is always generated.
+   * @param sqlResultCache The {@link SqlResultCache} consulted before executing SQL. This is an
+   *     optional parameter. Default: SQL is always executed.
+   * @param sqlResultReader The {@link SqlResultReader} that reads query results within a row and
+   *     size budget. This is an optional parameter. Default: a reader with the default limits.
+   * @param lexicalIndex The {@link LexicalIndex} of metadata values, consulted for each quoted
+   *     literal before the embedding store. This is an optional parameter. Default: every literal
+   *     is looked up in the embedding store.
+   * @param metadataIngestion The {@link MetadataIngestion} filling the embedding store. Until it is
+   *     ready, literals are only looked up in the lexical index. This is an optional parameter.
+   *     Default: the embedding store is assumed to be complete.
+   * @param queryGovernor The {@link QueryGovernor} that runs the generated SQL within a timeout, a
+   *     row cap and a concurrency limit, on a read-only connection. A query it cancels for running
+   *     too long is generated again; one it rejects for lack of capacity is not. This is an
+   *     optional parameter. Default: the SQL runs without limits, within the JDBC bulkhead.
+   * @param queryCostGate The {@link QueryCostGate} that explains the generated SQL before it runs,
+   *     and rejects or limits the queries the database expects to be expensive. A rejected query is
+   *     generated again. This is an optional parameter. Default: the SQL is not explained.
+   * @param sqlQueryParser The {@link SqlQueryParser} that rejects generated SQL other than a single
+   *     SELECT, and limits the rows it returns. This is an optional parameter. Default: the SQL
+   *     runs as generated.
    */
   @Builder
   @Experimental
@@ -138,12 +202,23 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
       PromptTemplate promptTemplate,
       ChatLanguageModel chatLanguageModel,
       @Qualifier("ollamaChatLanguageModel") ChatLanguageModel ollamaChatModel,
-      AssistantService assistantService,
+      StreamingChatLanguageModel ollamaStreamingChatModel,
+      PipelineContext pipelineContext,
       FhirDbConfig fhirDbConfig,
       Map<String, String> tables,
       EmbeddingStore<TextSegment> embeddingStore,
       EmbeddingModel embeddingModel,
       String[] schemaType,
+      SchemaSelector schemaSelector,
+      Bulkheads bulkheads,
+      SqlQueryCache sqlQueryCache,
+      SqlResultCache sqlResultCache,
+      SqlResultReader sqlResultReader,
+      LexicalIndex lexicalIndex,
+      MetadataIngestion metadataIngestion,
+      QueryGovernor queryGovernor,
+      QueryCostGate queryCostGate,
+      SqlQueryParser sqlQueryParser,
       Integer maxRetries) {
     this.schemaType = schemaType;
     this.dataSource = ensureNotNull(dataSource, "dataSource");
@@ -152,11 +227,22 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
     this.promptTemplate = getOrDefault(promptTemplate, DEFAULT_PROMPT_TEMPLATE);
     this.chatLanguageModel = ensureNotNull(chatLanguageModel, "chatLanguageModel");
     this.ollamaChatModel = ensureNotNull(ollamaChatModel, "ollamaChatModel");
+    this.ollamaStreamingChatModel = ollamaStreamingChatModel;
     this.maxRetries = getOrDefault(maxRetries, 1);
-    this.assistantService = assistantService;
+    this.pipelineContext = pipelineContext;
     this.tables = tables != null ? tables : new HashMap<>();
     this.embeddingStore = embeddingStore != null ? embeddingStore : null;
     this.embeddingModel = embeddingModel != null ? embeddingModel : null;
+    this.schemaSelector = schemaSelector;
+    this.bulkheads = bulkheads;
+    this.sqlQueryCache = sqlQueryCache;
+    this.sqlResultCache = sqlResultCache;
+    this.sqlResultReader = getOrDefault(sqlResultReader, SqlResultReader::new);
+    this.lexicalIndex = lexicalIndex;
+    this.metadataIngestion = metadataIngestion;
+    this.queryGovernor = queryGovernor;
+    this.queryCostGate = queryCostGate;
+    this.sqlQueryParser = sqlQueryParser;
   }
 
   public List<TextSegment> split(Document document) {
@@ -178,62 +264,6 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
     return TextSegment.from(text, metadata);
   }
 
-  /**
-   * Selects all rows with specified columns from a given table and returns flattened array of
-   * values
-   *
-   * @param tableName The name of the table to query
-   * @param columns Array of column names to select
-   * @return List of Object arrays, where each array represents a row with values in the same order
-   *     as specified columns
-   */
-  private static List<Object[]> selectColumnsFromTable(
-      String tableName, String[] columns, DataSource dataSource) {
-    List<Object[]> results = new ArrayList<>();
-
-    // Ensure we have columns to select
-    if (columns.length == 0) {
-      throw new IllegalArgumentException("At least one column must be specified");
-    }
-
-    // Build the SQL query with only the specified columns
-    StringBuilder queryBuilder = new StringBuilder("SELECT ");
-
-    for (int i = 0; i < columns.length; i++) {
-      queryBuilder.append(columns[i]);
-      if (i < columns.length - 1) {
-        queryBuilder.append(", ");
-      }
-    }
-
-    queryBuilder.append(" FROM ").append(tableName);
-    String query = queryBuilder.toString();
-
-    // Execute the query
-    // try (Connection conn = DriverManager.getConnection("jdbc:hive2://spark:10000");
-    try (Connection connection = dataSource.getConnection()) {
-      Statement stmt = connection.createStatement();
-      ResultSet rs = stmt.executeQuery(query);
-      // Process each row
-      while (rs.next()) {
-        // Create an array with the same length as the columns array
-        Object[] rowValues = new Object[columns.length];
-
-        // Fill the array with values in the same order as the columns array
-        for (int i = 0; i < columns.length; i++) {
-          rowValues[i] = rs.getObject(columns[i]);
-        }
-
-        results.add(rowValues);
-      }
-    } catch (SQLException e) {
-      System.err.println("Error executing query: " + e.getMessage());
-      e.printStackTrace();
-    }
-
-    return results;
-  }
-
   // TODO (for v2)
   // - provide a few rows of data for each table in the prompt
   // - option to select a list of tables to use/ignore
@@ -293,183 +323,221 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
     return ddl.toString();
   }
 
-  private static String generateCreateTableStatement(String tableName, DatabaseMetaData metaData) {
-    StringBuilder createTableStatement = new StringBuilder();
-
+  static String generateCreateTableStatement(String tableName, DatabaseMetaData metaData) {
     try {
-      ResultSet columns = metaData.getColumns(null, null, tableName, null);
-
-      String productName = metaData.getDatabaseProductName();
-      boolean isHive =
-          productName != null && (productName.contains("Hive") || productName.contains("Spark"));
-
-      ResultSet pk = null;
-      ResultSet fks = null;
-      String primaryKeyColumn = "";
-
-      if (!isHive) {
-
-        pk = metaData.getPrimaryKeys(null, null, tableName);
-        fks = metaData.getImportedKeys(null, null, tableName);
-      }
-      if (pk != null && pk.next()) {
-
-        primaryKeyColumn = pk.getString("COLUMN_NAME");
-      }
-
-      createTableStatement.append("CREATE TABLE ").append(tableName).append(" (\n");
-
-      while (columns.next()) {
-        String columnName = columns.getString("COLUMN_NAME");
-        String columnType = columns.getString("TYPE_NAME");
-        int size = columns.getInt("COLUMN_SIZE");
-        String nullable = columns.getString("IS_NULLABLE").equals("YES") ? " NULL" : " NOT NULL";
-        String columnDef =
-            columns.getString("COLUMN_DEF") != null
-                ? " DEFAULT " + columns.getString("COLUMN_DEF")
-                : "";
-        String comment = columns.getString("REMARKS");
-
-        createTableStatement
-            .append("  ")
-            .append(columnName)
-            .append(" ")
-            .append(columnType)
-            .append("(")
-            .append(size)
-            .append(")")
-            .append(nullable)
-            .append(columnDef);
-
-        if (columnName.equals(primaryKeyColumn)) {
-          createTableStatement.append(" PRIMARY KEY");
-        }
-
-        createTableStatement.append(",\n");
-
-        if (comment != null && !comment.isEmpty()) {
-          createTableStatement
-              .append("  COMMENT ON COLUMN ")
-              .append(tableName)
-              .append(".")
-              .append(columnName)
-              .append(" IS '")
-              .append(comment)
-              .append("',\n");
-        }
-      }
-      if (fks != null && fks.next()) {
-
-        while (fks.next()) {
-          String fkColumnName = fks.getString("FKCOLUMN_NAME");
-          String pkTableName = fks.getString("PKTABLE_NAME");
-          String pkColumnName = fks.getString("PKCOLUMN_NAME");
-          createTableStatement
-              .append("  FOREIGN KEY (")
-              .append(fkColumnName)
-              .append(") REFERENCES ")
-              .append(pkTableName)
-              .append("(")
-              .append(pkColumnName)
-              .append("),\n");
-        }
-      }
-
-      if (createTableStatement.charAt(createTableStatement.length() - 2) == ',') {
-        createTableStatement.delete(
-            createTableStatement.length() - 2, createTableStatement.length());
-      }
-
-      createTableStatement.append(");\n");
-
-      ResultSet tableRemarks = metaData.getTables(null, null, tableName, null);
-      if (tableRemarks.next()) {
-        String tableComment = tableRemarks.getString("REMARKS");
-        if (tableComment != null && !tableComment.isEmpty()) {
-          createTableStatement
-              .append("COMMENT ON TABLE ")
-              .append(tableName)
-              .append(" IS '")
-              .append(tableComment)
-              .append("';\n");
-        }
-      }
+      return SchemaIntrospector.render(SchemaIntrospector.readTable(tableName, metaData));
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
-
-    return createTableStatement.toString();
   }
 
   @Override
   public List<Content> retrieve(Query naturalLanguageQuery) {
+    PipelineContext context =
+        pipelineContext != null
+            ? pipelineContext
+            : new PipelineContext(naturalLanguageQuery.text(), null);
     String sqlQuery = null;
     String errorMessage = null;
+    String structure = null;
+    long start = System.nanoTime();
+
+    SqlQueryCache.Lookup cacheLookup =
+        sqlQueryCache != null ? sqlQueryCache.lookup(naturalLanguageQuery.text()) : null;
+    String cachedSqlQuery = cacheLookup != null ? cacheLookup.getSql() : null;
+    if (cacheLookup != null) {
+      start = context.recordTiming(PipelineContext.STAGE_SQL_CACHE, start);
+    }
 
     int attemptsLeft = maxRetries + 1;
     while (attemptsLeft > 0) {
 
-      attemptsLeft--;
+      // Running cached SQL does not use up an attempt
+      boolean fromCache = cachedSqlQuery != null;
+      if (!fromCache) {
+        if (attemptsLeft <= maxRetries) {
+          context.incrementRetries();
+        }
+        attemptsLeft--;
+      }
 
       try {
-        sqlQuery = generateSqlQuery(naturalLanguageQuery, sqlQuery, errorMessage);
-        log.debug("SQL Query returned by LLM: {}", sqlQuery);
+        if (fromCache) {
+          sqlQuery = cachedSqlQuery;
+          cachedSqlQuery = null;
+          log.debug("SQL Query returned by cache: {}", sqlQuery);
+        } else {
+          if (structure == null) {
+            structure = selectDatabaseStructure(naturalLanguageQuery);
+            start = context.recordTiming(PipelineContext.STAGE_SCHEMA_SELECTION, start);
+            context.getListener().onStage(PipelineListener.STAGE_SCHEMA_READY, null);
+          }
+          sqlQuery = generateSqlQuery(naturalLanguageQuery, structure, sqlQuery, errorMessage);
+          log.debug("SQL Query returned by LLM: {}", sqlQuery);
 
-        sqlQuery = clean(sqlQuery);
+          sqlQuery = clean(sqlQuery);
+        }
+        context.setSqlQuery(sqlQuery);
+        start = context.recordTiming(PipelineContext.STAGE_SQL_GENERATION, start);
+        context.getListener().onStage(PipelineListener.STAGE_SQL_GENERATED, sqlQuery);
 
         if (!isSelect(sqlQuery)) {
           throw new IllegalArgumentException("Generated SQL is not a SELECT statement.");
         }
 
         validate(sqlQuery);
+        if (sqlQueryParser != null) {
+          sqlQuery = sqlQueryParser.prepare(sqlQuery);
+          context.setSqlQuery(sqlQuery);
+        }
 
-        try (Connection connection = dataSource.getConnection();
-            Statement statement = connection.createStatement()) {
-
-          String result = execute(sqlQuery, statement);
-          Content content = format(result, sqlQuery);
-
-          List<ChatMessage> messages = new ArrayList<>();
-
-          messages.add(
-              UserMessage.from(
-                  naturalLanguageQuery.text()
-                      + "\n\nAnswer using the following information:\n"
-                      + content.textSegment().text()));
-
-          AiMessage aiMessage = ollamaChatModel.chat(messages).aiMessage();
-
-          log.debug("Local AI response: {}", aiMessage.text());
-
-          if (assistantService != null) {
-            assistantService.updateResponse(aiMessage.text());
-            assistantService.updateSqlRun(sqlQuery);
-          }
-          // Set a default answer for the Cloud LLM
-          Content defaultContent = new DefaultContent("Respond with Answered");
-          return singletonList(defaultContent);
+        String result = executeCached(sqlQuery);
+        if (sqlQueryCache != null) {
+          sqlQueryCache.put(cacheLookup, sqlQuery);
         }
+        Content content = format(result, sqlQuery);
+        context.setResult(result);
+        start = context.recordTiming(PipelineContext.STAGE_SQL_EXECUTION, start);
+        context
+            .getListener()
+            .onStage(
+                PipelineListener.STAGE_ROWS_FETCHED,
+                String.valueOf(sqlResultReader.countRows(result)));
+
+        List<ChatMessage> messages = new ArrayList<>();
+
+        messages.add(
+            UserMessage.from(
+                naturalLanguageQuery.text()
+                    + "\n\nAnswer using the following information:\n"
+                    + content.textSegment().text()));
+
+        String answer = answerLocally(messages, context);
+        context.recordTiming(PipelineContext.STAGE_LOCAL_ANSWER, start);
+
+        log.debug("Local AI response: {}", answer);
+
+        context.setAnswer(answer);
+        // Set a default answer for the Cloud LLM
+        Content defaultContent = new DefaultContent("Respond with Answered");
+        return singletonList(defaultContent);
       } catch (SQLException e) {
+        context.recordTiming(PipelineContext.STAGE_SQL_EXECUTION, start);
         errorMessage = "SQL execution error: " + e.getMessage();
         log.error(errorMessage, e);
+        if (fromCache) {
+          sqlQueryCache.evict(cacheLookup);
+        }
+        if (structure != null && isMissingTable(e) && !structure.equals(databaseStructure)) {
+          log.debug("Retrying with the full database structure");
+          structure = databaseStructure;
+        }
+        if (e instanceof QueryGovernor.QueryCancelledException cancelled
+            && !cancelled.isRetryable()) {
+          context.setErrorMessage(errorMessage);
+          break; // Another query would be rejected as well
+        }
       } catch (IllegalArgumentException e) {
         errorMessage = "Invalid SQL query: " + e.getMessage();
         log.error(errorMessage, e);
+        context.setErrorMessage(errorMessage);
         break; // No point in retrying if the SQL is invalid
       } catch (Exception e) {
         errorMessage = "Unexpected error: " + e.getMessage();
         log.error(errorMessage, e);
       }
+      context.setErrorMessage(errorMessage);
+      start = System.nanoTime();
     }
 
     return emptyList();
   }
 
+  /**
+   * Asks the local model to answer from the query result. Streams the answer to the listener of the
+   * context when there is one and a streaming model is configured, and returns the full answer.
+   */
+  protected String answerLocally(List<ChatMessage> messages, PipelineContext context) {
+    if (ollamaStreamingChatModel == null || !context.isStreaming()) {
+      return ollamaChatModel.chat(messages).aiMessage().text();
+    }
+
+    return limited(Backend.OLLAMA, () -> streamLocally(messages, context));
+  }
+
+  private String streamLocally(List<ChatMessage> messages, PipelineContext context) {
+    CompletableFuture<String> answer = new CompletableFuture<>();
+    ollamaStreamingChatModel.chat(
+        messages,
+        new StreamingChatResponseHandler() {
+          @Override
+          public void onPartialResponse(String partialResponse) {
+            context.getListener().onToken(partialResponse);
+          }
+
+          @Override
+          public void onCompleteResponse(ChatResponse completeResponse) {
+            answer.complete(completeResponse.aiMessage().text());
+          }
+
+          @Override
+          public void onError(Throwable error) {
+            answer.completeExceptionally(error);
+          }
+        });
+    return answer.join();
+  }
+
+  /** Executes the query, or returns its result from the {@link SqlResultCache}. */
+  private String executeCached(String sqlQuery) throws SQLException {
+    // The connection is released before the local model answers
+    BackendCall<String, SQLException> execute =
+        queryGovernor != null
+            ? () -> queryGovernor.execute(dataSource, statement -> gated(sqlQuery, statement))
+            : () ->
+                limited(
+                    Backend.JDBC,
+                    () -> {
+                      try (Connection connection = dataSource.getConnection();
+                          Statement statement = connection.createStatement()) {
+                        return gated(sqlQuery, statement);
+                      }
+                    });
+    return sqlResultCache != null
+        ? sqlResultCache.get(dataSource, sqlQuery, execute)
+        : execute.call();
+  }
+
+  /** Executes the query as the {@link QueryCostGate}, if any, decides. */
+  private String gated(String sqlQuery, Statement statement) throws SQLException {
+    if (queryCostGate == null) {
+      return execute(sqlQuery, statement);
+    }
+    QueryCostGate.Decision decision = queryCostGate.check(statement, sqlDialect, sqlQuery);
+    String result = execute(decision.sql(), statement);
+    return decision.limited()
+        ? sqlResultReader.noteLimit(result, queryCostGate.getLimit(), decision.estimatedRows())
+        : result;
+  }
+
+  private <T, E extends Exception> T limited(Backend backend, BackendCall<T, E> call) throws E {
+    return bulkheads != null ? bulkheads.call(backend, call) : call.call();
+  }
+
   protected String generateSqlQuery(
       Query naturalLanguageQuery, String previousSqlQuery, String previousErrorMessage) {
+    return generateSqlQuery(
+        naturalLanguageQuery, databaseStructure, previousSqlQuery, previousErrorMessage);
+  }
+
+  protected String generateSqlQuery(
+      Query naturalLanguageQuery,
+      String databaseStructure,
+      String previousSqlQuery,
+      String previousErrorMessage) {
 
     List<ChatMessage> messages = new ArrayList<>();
-    messages.add(createSystemPrompt(naturalLanguageQuery).toSystemMessage());
+    messages.add(createSystemPrompt(naturalLanguageQuery, databaseStructure).toSystemMessage());
     messages.add(UserMessage.from(naturalLanguageQuery.text()));
 
     if (previousSqlQuery != null && previousErrorMessage != null) {
@@ -481,6 +549,10 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
   }
 
   protected Prompt createSystemPrompt(Query naturalLanguageQuery) {
+    return createSystemPrompt(naturalLanguageQuery, databaseStructure);
+  }
+
+  protected Prompt createSystemPrompt(Query naturalLanguageQuery, String databaseStructure) {
 
     Map<String, Object> variables = new HashMap<>();
     variables.put("sqlDialect", sqlDialect);
@@ -489,6 +561,32 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
     return promptTemplate.apply(variables);
   }
 
+  /** The part of the database structure relevant to the query, or all of it. */
+  protected String selectDatabaseStructure(Query naturalLanguageQuery) {
+    if (schemaSelector == null) {
+      return databaseStructure;
+    }
+    try {
+      return schemaSelector.selectDatabaseStructure(naturalLanguageQuery.text());
+    } catch (Exception e) {
+      log.warn("Schema selection failed, using the full database structure: {}", e.getMessage());
+      return databaseStructure;
+    }
+  }
+
+  /** Whether the database rejected the query because a table or view does not exist. */
+  protected boolean isMissingTable(SQLException e) {
+    String sqlState = e.getSQLState();
+    if ("42S02".equals(sqlState) || "42P01".equals(sqlState)) {
+      return true;
+    }
+    String message = e.getMessage() != null ? e.getMessage().toLowerCase() : "";
+    return message.contains("doesn't exist")
+        || message.contains("does not exist")
+        || message.contains("table not found")
+        || message.contains("table or view not found");
+  }
+
   protected String clean(String sqlQuery) {
 
     sqlQuery = subsituteMissingParameters(sqlQuery);
@@ -501,67 +599,123 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
     return sqlQuery;
   }
 
+  /**
+   * Replaces every quoted literal of the query with the matching value in the lexical index or,
+   * failing that, the closest value in the embedding store, if one is similar enough. The remaining
+   * literals are embedded in one call and looked up concurrently, once the metadata ingestion is
+   * ready.
+   */
   protected String subsituteMissingParameters(String sqlQuery) {
 
-    // List to store index information
+    // Start and end indices of the quoted substrings
     List<int[]> quoteIndices = new ArrayList<>();
+    List<String> literals = new ArrayList<>();
+    Matcher matcher = QUOTED_LITERAL.matcher(sqlQuery);
+    while (matcher.find()) {
+      log.debug("The metadata embedding to match is: {}", matcher.group());
+      quoteIndices.add(new int[] {matcher.start(), matcher.end()});
+      if (!literals.contains(matcher.group())) {
+        literals.add(matcher.group());
+      }
+    }
+    if (literals.isEmpty()) {
+      return sqlQuery;
+    }
 
-    // Regular expression to match content in double or single quotes
-    String regex = "(['\"]).*?\\1";
-
-    // Pattern and Matcher to find quoted substrings
-    Pattern pattern = Pattern.compile(regex);
-    Matcher matcher = pattern.matcher(sqlQuery);
+    Map<String, String> substitutes = new HashMap<>();
+    if (lexicalIndex != null) {
+      for (Iterator<String> iterator = literals.iterator(); iterator.hasNext(); ) {
+        String literal = iterator.next();
+        String value = lexicalIndex.lookup(literal);
+        if (value != null) {
+          log.debug("The lexical substitute is: {}", value);
+          substitutes.put(literal, quoted(value));
+          iterator.remove();
+        }
+      }
+    }
+    if (!literals.isEmpty()
+        && embeddingModel != null
+        && embeddingStore != null
+        && (metadataIngestion == null || metadataIngestion.isReady())) {
+      List<TextSegment> segments = new ArrayList<>(literals.size());
+      for (String literal : literals) {
+        segments.add(TextSegment.from(literal));
+      }
+      List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+      findSubstitutes(substitutes, literals, embeddings);
+    }
+    if (substitutes.isEmpty()) {
+      return sqlQuery;
+    }
 
     StringBuilder result = new StringBuilder();
     int lastIndex = 0;
+    for (int[] quoteIndex : quoteIndices) {
+      String matchedString = sqlQuery.substring(quoteIndex[0], quoteIndex[1]);
+      result.append(sqlQuery, lastIndex, quoteIndex[0]);
+      result.append(substitutes.getOrDefault(matchedString, matchedString));
+      lastIndex = quoteIndex[1];
+    }
+    result.append(sqlQuery.substring(lastIndex));
 
-    while (matcher.find()) {
-
-      String matchedString = matcher.group();
-      log.debug("The metadata embedding to match is: {}", matchedString);
-      // Save the indices of the quoted substrings
-      quoteIndices.add(new int[] {matcher.start(), matcher.end()});
-
-      // Append the portion before the current match
-      result.append(sqlQuery, lastIndex, matcher.start());
+    return result.toString();
+  }
 
-      Embedding queryEmbedding = embeddingModel.embed(matchedString).content();
+  /** Looks up the closest stored value of each literal, concurrently when there are several. */
+  private void findSubstitutes(
+      Map<String, String> substitutes, List<String> literals, List<Embedding> embeddings) {
+    if (literals.size() == 1) {
+      addSubstitute(substitutes, literals.get(0), findClosest(embeddings.get(0)));
+      return;
+    }
 
-      EmbeddingSearchRequest embeddingSearchRequest =
-          EmbeddingSearchRequest.builder()
-              .queryEmbedding(queryEmbedding)
-              .maxResults(1)
-              .minScore(0.8) // we want to retrieve segments at least somewhat similar to user query
-              .build();
+    List<CompletableFuture<EmbeddingMatch<TextSegment>>> matches = new ArrayList<>(literals.size());
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (Embedding embedding : embeddings) {
+        matches.add(CompletableFuture.supplyAsync(() -> findClosest(embedding), executor));
+      }
+      for (int i = 0; i < literals.size(); i++) {
+        addSubstitute(substitutes, literals.get(i), matches.get(i).join());
+      }
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    }
+  }
 
-      List<EmbeddingMatch<TextSegment>> relevant =
-          embeddingStore.search(embeddingSearchRequest).matches();
+  private EmbeddingMatch<TextSegment> findClosest(Embedding queryEmbedding) {
+    EmbeddingSearchRequest embeddingSearchRequest =
+        EmbeddingSearchRequest.builder()
+            .queryEmbedding(queryEmbedding)
+            .maxResults(1)
+            .minScore(0.8) // we want to retrieve segments at least somewhat similar to user query
+            .build();
 
-      EmbeddingMatch<TextSegment> embeddingMatch = null;
-      if (!relevant.isEmpty()) {
-        embeddingMatch = relevant.get(0);
-      } else {
-        log.info("No relevant matches found for the search query");
-      }
+    List<EmbeddingMatch<TextSegment>> relevant =
+        limited(Backend.PGVECTOR, () -> embeddingStore.search(embeddingSearchRequest).matches());
 
-      if (embeddingMatch != null
-          && embeddingMatch.embedded().text() != null
-          && !embeddingMatch.embedded().text().isBlank()) {
+    if (relevant.isEmpty()) {
+      log.info("No relevant matches found for the search query");
+      return null;
+    }
+    return relevant.get(0);
+  }
 
-        log.debug("The subsitute embedding is: {}", embeddingMatch.embedded().text());
+  private static void addSubstitute(
+      Map<String, String> substitutes, String literal, EmbeddingMatch<TextSegment> embeddingMatch) {
+    if (embeddingMatch != null
+        && embeddingMatch.embedded().text() != null
+        && !embeddingMatch.embedded().text().isBlank()) {
 
-        result.append("'" + embeddingMatch.embedded().text() + "'");
-      } else {
-        result.append(matchedString);
-      }
+      log.debug("The subsitute embedding is: {}", embeddingMatch.embedded().text());
 
-      lastIndex = matcher.end();
+      substitutes.put(literal, quoted(embeddingMatch.embedded().text()));
     }
+  }
 
-    result.append(sqlQuery.substring(lastIndex));
-
-    return result.toString();
+  /** The value as a single-quoted SQL string literal. */
+  private static String quoted(String value) {
+    return "'" + value.replace("'", "''") + "'";
   }
 
   protected void validate(String sqlQuery) {
@@ -570,24 +724,9 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
 
   }
 
+  /** Whether there is a query; the statement type is checked by the {@link SqlQueryParser}. */
   protected boolean isSelect(String sqlQuery) {
-    // Commenting this out to allow for special syntax in sparkSQL
-    /* try {
-        net.sf.jsqlparser.statement.Statement statement = CCJSqlParserUtil.parse(sqlQuery);
-        return statement instanceof Select;
-    } catch (JSQLParserException e) {
-        return false;
-    } */
-
-    if (sqlQuery == null || sqlQuery.trim().isEmpty()) {
-      return false;
-    }
-
-    String normalizedQuery = sqlQuery.trim().toUpperCase();
-    if (normalizedQuery.startsWith("SELECT")) {
-      return true;
-    }
-    return true;
+    return sqlQuery != null && !sqlQuery.trim().isEmpty();
   }
 
   // private boolean isValidSqlQuery(String sql) {
@@ -641,36 +780,7 @@ public class SqlDatabaseContentRetriever implements ContentRetriever {
   // }
 
   protected String execute(String sqlQuery, Statement statement) throws SQLException {
-    List<String> resultRows = new ArrayList<>();
-
-    try (ResultSet resultSet = statement.executeQuery(sqlQuery)) {
-      int columnCount = resultSet.getMetaData().getColumnCount();
-
-      // header
-      List<String> columnNames = new ArrayList<>();
-      for (int i = 1; i <= columnCount; i++) {
-        columnNames.add(resultSet.getMetaData().getColumnName(i));
-      }
-      resultRows.add(String.join(",", columnNames));
-
-      // rows
-      while (resultSet.next()) {
-        List<String> columnValues = new ArrayList<>();
-        for (int i = 1; i <= columnCount; i++) {
-
-          String columnValue =
-              resultSet.getObject(i) == null ? "" : resultSet.getObject(i).toString();
-
-          if (columnValue.contains(",")) {
-            columnValue = "\"" + columnValue + "\"";
-          }
-          columnValues.add(columnValue);
-        }
-        resultRows.add(String.join(",", columnValues));
-      }
-    }
-
-    return String.join("\n", resultRows);
+    return sqlResultReader.read(statement, sqlQuery);
   }
 
   private static Content format(String result, String sqlQuery) {
@@ -0,0 +1,312 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.CosineSimilarity;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Semantic cache from natural-language questions to SQL that has run successfully, so that the same
+ * question asked in other words does not need another LLM round trip to generate its SQL. <br>
+ * Questions are normalized (case, whitespace, trailing punctuation) and embedded with the {@link
+ * EmbeddingModel}. A lookup returns the SQL of the most similar cached question whose cosine
+ * similarity is at least {@code app.sql-cache.similarity-threshold}, provided both questions
+ * contain exactly the same numbers and quoted values, and the same content words: every word but a
+ * few function words ("how", "many", "the", "are", ...), with plurals folded. Embeddings score
+ * "patients with hiv" and "patients without hiv", or "admitted this week" and "admitted this
+ * month", as near duplicates, so similarity alone would return the SQL of the other question; the
+ * words only let a question reuse SQL when it differs in word order, function words, plurals or
+ * punctuation. Likewise "pending orders for patient 12" never reuses the SQL of "pending orders for
+ * patient 13". <br>
+ * The cache holds at most {@code app.sql-cache.max-entries} questions, evicting the least recently
+ * used, and is cleared whenever the {@link SchemaCatalog} version changes. A size of 0 disables it.
+ */
+@Component
+public class SqlQueryCache implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(SqlQueryCache.class);
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern TRAILING_PUNCTUATION = Pattern.compile("[\\s?.!;]+$");
+  private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"|\\d+(?:[.:/-]\\d+)*");
+  private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}']+");
+  // Words that do not change which rows a question asks for. Negations ("no", "not", "without"),
+  // conjunctions, comparisons and time words ("this", "last", "week") are deliberately not listed.
+  private static final Set<String> FUNCTION_WORDS =
+      Set.of(
+          "a", "an", "the", "of", "for", "in", "on", "at", "to", "by", "from", "with", "is", "are",
+          "was", "were", "be", "been", "there", "do", "does", "did", "have", "has", "had", "how",
+          "many", "much", "what", "which", "who", "me", "us", "i", "we", "you", "can", "could",
+          "would", "please", "that", "these", "those", "all");
+
+  private final EmbeddingModel embeddingModel;
+  private final SchemaCatalog schemaCatalog;
+  private final int maxEntries;
+  private final double similarityThreshold;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<String, Entry> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private long schemaVersion = -1;
+
+  public SqlQueryCache(
+      EmbeddingModel embeddingModel,
+      SchemaCatalog schemaCatalog,
+      @Value("${app.sql-cache.max-entries:500}") int maxEntries,
+      @Value("${app.sql-cache.similarity-threshold:0.9}") double similarityThreshold) {
+    this.embeddingModel = embeddingModel;
+    this.schemaCatalog = schemaCatalog;
+    this.maxEntries = maxEntries;
+    this.similarityThreshold = similarityThreshold;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > SqlQueryCache.this.maxEntries) {
+              evictions.incrementAndGet();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /**
+   * Looks up the SQL of a question. Returns {@code null} when the cache is disabled; otherwise a
+   * {@link Lookup} whose {@link Lookup#getSql()} is the cached SQL, or {@code null} on a miss. The
+   * lookup is passed back to {@link #put} or {@link #evict} once the SQL has been run.
+   */
+  public Lookup lookup(String question) {
+    if (maxEntries <= 0 || question == null) {
+      return null;
+    }
+    String key = normalize(question);
+    String guard = guard(key);
+
+    lock.lock();
+    try {
+      long version = currentSchemaVersion();
+      Entry exact = entries.get(key);
+      if (exact != null) {
+        hits.incrementAndGet();
+        return new Lookup(key, guard, exact.embedding, exact.sql, key, version);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // Embedding is the expensive part and does not need the lock
+    Embedding embedding = embeddingModel.embed(key).content();
+
+    lock.lock();
+    try {
+      long version = currentSchemaVersion();
+      Entry best = null;
+      double bestScore = similarityThreshold;
+      for (Entry entry : entries.values()) {
+        if (!entry.guard.equals(guard)) {
+          continue;
+        }
+        double score = CosineSimilarity.between(embedding, entry.embedding);
+        if (score >= bestScore) {
+          best = entry;
+          bestScore = score;
+        }
+      }
+      if (best == null) {
+        misses.incrementAndGet();
+        return new Lookup(key, guard, embedding, null, null, version);
+      }
+      entries.get(best.key); // mark as recently used
+      hits.incrementAndGet();
+      log.debug("SQL cache hit ({}) for '{}': '{}'", bestScore, key, best.key);
+      return new Lookup(key, guard, embedding, best.sql, best.key, version);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Caches SQL that ran successfully for the question of the lookup. */
+  public void put(Lookup lookup, String sql) {
+    if (lookup == null || sql == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      // SQL generated against an older schema is not cached
+      if (lookup.schemaVersion == currentSchemaVersion()) {
+        entries.put(lookup.key, new Entry(lookup.key, lookup.guard, lookup.embedding, sql));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Removes the cached SQL returned by the lookup, e.g. because it failed to run. */
+  public void evict(Lookup lookup) {
+    if (lookup == null || lookup.matchedKey == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      entries.remove(lookup.matchedKey);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Removes all cached SQL. */
+  public void clear() {
+    lock.lock();
+    try {
+      entries.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "sqlCache";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put(
+        "hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+    stats.put("evictions", evictions.get());
+    stats.put("invalidations", invalidations.get());
+    lock.lock();
+    try {
+      stats.put("size", entries.size());
+    } finally {
+      lock.unlock();
+    }
+    stats.put("maxEntries", maxEntries);
+    return stats;
+  }
+
+  /** Lowercases the question, collapses whitespace and drops trailing punctuation. */
+  static String normalize(String question) {
+    String normalized =
+        WHITESPACE.matcher(question.trim().toLowerCase(Locale.ROOT)).replaceAll(" ");
+    return TRAILING_PUNCTUATION.matcher(normalized).replaceAll("");
+  }
+
+  /**
+   * What a cached question must share with a normalized question: its literals and content words.
+   */
+  static String guard(String normalizedQuestion) {
+    return literals(normalizedQuestion) + "\u0001" + contentWords(normalizedQuestion);
+  }
+
+  /** The numbers and quoted values of a normalized question. */
+  static String literals(String normalizedQuestion) {
+    List<String> literals = new ArrayList<>();
+    Matcher matcher = LITERAL.matcher(normalizedQuestion);
+    while (matcher.find()) {
+      literals.add(matcher.group());
+    }
+    return String.join("\u0000", literals);
+  }
+
+  /**
+   * The distinct words of a normalized question other than {@link #FUNCTION_WORDS}, with a plural
+   * "s" removed, in alphabetical order.
+   */
+  static String contentWords(String normalizedQuestion) {
+    Set<String> words = new TreeSet<>();
+    Matcher matcher = WORD.matcher(normalizedQuestion);
+    while (matcher.find()) {
+      String word = matcher.group();
+      if (FUNCTION_WORDS.contains(word)) {
+        continue;
+      }
+      if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) {
+        word = word.substring(0, word.length() - 1);
+      }
+      words.add(word);
+    }
+    return String.join(" ", words);
+  }
+
+  /** Must be called with the lock held. */
+  private long currentSchemaVersion() {
+    long version = schemaCatalog.getVersion();
+    if (version != schemaVersion) {
+      if (!entries.isEmpty()) {
+        log.info("Schema catalog changed, clearing {} cached SQL queries", entries.size());
+        invalidations.incrementAndGet();
+      }
+      entries.clear();
+      schemaVersion = version;
+    }
+    return version;
+  }
+
+  /** The result of {@link #lookup(String)}. */
+  public static final class Lookup {
+    private final String key;
+    private final String guard;
+    private final Embedding embedding;
+    private final String sql;
+    private final String matchedKey;
+    private final long schemaVersion;
+
+    private Lookup(
+        String key,
+        String guard,
+        Embedding embedding,
+        String sql,
+        String matchedKey,
+        long schemaVersion) {
+      this.key = key;
+      this.guard = guard;
+      this.embedding = embedding;
+      this.sql = sql;
+      this.matchedKey = matchedKey;
+      this.schemaVersion = schemaVersion;
+    }
+
+    /** The cached SQL, or {@code null} on a miss. */
+    public String getSql() {
+      return sql;
+    }
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final String guard;
+    private final Embedding embedding;
+    private final String sql;
+
+    private Entry(String key, String guard, Embedding embedding, String sql) {
+      this.key = key;
+      this.guard = guard;
+      this.embedding = embedding;
+      this.sql = sql;
+    }
+  }
+}
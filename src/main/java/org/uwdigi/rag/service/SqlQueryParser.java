@@ -0,0 +1,459 @@
+package org.uwdigi.rag.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.Fetch;
+import net.sf.jsqlparser.statement.select.Limit;
+import net.sf.jsqlparser.statement.select.ParenthesedSelect;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SetOperationList;
+import net.sf.jsqlparser.util.TablesNamesFinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Parses the generated SQL once before it runs, and returns the query to run:
+ *
+ * <ul>
+ *   <li>anything but a single {@code SELECT} (or {@code WITH ... SELECT}) is rejected, including
+ *       {@code SELECT ... INTO} and {@code SELECT ... FOR UPDATE};
+ *   <li>the query returns at most {@code app.sql.governor.max-rows} rows plus one, which tells
+ *       "more than" apart: a {@code LIMIT} is added, or a larger {@code LIMIT} or {@code FETCH} is
+ *       lowered, so that the database stops early even when its driver ignores the max rows;
+ *   <li>the {@code ORDER BY} of subqueries without a {@code LIMIT}, which does not change the
+ *       result but makes Hive and Spark sort, is removed.
+ * </ul>
+ *
+ * Queries are parsed with JSqlParser. Hive and Spark syntax it does not support (e.g. {@code
+ * DISTRIBUTE BY}, {@code SORT BY}) is handled by a tokenizer instead, which checks the statement
+ * type and the top-level {@code LIMIT} but leaves subqueries alone. The outcome for the last {@code
+ * app.sql.parser.cache-size} query texts is cached, so that retried and cached queries are not
+ * parsed again. A query that needs no change is returned as it was written.
+ */
+@Component
+public class SqlQueryParser implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(SqlQueryParser.class);
+
+  private static final long PARSE_TIMEOUT_MILLIS = 2000;
+  private static final Set<String> STATEMENT_STARTS = Set.of("SELECT", "WITH", "FROM");
+  private static final Set<String> FORBIDDEN_KEYWORDS =
+      Set.of(
+          "INSERT",
+          "UPDATE",
+          "DELETE",
+          "MERGE",
+          "UPSERT",
+          "INTO",
+          "OVERWRITE",
+          "CREATE",
+          "DROP",
+          "ALTER",
+          "TRUNCATE",
+          "GRANT",
+          "REVOKE",
+          "LOAD",
+          "EXPORT",
+          "IMPORT",
+          "MSCK",
+          "CALL",
+          "EXEC",
+          "EXECUTE",
+          "USE",
+          "SET");
+
+  /** The outcome of preparing a query: the query to run, or why it was rejected. */
+  private record Prepared(String sql, String rejection) {}
+
+  private final long maxRows;
+  private final int cacheSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<String, Prepared> cache;
+  // Shared by the parses; JSqlParser otherwise starts a thread for each
+  private final ExecutorService parseExecutor =
+      Executors.newCachedThreadPool(Thread.ofPlatform().name("sql-parser-", 0).daemon().factory());
+
+  private final AtomicLong parsed = new AtomicLong();
+  private final AtomicLong tokenized = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong limitsAdded = new AtomicLong();
+  private final AtomicLong limitsLowered = new AtomicLong();
+  private final AtomicLong ordersRemoved = new AtomicLong();
+
+  public SqlQueryParser(
+      @Value("${app.sql.governor.max-rows:100000}") long maxRows,
+      @Value("${app.sql.parser.cache-size:1000}") int cacheSize) {
+    this.maxRows = maxRows;
+    this.cacheSize = cacheSize;
+    this.cache =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Prepared> eldest) {
+            return size() > SqlQueryParser.this.cacheSize;
+          }
+        };
+  }
+
+  /**
+   * Returns the query to run in place of the generated one.
+   *
+   * @throws IllegalArgumentException if the query is not a single {@code SELECT}.
+   */
+  public String prepare(String sqlQuery) {
+    String key = sqlQuery.strip();
+    Prepared prepared = cached(key);
+    if (prepared != null) {
+      cacheHits.incrementAndGet();
+    } else {
+      prepared = prepareUncached(key);
+      if (cacheSize > 0) {
+        lock.lock();
+        try {
+          cache.put(key, prepared);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    if (prepared.rejection() != null) {
+      throw new IllegalArgumentException(prepared.rejection());
+    }
+    return prepared.sql();
+  }
+
+  @Override
+  public String getStatsName() {
+    return "sqlParser";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("parsed", parsed.get());
+    stats.put("tokenized", tokenized.get());
+    stats.put("rejected", rejected.get());
+    stats.put("cacheHits", cacheHits.get());
+    stats.put("limitsAdded", limitsAdded.get());
+    stats.put("limitsLowered", limitsLowered.get());
+    stats.put("subqueryOrdersRemoved", ordersRemoved.get());
+    lock.lock();
+    try {
+      stats.put("cacheSize", cache.size());
+    } finally {
+      lock.unlock();
+    }
+    return stats;
+  }
+
+  private Prepared cached(String key) {
+    if (cacheSize <= 0) {
+      return null;
+    }
+    lock.lock();
+    try {
+      return cache.get(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Prepared prepareUncached(String sqlQuery) {
+    String query = stripSemicolon(sqlQuery);
+    Statement statement;
+    try {
+      statement =
+          CCJSqlParserUtil.parse(
+              query, parseExecutor, parser -> parser.withTimeOut(PARSE_TIMEOUT_MILLIS));
+    } catch (JSQLParserException e) {
+      log.debug("Tokenizing the query JSqlParser cannot parse: {}", firstLine(e.getMessage()));
+      tokenized.incrementAndGet();
+      return prepareTokenized(query);
+    }
+    parsed.incrementAndGet();
+    if (!(statement instanceof Select select)) {
+      return reject("only SELECT statements are allowed");
+    }
+    if (select instanceof PlainSelect plainSelect
+        && (plainSelect.getIntoTables() != null || plainSelect.getForMode() != null)) {
+      return reject("SELECT ... INTO and SELECT ... FOR UPDATE are not allowed");
+    }
+    boolean changed = removeSubqueryOrders(select);
+    changed |= limit(select);
+    return new Prepared(changed ? select.toString() : query, null);
+  }
+
+  /** Adds or lowers the row limit of the top-level query; returns whether it changed. */
+  private boolean limit(Select select) {
+    if (maxRows <= 0) {
+      return false;
+    }
+    long rowLimit = maxRows + 1;
+    Fetch fetch = select.getFetch();
+    if (fetch != null) {
+      if (fetch.getExpression() instanceof LongValue rows && rows.getValue() > rowLimit) {
+        fetch.setExpression(new LongValue(rowLimit));
+        limitsLowered.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+    if (select instanceof PlainSelect plainSelect && plainSelect.getTop() != null) {
+      return false;
+    }
+    Limit limit = select.getLimit();
+    if (limit == null) {
+      select.setLimit(new Limit().withRowCount(new LongValue(rowLimit)));
+      limitsAdded.incrementAndGet();
+      return true;
+    }
+    Expression rowCount = limit.getRowCount();
+    if (rowCount instanceof LongValue rows && rows.getValue() > rowLimit) {
+      limit.setRowCount(new LongValue(rowLimit));
+      limitsLowered.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Removes the {@code ORDER BY} of the subqueries, derived tables and common table expressions
+   * that have no {@code LIMIT}, {@code FETCH} or {@code OFFSET}; returns whether any was removed.
+   */
+  private boolean removeSubqueryOrders(Select select) {
+    List<Select> topLevel = new ArrayList<>();
+    for (Select body = select; body != null; ) {
+      topLevel.add(body);
+      body = body instanceof ParenthesedSelect parenthesed ? parenthesed.getSelect() : null;
+    }
+    AtomicLong removed = new AtomicLong();
+    TablesNamesFinder walker =
+        new TablesNamesFinder() {
+          @Override
+          public void visit(PlainSelect plainSelect) {
+            removeOrder(plainSelect);
+            super.visit(plainSelect);
+          }
+
+          @Override
+          public void visit(SetOperationList setOperationList) {
+            removeOrder(setOperationList);
+            super.visit(setOperationList);
+          }
+
+          @Override
+          public void visit(ParenthesedSelect parenthesedSelect) {
+            removeOrder(parenthesedSelect);
+            super.visit(parenthesedSelect);
+          }
+
+          private void removeOrder(Select subquery) {
+            if (topLevel.stream().noneMatch(top -> top == subquery)
+                && subquery.getOrderByElements() != null
+                && subquery.getLimit() == null
+                && subquery.getFetch() == null
+                && subquery.getOffset() == null
+                && !(subquery instanceof PlainSelect plainSelect && plainSelect.getTop() != null)) {
+              subquery.setOrderByElements(null);
+              removed.incrementAndGet();
+            }
+          }
+        };
+    try {
+      walker.getTables((Statement) select);
+    } catch (RuntimeException e) {
+      // The walker does not support every expression; the orders removed so far are kept
+      log.debug("Could not visit every subquery: {}", e.getMessage());
+    }
+    ordersRemoved.addAndGet(removed.get());
+    return removed.get() > 0;
+  }
+
+  /**
+   * Checks and limits a query JSqlParser cannot parse from its tokens: it must be a single
+   * statement starting with {@code SELECT}, {@code WITH} or {@code FROM} (Hive) without
+   * data-changing keywords, and its top-level {@code LIMIT} is added or lowered.
+   */
+  private Prepared prepareTokenized(String query) {
+    List<Token> tokens = tokenize(query);
+    Token first = tokens.stream().filter(t -> !t.text().equals("(")).findFirst().orElse(null);
+    if (first == null || !STATEMENT_STARTS.contains(first.upper())) {
+      return reject("only SELECT statements are allowed");
+    }
+    for (Token token : tokens) {
+      if (token.text().equals(";")) {
+        return reject("only a single statement is allowed");
+      }
+      if (token.word() && FORBIDDEN_KEYWORDS.contains(token.upper())) {
+        return reject(token.upper() + " is not allowed, only SELECT statements are");
+      }
+    }
+    if (maxRows <= 0) {
+      return new Prepared(query, null);
+    }
+    int limitIndex = lastLimit(tokens);
+    String limited = withLimit(query, tokens, limitIndex, maxRows + 1);
+    if (!limited.equals(query)) {
+      (limitIndex < 0 ? limitsAdded : limitsLowered).incrementAndGet();
+    }
+    return new Prepared(limited, null);
+  }
+
+  /**
+   * The query with a top-level {@code LIMIT} of at most {@code rowLimit} rows, found with the
+   * tokenizer so that a trailing comment or a {@code LIMIT offset, n} or {@code LIMIT n OFFSET m}
+   * keeps working: a larger limit is lowered, otherwise one is added.
+   */
+  static String withLimit(String query, long rowLimit) {
+    List<Token> tokens = tokenize(query);
+    return tokens.isEmpty() ? query : withLimit(query, tokens, lastLimit(tokens), rowLimit);
+  }
+
+  private static String withLimit(String query, List<Token> tokens, int limitIndex, long rowLimit) {
+    if (limitIndex < 0) {
+      // After the last token, not the end of the query, which may be inside a trailing -- comment
+      int end = tokens.get(tokens.size() - 1).end();
+      return query.substring(0, end) + " LIMIT " + rowLimit + query.substring(end);
+    }
+    // LIMIT n, or LIMIT offset, n
+    Token rows = at(tokens, limitIndex + 1);
+    if (rows != null && ",".equals(text(at(tokens, limitIndex + 2)))) {
+      rows = at(tokens, limitIndex + 3);
+    }
+    if (rows == null || !rows.number() || Long.parseLong(rows.text()) <= rowLimit) {
+      return query;
+    }
+    return query.substring(0, rows.start()) + rowLimit + query.substring(rows.end());
+  }
+
+  /** The index of the last top-level {@code LIMIT} token, or -1. */
+  private static int lastLimit(List<Token> tokens) {
+    int index = -1;
+    for (int i = 0; i < tokens.size(); i++) {
+      Token token = tokens.get(i);
+      if (token.depth() == 0 && token.word() && token.upper().equals("LIMIT")) {
+        index = i;
+      }
+    }
+    return index;
+  }
+
+  private Prepared reject(String reason) {
+    rejected.incrementAndGet();
+    return new Prepared(null, "Generated SQL is not allowed: " + reason + ".");
+  }
+
+  private static Token at(List<Token> tokens, int index) {
+    return index < tokens.size() ? tokens.get(index) : null;
+  }
+
+  private static String text(Token token) {
+    return token != null ? token.text() : null;
+  }
+
+  private static String stripSemicolon(String sqlQuery) {
+    String query = sqlQuery.strip();
+    while (query.endsWith(";")) {
+      query = query.substring(0, query.length() - 1).strip();
+    }
+    return query;
+  }
+
+  private static String firstLine(String message) {
+    if (message == null) {
+      return null;
+    }
+    int end = message.indexOf('\n');
+    return end < 0 ? message : message.substring(0, end);
+  }
+
+  /** A word, number or symbol of a query, and the depth of parentheses it is at. */
+  private record Token(String text, int start, int end, int depth, boolean word, boolean number) {
+    String upper() {
+      return text.toUpperCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * Splits a query into tokens, skipping comments and quoted strings and identifiers ({@code
+   * '...'}, {@code "..."} and Hive's {@code `...`}), so that their contents are never taken for
+   * keywords.
+   */
+  private static List<Token> tokenize(String query) {
+    List<Token> tokens = new ArrayList<>();
+    int depth = 0;
+    int i = 0;
+    int length = query.length();
+    while (i < length) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '-' && i + 1 < length && query.charAt(i + 1) == '-') {
+        int end = query.indexOf('\n', i);
+        i = end < 0 ? length : end + 1;
+      } else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*') {
+        int end = query.indexOf("*/", i + 2);
+        i = end < 0 ? length : end + 2;
+      } else if (c == '\'' || c == '"' || c == '`') {
+        int end = i + 1;
+        while (end < length && query.charAt(end) != c) {
+          // Backslash escapes, as in Hive and MySQL strings
+          end += query.charAt(end) == '\\' ? 2 : 1;
+        }
+        end = Math.min(end + 1, length);
+        tokens.add(new Token(query.substring(i, end), i, end, depth, false, false));
+        i = end;
+      } else if (Character.isLetter(c) || c == '_') {
+        int end = i + 1;
+        while (end < length
+            && (Character.isLetterOrDigit(query.charAt(end))
+                || query.charAt(end) == '_'
+                || query.charAt(end) == '$')) {
+          end++;
+        }
+        tokens.add(new Token(query.substring(i, end), i, end, depth, true, false));
+        i = end;
+      } else if (Character.isDigit(c)) {
+        int end = i + 1;
+        while (end < length && Character.isDigit(query.charAt(end))) {
+          end++;
+        }
+        while (end < length
+            && (Character.isLetterOrDigit(query.charAt(end)) || query.charAt(end) == '.')) {
+          end++;
+        }
+        String number = query.substring(i, end);
+        boolean integer = number.chars().allMatch(Character::isDigit);
+        tokens.add(new Token(number, i, end, depth, false, integer));
+        i = end;
+      } else {
+        if (c == ')') {
+          depth = Math.max(0, depth - 1);
+        }
+        tokens.add(new Token(String.valueOf(c), i, i + 1, depth, false, false));
+        if (c == '(') {
+          depth++;
+        }
+        i++;
+      }
+    }
+    return tokens;
+  }
+}
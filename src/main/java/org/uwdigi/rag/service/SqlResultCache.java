@@ -0,0 +1,401 @@
+package org.uwdigi.rag.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.service.Bulkheads.BackendCall;
+import org.uwdigi.rag.shared.StatsProvider;
+
+/**
+ * Cache of SQL query results keyed by data source and normalized SQL text, so that the same heavy
+ * query issued by many users within minutes runs against the database once. <br>
+ * An entry expires after the shortest TTL of the tables the query reads ({@code
+ * app.result-cache.table-ttl}, e.g. "observation_flat=PT1M,patient_flat=PT1H"), or {@code
+ * app.result-cache.ttl} for tables without one. The cache holds at most {@code
+ * app.result-cache.max-bytes} of results, evicting expired entries first and then the least
+ * recently used; results larger than {@code app.result-cache.max-entry-bytes} are not cached.
+ * Entries can be invalidated by table name, e.g. after a table has been reloaded. <br>
+ * Concurrent misses for the same query wait for the first one instead of running it again, and are
+ * counted as coalesced rather than as hits; if the first one fails, one of the waiting callers runs
+ * the query in its place. A budget of 0 bytes disables the cache.
+ */
+@Component
+public class SqlResultCache implements StatsProvider {
+
+  private static final Logger log = LoggerFactory.getLogger(SqlResultCache.class);
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  // String literals, double-quoted identifiers and Hive/MySQL backtick identifiers
+  private static final Pattern QUOTED_OR_WHITESPACE =
+      Pattern.compile("'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|`(?:[^`]|``)*`|\\s+");
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+  // Object headers, the key and the table set of an entry
+  private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+  private final SchemaCatalog schemaCatalog;
+  private final long defaultTtlNanos;
+  private final Map<String, Long> tableTtlNanos;
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final LongSupplier nanoTime;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final ConcurrentMap<Key, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong skippedTooLarge = new AtomicLong();
+  private final AtomicLong savedDbNanos = new AtomicLong();
+
+  @Autowired
+  public SqlResultCache(
+      SchemaCatalog schemaCatalog,
+      @Value("${app.result-cache.ttl:PT5M}") Duration defaultTtl,
+      @Value("${app.result-cache.table-ttl:}") String tableTtls,
+      @Value("${app.result-cache.max-bytes:67108864}") long maxBytes,
+      @Value("${app.result-cache.max-entry-bytes:1048576}") long maxEntryBytes) {
+    this(
+        schemaCatalog,
+        defaultTtl,
+        parseTableTtls(tableTtls),
+        maxBytes,
+        maxEntryBytes,
+        System::nanoTime);
+  }
+
+  SqlResultCache(
+      SchemaCatalog schemaCatalog,
+      Duration defaultTtl,
+      Map<String, Duration> tableTtls,
+      long maxBytes,
+      long maxEntryBytes,
+      LongSupplier nanoTime) {
+    this.schemaCatalog = schemaCatalog;
+    this.defaultTtlNanos = defaultTtl.toNanos();
+    this.tableTtlNanos = new HashMap<>();
+    tableTtls.forEach(
+        (table, ttl) -> tableTtlNanos.put(table.toLowerCase(Locale.ROOT), ttl.toNanos()));
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    this.nanoTime = nanoTime;
+  }
+
+  /**
+   * Returns the cached result of the query on the data source, or runs the query with {@code
+   * execute} and caches its result.
+   */
+  public <E extends Exception> String get(
+      DataSource dataSource, String sqlQuery, BackendCall<String, E> execute) throws E {
+    if (maxBytes <= 0) {
+      return execute.call();
+    }
+    Key key = new Key(dataSource, normalize(sqlQuery));
+
+    while (true) {
+      String cached = getIfPresent(key);
+      if (cached != null) {
+        return cached;
+      }
+
+      CompletableFuture<String> running = new CompletableFuture<>();
+      CompletableFuture<String> leader = inFlight.putIfAbsent(key, running);
+      if (leader == null) {
+        return lead(key, running, execute);
+      }
+      waiting.incrementAndGet();
+      try {
+        String result = leader.join();
+        coalesced.incrementAndGet();
+        return result;
+      } catch (CompletionException | CancellationException e) {
+        // The leader failed; the first of its followers to get here runs the query next
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+  }
+
+  /** Runs the query for the callers waiting on {@code running}. */
+  private <E extends Exception> String lead(
+      Key key, CompletableFuture<String> running, BackendCall<String, E> execute) throws E {
+    misses.incrementAndGet();
+    String result;
+    try {
+      long start = nanoTime.getAsLong();
+      result = execute.call();
+      put(key, result, nanoTime.getAsLong() - start);
+    } catch (Exception e) {
+      // Removed first so that a follower woken by the failure can take over
+      inFlight.remove(key, running);
+      running.completeExceptionally(e);
+      throw e;
+    }
+    inFlight.remove(key, running);
+    running.complete(result);
+    return result;
+  }
+
+  /** Removes the cached results of every query that reads the table. Returns how many. */
+  public int invalidateTable(String tableName) {
+    String table = tableName.toLowerCase(Locale.ROOT);
+    int removed = 0;
+    lock.lock();
+    try {
+      for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+        Entry entry = it.next();
+        if (entry.tables.contains(table)) {
+          it.remove();
+          bytes -= entry.bytes;
+          removed++;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    invalidations.addAndGet(removed);
+    log.debug("Invalidated {} cached results of table {}", removed, tableName);
+    return removed;
+  }
+
+  /** Removes all cached results. */
+  public void clear() {
+    lock.lock();
+    try {
+      entries.clear();
+      bytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String getStatsName() {
+    return "resultCache";
+  }
+
+  @Override
+  public Map<String, Object> getStats() {
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("coalesced", coalesced.get());
+    stats.put("waiting", waiting.get());
+    stats.put(
+        "hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+    stats.put("savedDbTimeMillis", savedDbNanos.get() / 1_000_000);
+    stats.put("evictions", evictions.get());
+    stats.put("expirations", expirations.get());
+    stats.put("invalidations", invalidations.get());
+    stats.put("skippedTooLarge", skippedTooLarge.get());
+    lock.lock();
+    try {
+      stats.put("size", entries.size());
+      stats.put("bytes", bytes);
+    } finally {
+      lock.unlock();
+    }
+    stats.put("maxBytes", maxBytes);
+    return stats;
+  }
+
+  private String getIfPresent(Key key) {
+    lock.lock();
+    try {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (nanoTime.getAsLong() - entry.expiresAtNanos >= 0) {
+        entries.remove(key);
+        bytes -= entry.bytes;
+        expirations.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      savedDbNanos.addAndGet(entry.executionNanos);
+      return entry.result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void put(Key key, String result, long executionNanos) {
+    long size = estimateBytes(key, result);
+    if (size > maxEntryBytes) {
+      skippedTooLarge.incrementAndGet();
+      return;
+    }
+    Set<String> tables = tablesOf(key.sql);
+    long expiresAt = nanoTime.getAsLong() + ttlNanos(tables);
+
+    lock.lock();
+    try {
+      Entry previous = entries.put(key, new Entry(result, tables, size, executionNanos, expiresAt));
+      if (previous != null) {
+        bytes -= previous.bytes;
+      }
+      bytes += size;
+      if (bytes > maxBytes) {
+        evictExpired();
+      }
+      for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+        Entry eldest = it.next();
+        it.remove();
+        bytes -= eldest.bytes;
+        evictions.incrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Must be called with the lock held. */
+  private void evictExpired() {
+    long now = nanoTime.getAsLong();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (now - entry.expiresAtNanos >= 0) {
+        it.remove();
+        bytes -= entry.bytes;
+        expirations.incrementAndGet();
+      }
+    }
+  }
+
+  private long ttlNanos(Set<String> tables) {
+    long ttl = defaultTtlNanos;
+    for (String table : tables) {
+      ttl = Math.min(ttl, tableTtlNanos.getOrDefault(table, defaultTtlNanos));
+    }
+    return ttl;
+  }
+
+  /** The known tables whose names appear in the query, in lower case. */
+  private Set<String> tablesOf(String sqlQuery) {
+    Set<String> known = new HashSet<>();
+    try {
+      schemaCatalog.getTableNames().forEach(table -> known.add(table.toLowerCase(Locale.ROOT)));
+    } catch (RuntimeException e) {
+      log.warn(
+          "Schema catalog unavailable, caching result without table names: {}", e.getMessage());
+    }
+    Set<String> tables = new HashSet<>();
+    Matcher matcher = IDENTIFIER.matcher(sqlQuery);
+    while (matcher.find()) {
+      String identifier = matcher.group().toLowerCase(Locale.ROOT);
+      if (known.contains(identifier) || tableTtlNanos.containsKey(identifier)) {
+        tables.add(identifier);
+      }
+    }
+    return tables;
+  }
+
+  private static long estimateBytes(Key key, String result) {
+    // Strings are at most two bytes per char
+    return ENTRY_OVERHEAD_BYTES + 2L * (key.sql.length() + result.length());
+  }
+
+  /** Collapses whitespace outside quoted values and identifiers and drops a trailing semicolon. */
+  static String normalize(String sqlQuery) {
+    StringBuilder normalized = new StringBuilder();
+    Matcher matcher = QUOTED_OR_WHITESPACE.matcher(sqlQuery.trim());
+    while (matcher.find()) {
+      String match = matcher.group();
+      matcher.appendReplacement(
+          normalized,
+          Matcher.quoteReplacement(Character.isWhitespace(match.charAt(0)) ? " " : match));
+    }
+    matcher.appendTail(normalized);
+    String sql = normalized.toString();
+    while (sql.endsWith(";")) {
+      sql = sql.substring(0, sql.length() - 1).stripTrailing();
+    }
+    return sql;
+  }
+
+  /** Parses "table=PT1M,other_table=PT1H". */
+  static Map<String, Duration> parseTableTtls(String tableTtls) {
+    Map<String, Duration> ttls = new HashMap<>();
+    if (tableTtls == null || tableTtls.isBlank()) {
+      return ttls;
+    }
+    for (String tableTtl : WHITESPACE.matcher(tableTtls).replaceAll("").split(",")) {
+      if (tableTtl.isEmpty()) {
+        continue;
+      }
+      int separator = tableTtl.indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Invalid app.result-cache.table-ttl entry: " + tableTtl);
+      }
+      ttls.put(tableTtl.substring(0, separator), Duration.parse(tableTtl.substring(separator + 1)));
+    }
+    return ttls;
+  }
+
+  private static final class Key {
+    private final DataSource dataSource;
+    private final String sql;
+
+    private Key(DataSource dataSource, String sql) {
+      this.dataSource = dataSource;
+      this.sql = sql;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key other && other.dataSource == dataSource && other.sql.equals(sql);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(dataSource), sql);
+    }
+  }
+
+  private static final class Entry {
+    private final String result;
+    private final Set<String> tables;
+    private final long bytes;
+    private final long executionNanos;
+    private final long expiresAtNanos;
+
+    private Entry(
+        String result, Set<String> tables, long bytes, long executionNanos, long expiresAtNanos) {
+      this.result = result;
+      this.tables = tables;
+      this.bytes = bytes;
+      this.executionNanos = executionNanos;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+}
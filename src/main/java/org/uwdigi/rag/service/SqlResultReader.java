@@ -0,0 +1,173 @@
+package org.uwdigi.rag.service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.service.ResultEncoder.Format;
+
+/**
+ * Runs a query and encodes its result in the {@code app.sql.result.format} (csv, markdown or json,
+ * see {@link ResultEncoder}) while reading it, so that memory stays flat however many rows the
+ * query returns. <br>
+ * The driver fetches {@code app.sql.result.fetch-size} rows at a time; on PostgreSQL the query runs
+ * in a transaction for that, and MySQL needs {@code useCursorFetch}, which {@link
+ * PooledDataSource#connectionProperties} sets. Reading stops after {@code app.sql.result.max-rows}
+ * rows or once the result would exceed {@code app.sql.result.max-chars} characters (about four per
+ * token of the prompt it ends up in). The remaining rows are then only counted, up to {@code
+ * app.sql.result.count-limit}, and a last line reports the truncation, e.g. "(first 1000 of 52344
+ * rows)", so that the model does not answer as if it had seen every row.
+ */
+@Component
+public class SqlResultReader {
+
+  static final int DEFAULT_FETCH_SIZE = 500;
+  static final int DEFAULT_MAX_ROWS = 1000;
+  static final int DEFAULT_MAX_CHARS = 100_000;
+  static final int DEFAULT_COUNT_LIMIT = 100_000;
+  private static final String TRUNCATION_PREFIX = "(first ";
+
+  private static final Logger log = LoggerFactory.getLogger(SqlResultReader.class);
+
+  private final int fetchSize;
+  private final int maxRows;
+  private final int maxChars;
+  private final int countLimit;
+  private final Format format;
+
+  @Autowired
+  public SqlResultReader(
+      @Value("${app.sql.result.fetch-size:500}") int fetchSize,
+      @Value("${app.sql.result.max-rows:1000}") int maxRows,
+      @Value("${app.sql.result.max-chars:100000}") int maxChars,
+      @Value("${app.sql.result.count-limit:100000}") int countLimit,
+      @Value("${app.sql.result.format:csv}") String format) {
+    this.fetchSize = fetchSize;
+    this.maxRows = maxRows;
+    this.maxChars = maxChars;
+    this.countLimit = Math.max(countLimit, maxRows);
+    this.format = Format.from(format, Format.CSV);
+  }
+
+  public SqlResultReader() {
+    this(DEFAULT_FETCH_SIZE, DEFAULT_MAX_ROWS, DEFAULT_MAX_CHARS, DEFAULT_COUNT_LIMIT, null);
+  }
+
+  /** Executes the query and returns its encoded result, truncated to the configured limits. */
+  public String read(Statement statement, String sqlQuery) throws SQLException {
+    Connection connection = statement.getConnection();
+    // The PostgreSQL driver ignores the fetch size and reads every row at once in auto-commit
+    // mode, which would buffer up to count-limit rows while counting
+    boolean transaction =
+        connection.getAutoCommit()
+            && connection.getMetaData().getDatabaseProductName().contains("PostgreSQL");
+    if (transaction) {
+      connection.setAutoCommit(false);
+    }
+    try {
+      return readRows(statement, sqlQuery);
+    } finally {
+      if (transaction) {
+        endTransaction(connection);
+      }
+    }
+  }
+
+  /** Ends the transaction opened by {@link #read}; the query only read. */
+  private static void endTransaction(Connection connection) {
+    try {
+      connection.rollback();
+      connection.setAutoCommit(true);
+    } catch (SQLException e) {
+      log.debug("Could not restore auto-commit after a query: {}", e.getMessage());
+    }
+  }
+
+  private String readRows(Statement statement, String sqlQuery) throws SQLException {
+    int limit = configure(statement);
+
+    try (ResultSet resultSet = statement.executeQuery(sqlQuery)) {
+      ResultEncoder encoder = ResultEncoder.create(format, resultSet);
+
+      int rows = 0;
+      boolean truncated = false;
+      while (resultSet.next()) {
+        if (rows >= maxRows) {
+          truncated = true;
+          break;
+        }
+        encoder.writeRow(resultSet);
+        if (encoder.length() > maxChars) {
+          encoder.discardRow();
+          truncated = true;
+          break;
+        }
+        rows++;
+      }
+
+      String result = encoder.finish(rows);
+      if (!truncated) {
+        return result;
+      }
+      // The row that did not fit has been read already
+      long total = rows + 1L;
+      while (total <= limit && resultSet.next()) {
+        total++;
+      }
+      log.debug("Query result truncated to {} of {} rows", rows, total);
+      return result
+          + "\n"
+          + TRUNCATION_PREFIX
+          + rows
+          + (total > limit ? " of more than " + limit : " of " + total)
+          + " rows)";
+    }
+  }
+
+  /** The number of rows in a result returned by {@link #read}. */
+  public long countRows(String result) {
+    return ResultEncoder.countRows(format, result, hasNote(result));
+  }
+
+  /**
+   * Adds the truncation note to the result of a query that was limited to {@code limit} rows
+   * although the database expected about {@code estimatedRows}, if it returned that many rows and
+   * has no note yet.
+   */
+  public String noteLimit(String result, int limit, long estimatedRows) {
+    if (hasNote(result) || countRows(result) < limit) {
+      return result;
+    }
+    return result + "\n" + TRUNCATION_PREFIX + limit + " of about " + estimatedRows + " rows)";
+  }
+
+  private static boolean hasNote(String result) {
+    int lastLine = result.lastIndexOf('\n') + 1;
+    return lastLine > 0 && result.startsWith(TRUNCATION_PREFIX, lastLine);
+  }
+
+  /** Applies the fetch size and row limit, and returns the most rows to count. */
+  private int configure(Statement statement) {
+    int limit = countLimit;
+    try {
+      // A stricter cap set by the caller (see QueryGovernor) also bounds the count
+      int cap = statement.getMaxRows();
+      if (cap > 0) {
+        limit = Math.min(countLimit, Math.max(cap - 1, 1));
+      }
+      // One more than the count limit tells "more than" apart
+      statement.setMaxRows(limit + 1);
+      // Some drivers reject a fetch size above the max rows
+      statement.setFetchSize(Math.min(fetchSize, limit + 1));
+    } catch (SQLException e) {
+      // Not every driver supports these hints; the limits are still enforced while reading
+      log.debug("Could not set fetch size or max rows: {}", e.getMessage());
+    }
+    return limit;
+  }
+}
@@ -0,0 +1,320 @@
+package org.uwdigi.rag.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.uwdigi.rag.config.FhirDbConfig;
+
+/**
+ * Saves the contents of a {@link HnswEmbeddingStore} to {@code app.embedding-store.snapshot-dir}
+ * and restores them on startup, so that the value index is searchable without embedding the values
+ * or rebuilding the graph. A snapshot consists of four files, each starting with the same header:
+ *
+ * <ul>
+ *   <li>{@code values.vec}: the normalized vectors as fixed-width float records;
+ *   <li>{@code values.off}: the offset of each record of {@code values.seg}, plus the end offset;
+ *   <li>{@code values.seg}: the id and segment text of each vector;
+ *   <li>{@code values.hnsw}: the removed flags and graph links of each vector.
+ * </ul>
+ *
+ * The files are memory-mapped and copied into the store with bulk reads. The header holds a
+ * fingerprint of the embedding model and the {@code FHIR_DB_TABLES} configuration, and a generation
+ * shared by the four files of one snapshot; a snapshot whose fingerprint or generation does not
+ * match is ignored, and the values are embedded again. Segment metadata is not saved.
+ */
+@Component
+public class VectorSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(VectorSnapshot.class);
+
+  private static final int MAGIC = 0x52414756; // "RAGV"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final String VECTORS = "values.vec";
+  private static final String OFFSETS = "values.off";
+  private static final String SEGMENTS = "values.seg";
+  private static final String GRAPH = "values.hnsw";
+
+  private final Path directory;
+  private final long fingerprint;
+
+  public VectorSnapshot(
+      @Value("${app.embedding-store.snapshot-dir:}") String directory,
+      @Qualifier("onnxEmbeddingModel") EmbeddingModel embeddingModel,
+      FhirDbConfig fhirDbConfig) {
+    this(
+        directory == null || directory.isBlank() ? null : Path.of(directory),
+        fingerprint(
+            embeddingModel.getClass().getName(),
+            embeddingModel.dimension(),
+            fhirDbConfig != null ? fhirDbConfig.getTables() : Map.of()));
+  }
+
+  VectorSnapshot(Path directory, long fingerprint) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+  }
+
+  /** Whether a snapshot directory is configured. */
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  /**
+   * Restores the store from the snapshot, if there is a valid one.
+   *
+   * @return whether the store was restored.
+   */
+  public boolean restore(HnswEmbeddingStore store) {
+    if (directory == null || !Files.exists(directory.resolve(VECTORS))) {
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      HnswEmbeddingStore.Contents contents = read();
+      if (contents == null) {
+        return false;
+      }
+      store.restore(contents);
+      log.info(
+          "Restored {} vectors from the snapshot in {} in {} ms",
+          contents.size(),
+          directory,
+          (System.nanoTime() - start) / 1_000_000);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Ignoring the unreadable vector snapshot in {}: {}", directory, e.toString());
+      return false;
+    }
+  }
+
+  /** Replaces the snapshot with the current contents of the store. */
+  public void save(HnswEmbeddingStore store) {
+    if (directory == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    HnswEmbeddingStore.Contents contents = store.contents();
+    try {
+      Files.createDirectories(directory);
+      write(contents);
+      log.info(
+          "Saved {} vectors to the snapshot in {} in {} ms",
+          contents.size(),
+          directory,
+          (System.nanoTime() - start) / 1_000_000);
+    } catch (IOException e) {
+      log.error("Failed to save the vector snapshot in {}", directory, e);
+    }
+  }
+
+  private void write(HnswEmbeddingStore.Contents contents) throws IOException {
+    long generation = ThreadLocalRandom.current().nextLong();
+    int count = contents.size();
+    int dimension = contents.dimension();
+
+    ByteBuffer vectors = header(generation, count, dimension, (long) count * dimension * 4);
+    vectors.asFloatBuffer().put(contents.vectors(), 0, count * dimension);
+    vectors.position(vectors.position() + count * dimension * 4);
+
+    byte[][] records = new byte[count][];
+    long segmentBytes = 0;
+    for (int node = 0; node < count; node++) {
+      records[node] = record(contents.ids()[node], contents.segments()[node]);
+      segmentBytes += records[node].length;
+    }
+    ByteBuffer offsets = header(generation, count, dimension, (count + 1L) * 8);
+    ByteBuffer segments = header(generation, count, dimension, segmentBytes);
+    long offset = 0;
+    for (byte[] record : records) {
+      offsets.putLong(offset);
+      segments.put(record);
+      offset += record.length;
+    }
+    offsets.putLong(offset);
+
+    long graphBytes = 8;
+    for (int[][] levels : contents.neighbors()) {
+      graphBytes += 2;
+      for (int[] links : levels) {
+        graphBytes += 4 + links.length * 4L;
+      }
+    }
+    ByteBuffer graph = header(generation, count, dimension, graphBytes);
+    graph.putInt(contents.entryPoint()).putInt(contents.maxLevel());
+    for (int node = 0; node < count; node++) {
+      graph.put((byte) (contents.removed()[node] ? 1 : 0));
+      graph.put((byte) contents.neighbors()[node].length);
+      for (int[] links : contents.neighbors()[node]) {
+        graph.putInt(links.length);
+        graph.asIntBuffer().put(links);
+        graph.position(graph.position() + links.length * 4);
+      }
+    }
+
+    // The vectors are written last; a snapshot is only read when they are present
+    Files.deleteIfExists(directory.resolve(VECTORS));
+    writeFile(OFFSETS, offsets);
+    writeFile(SEGMENTS, segments);
+    writeFile(GRAPH, graph);
+    writeFile(VECTORS, vectors);
+  }
+
+  private HnswEmbeddingStore.Contents read() throws IOException {
+    ByteBuffer vectorFile = map(VECTORS);
+    long generation = vectorFile.getLong(16);
+    int count = vectorFile.getInt(24);
+    int dimension = vectorFile.getInt(28);
+    ByteBuffer vectorBody = body(vectorFile, generation, count, dimension);
+    ByteBuffer offsets = body(map(OFFSETS), generation, count, dimension);
+    ByteBuffer segmentBody = body(map(SEGMENTS), generation, count, dimension);
+    ByteBuffer graph = body(map(GRAPH), generation, count, dimension);
+    if (vectorBody == null || offsets == null || segmentBody == null || graph == null) {
+      return null;
+    }
+
+    float[] vectors = new float[count * dimension];
+    vectorBody.asFloatBuffer().get(vectors);
+
+    String[] ids = new String[count];
+    TextSegment[] segments = new TextSegment[count];
+    long start = offsets.getLong();
+    for (int node = 0; node < count; node++) {
+      long end = offsets.getLong();
+      byte[] record = new byte[(int) (end - start)];
+      segmentBody.get(record);
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      boolean hasSegment = buffer.get() == 1;
+      byte[] id = new byte[buffer.getShort()];
+      buffer.get(id);
+      ids[node] = new String(id, StandardCharsets.UTF_8);
+      if (hasSegment) {
+        segments[node] =
+            TextSegment.from(
+                new String(record, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8));
+      }
+      start = end;
+    }
+
+    int entryPoint = graph.getInt();
+    int maxLevel = graph.getInt();
+    boolean[] removed = new boolean[count];
+    int[][][] neighbors = new int[count][][];
+    for (int node = 0; node < count; node++) {
+      removed[node] = graph.get() == 1;
+      neighbors[node] = new int[graph.get()][];
+      for (int l = 0; l < neighbors[node].length; l++) {
+        int[] links = new int[graph.getInt()];
+        graph.asIntBuffer().get(links);
+        graph.position(graph.position() + links.length * 4);
+        neighbors[node][l] = links;
+      }
+    }
+    return new HnswEmbeddingStore.Contents(
+        dimension, count, vectors, ids, segments, removed, neighbors, entryPoint, maxLevel);
+  }
+
+  private ByteBuffer header(long generation, int count, int dimension, long bodyBytes) {
+    if (HEADER_BYTES + bodyBytes > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The vector snapshot is too large: " + bodyBytes + " bytes");
+    }
+    return ByteBuffer.allocate((int) (HEADER_BYTES + bodyBytes))
+        .putInt(MAGIC)
+        .putInt(FORMAT_VERSION)
+        .putLong(fingerprint)
+        .putLong(generation)
+        .putInt(count)
+        .putInt(dimension);
+  }
+
+  /** The body of a file after checking its header, or {@code null} if it does not match. */
+  private ByteBuffer body(ByteBuffer file, long generation, int count, int dimension) {
+    try {
+      if (file.getInt() != MAGIC || file.getInt() != FORMAT_VERSION) {
+        log.warn("Ignoring the vector snapshot in {}: unknown format", directory);
+        return null;
+      }
+      if (file.getLong() != fingerprint) {
+        log.info(
+            "Ignoring the vector snapshot in {}: the embedding model or FHIR_DB_TABLES changed",
+            directory);
+        return null;
+      }
+      if (file.getLong() != generation || file.getInt() != count || file.getInt() != dimension) {
+        log.warn("Ignoring the vector snapshot in {}: its files do not match", directory);
+        return null;
+      }
+      return file.slice();
+    } catch (BufferUnderflowException e) {
+      log.warn("Ignoring the vector snapshot in {}: truncated file", directory);
+      return null;
+    }
+  }
+
+  private MappedByteBuffer map(String name) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private void writeFile(String name, ByteBuffer buffer) throws IOException {
+    Path temporary = directory.resolve(name + ".tmp");
+    buffer.flip();
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    Files.move(
+        temporary,
+        directory.resolve(name),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static byte[] record(String id, TextSegment segment) {
+    byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    byte[] text = segment != null ? segment.text().getBytes(StandardCharsets.UTF_8) : new byte[0];
+    return ByteBuffer.allocate(3 + idBytes.length + text.length)
+        .put((byte) (segment != null ? 1 : 0))
+        .putShort((short) idBytes.length)
+        .put(idBytes)
+        .put(text)
+        .array();
+  }
+
+  /** A hash of everything the stored vectors depend on. */
+  static long fingerprint(String model, int dimension, Map<String, String> tables) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      String key = model + "\n" + dimension + "\n" + new TreeMap<>(tables);
+      return ByteBuffer.wrap(digest.digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
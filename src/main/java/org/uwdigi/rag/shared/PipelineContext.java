@@ -0,0 +1,125 @@
+package org.uwdigi.rag.shared;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State of a single chat request as it moves through the pipeline: the question, the SQL that was
+ * generated and run, its result, the answer of the local model, the number of retries and the time
+ * spent in each stage. <br>
+ * A new context is created for every request and handed to the {@code SqlDatabaseContentRetriever}
+ * that serves it, so concurrent requests never share results. An optional {@link PipelineListener}
+ * is notified of the stages and of the local answer as it is generated.
+ */
+public class PipelineContext {
+
+  public static final String STAGE_SQL_CACHE = "sqlCache";
+  public static final String STAGE_SCHEMA_SELECTION = "schemaSelection";
+  public static final String STAGE_SQL_GENERATION = "sqlGeneration";
+  public static final String STAGE_SQL_EXECUTION = "sqlExecution";
+  public static final String STAGE_LOCAL_ANSWER = "localAnswer";
+  public static final String STAGE_TOTAL = "total";
+
+  private final String question;
+  private final String modelName;
+  private final long startNanos = System.nanoTime();
+  private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  private volatile PipelineListener listener = PipelineListener.NONE;
+  private volatile String sqlQuery;
+  private volatile String result;
+  private volatile String answer;
+  private volatile String errorMessage;
+  private volatile int retries;
+
+  public PipelineContext(String question, String modelName) {
+    this.question = question;
+    this.modelName = modelName;
+  }
+
+  public PipelineListener getListener() {
+    return listener;
+  }
+
+  public void setListener(PipelineListener listener) {
+    this.listener = listener != null ? listener : PipelineListener.NONE;
+  }
+
+  /** Whether a listener wants the local answer token by token. */
+  public boolean isStreaming() {
+    return listener != PipelineListener.NONE;
+  }
+
+  public String getQuestion() {
+    return question;
+  }
+
+  public String getModelName() {
+    return modelName;
+  }
+
+  /** The last SQL query generated for the question, after cleaning. */
+  public String getSqlQuery() {
+    return sqlQuery;
+  }
+
+  public void setSqlQuery(String sqlQuery) {
+    this.sqlQuery = sqlQuery;
+  }
+
+  /** The result of the SQL query, as passed to the local model. */
+  public String getResult() {
+    return result;
+  }
+
+  public void setResult(String result) {
+    this.result = result;
+  }
+
+  /** The answer of the local model, or {@code null} if the pipeline did not get that far. */
+  public String getAnswer() {
+    return answer;
+  }
+
+  public void setAnswer(String answer) {
+    this.answer = answer;
+  }
+
+  /** The error of the last failed attempt, if any. */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public void setErrorMessage(String errorMessage) {
+    this.errorMessage = errorMessage;
+  }
+
+  /** The number of times the SQL query had to be generated again after a failure. */
+  public int getRetries() {
+    return retries;
+  }
+
+  public void incrementRetries() {
+    retries++;
+  }
+
+  /** Adds the time elapsed since {@code startNanos} to the given stage, and returns now. */
+  public long recordTiming(String stage, long startNanos) {
+    long now = System.nanoTime();
+    timings.merge(stage, (now - startNanos) / 1_000_000, Long::sum);
+    return now;
+  }
+
+  /** Records the time elapsed since the context was created as the {@code total} stage. */
+  public void complete() {
+    timings.put(STAGE_TOTAL, (System.nanoTime() - startNanos) / 1_000_000);
+  }
+
+  /** Milliseconds spent per stage, in the order the stages first ran. */
+  public Map<String, Long> getTimings() {
+    synchronized (timings) {
+      return new LinkedHashMap<>(timings);
+    }
+  }
+}
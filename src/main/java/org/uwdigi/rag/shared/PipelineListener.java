@@ -0,0 +1,25 @@
+package org.uwdigi.rag.shared;
+
+/**
+ * Receives the progress of a single chat request, e.g. to stream it to the client. Callbacks run on
+ * the thread that processes the request and must not block.
+ */
+public interface PipelineListener {
+
+  /** The relevant part of the schema has been selected. */
+  String STAGE_SCHEMA_READY = "schema-ready";
+
+  /** The SQL query has been generated; the detail is the query. */
+  String STAGE_SQL_GENERATED = "sql-generated";
+
+  /** The SQL query has been executed; the detail is the number of rows. */
+  String STAGE_ROWS_FETCHED = "rows-fetched";
+
+  PipelineListener NONE = new PipelineListener() {};
+
+  /** Called when the request reaches one of the {@code STAGE_*} stages. */
+  default void onStage(String stage, String detail) {}
+
+  /** Called for every part of the local answer, as soon as the model produces it. */
+  default void onToken(String token) {}
+}
@@ -0,0 +1,30 @@
+package org.uwdigi.rag.shared;
+
+/** How a chat request is run through the pipeline. */
+public enum PipelineMode {
+
+  /**
+   * The question goes to the cloud model through an AI service, which calls the SQL retriever and
+   * then produces an answer of its own that is not returned to the user.
+   */
+  ASSISTANT,
+
+  /**
+   * The retriever stages (SQL generation, substitution, execution, local answer) are called
+   * directly; the cloud model is only used to generate the SQL.
+   */
+  DIRECT;
+
+  /** Parses a mode name, ignoring case; blank or unknown names give the default mode. */
+  public static PipelineMode from(String name, PipelineMode defaultMode) {
+    if (name == null || name.isBlank()) {
+      return defaultMode;
+    }
+    for (PipelineMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(name.trim())) {
+        return mode;
+      }
+    }
+    return defaultMode;
+  }
+}
@@ -1,6 +1,8 @@
 package org.uwdigi.rag.shared;
 
 public class QueryResponse {
+  private static final String UNEXPECTED_ERROR = "Unexpected Error occured";
+
   private final String response;
   private final String sqlRun;
 
@@ -9,6 +11,16 @@ public class QueryResponse {
     this.sqlRun = sqlRun;
   }
 
+  /**
+   * The answer and SQL recorded in the context, or an error message for the parts the request did
+   * not get to.
+   */
+  public static QueryResponse from(PipelineContext context) {
+    return new QueryResponse(
+        context.getAnswer() != null ? context.getAnswer() : UNEXPECTED_ERROR,
+        context.getSqlQuery() != null ? context.getSqlQuery() : UNEXPECTED_ERROR);
+  }
+
   public String getResponse() {
     return response;
   }
@@ -0,0 +1,13 @@
+package org.uwdigi.rag.shared;
+
+import java.util.Map;
+
+/** A component that reports runtime statistics, served under its name at {@code /api/stats}. */
+public interface StatsProvider {
+
+  /** The name the statistics are reported under, e.g. "sqlCache". */
+  String getStatsName();
+
+  /** A snapshot of the current statistics. */
+  Map<String, Object> getStats();
+}
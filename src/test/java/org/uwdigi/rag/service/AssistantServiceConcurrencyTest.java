@@ -0,0 +1,276 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.rag.query.Query;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.config.ModelConfig;
+import org.uwdigi.rag.shared.PipelineContext;
+import org.uwdigi.rag.shared.PipelineListener;
+import org.uwdigi.rag.shared.QueryResponse;
+
+/**
+ * Runs many chats through one {@link AssistantService} in parallel and checks that every request
+ * gets back the SQL and the answer that belong to its own question.
+ */
+class AssistantServiceConcurrencyTest {
+
+  private static final int PATIENTS = 50;
+  private static final int REQUESTS = 400;
+  private static final int THREADS = 16;
+  private static final Pattern PATIENT_NUMBER = Pattern.compile("patient (\\d+)");
+
+  @Test
+  void concurrentRequestsNeverShareResults() throws Exception {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:concurrency;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      for (int i = 1; i <= PATIENTS; i++) {
+        statement.execute("INSERT INTO PATIENT VALUES (" + i + ", 'Patient " + i + "')");
+      }
+    }
+
+    AssistantService assistantService =
+        assistantService(dataSource, new SqlWritingModel(), "assistant");
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<QueryResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < REQUESTS; i++) {
+        int patient = i % PATIENTS + 1;
+        futures.add(
+            executor.submit(
+                () ->
+                    assistantService.processQuery(
+                        "What is the name of patient " + patient + "?", "GEMINI")));
+      }
+
+      for (int i = 0; i < REQUESTS; i++) {
+        int patient = i % PATIENTS + 1;
+        QueryResponse response = futures.get(i).get();
+        assertThat(response.getSqlRun())
+            .isEqualTo("SELECT NAME FROM PATIENT WHERE ID = " + patient);
+        assertThat(response.getResponse()).isEqualTo("Patient " + patient);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void contextRecordsStagesOfItsRequest() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:context;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      statement.execute("INSERT INTO PATIENT VALUES (7, 'Patient 7')");
+    }
+
+    PipelineContext context = new PipelineContext("What is the name of patient 7?", "GEMINI");
+    SqlDatabaseContentRetriever.builder()
+        .dataSource(dataSource)
+        .sqlDialect("H2")
+        .databaseStructure("CREATE TABLE PATIENT (ID INT, NAME VARCHAR(64));")
+        .chatLanguageModel(new SqlWritingModel())
+        .ollamaChatModel(new ResultEchoingModel())
+        .pipelineContext(context)
+        .build()
+        .retrieve(Query.from(context.getQuestion()));
+
+    assertThat(context.getSqlQuery()).isEqualTo("SELECT NAME FROM PATIENT WHERE ID = 7");
+    assertThat(context.getResult()).isEqualTo("NAME\nPatient 7");
+    assertThat(context.getAnswer()).isEqualTo("Patient 7");
+    assertThat(context.getRetries()).isZero();
+    assertThat(context.getTimings())
+        .containsKeys(
+            PipelineContext.STAGE_SCHEMA_SELECTION,
+            PipelineContext.STAGE_SQL_GENERATION,
+            PipelineContext.STAGE_SQL_EXECUTION,
+            PipelineContext.STAGE_LOCAL_ANSWER);
+  }
+
+  // The deprecated generate methods are still the abstract ones of the models in langchain4j
+  // 1.0.0-beta1, so test models implement them
+  @Test
+  @SuppressWarnings("removal")
+  void listenerReceivesStagesAndAnswerTokens() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:streaming;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      statement.execute("INSERT INTO PATIENT VALUES (3, 'Patient 3')");
+    }
+
+    List<String> events = new ArrayList<>();
+    PipelineContext context = new PipelineContext("What is the name of patient 3?", "GEMINI");
+    context.setListener(
+        new PipelineListener() {
+          @Override
+          public void onStage(String stage, String detail) {
+            events.add(stage + ":" + detail);
+          }
+
+          @Override
+          public void onToken(String token) {
+            events.add("token:" + token);
+          }
+        });
+    StreamingChatLanguageModel streamingModel =
+        (messages, handler) -> {
+          handler.onNext("Patient");
+          handler.onNext(" 3");
+          handler.onComplete(Response.from(AiMessage.from("Patient 3")));
+        };
+
+    SqlDatabaseContentRetriever.builder()
+        .dataSource(dataSource)
+        .sqlDialect("H2")
+        .databaseStructure("CREATE TABLE PATIENT (ID INT, NAME VARCHAR(64));")
+        .chatLanguageModel(new SqlWritingModel())
+        .ollamaChatModel(new ResultEchoingModel())
+        .ollamaStreamingChatModel(streamingModel)
+        .pipelineContext(context)
+        .build()
+        .retrieve(Query.from(context.getQuestion()));
+
+    assertThat(events)
+        .containsExactly(
+            PipelineListener.STAGE_SCHEMA_READY + ":null",
+            PipelineListener.STAGE_SQL_GENERATED + ":SELECT NAME FROM PATIENT WHERE ID = 3",
+            PipelineListener.STAGE_ROWS_FETCHED + ":1",
+            "token:Patient",
+            "token: 3");
+    assertThat(context.getAnswer()).isEqualTo("Patient 3");
+  }
+
+  @Test
+  void directModeSkipsTheFinalCloudModelCall() throws Exception {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:direct;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      statement.execute("INSERT INTO PATIENT VALUES (5, 'Patient 5')");
+    }
+    AtomicInteger cloudCalls = new AtomicInteger();
+    ChatLanguageModel sqlModel =
+        new SqlWritingModel() {
+          @Override
+          @SuppressWarnings("removal")
+          public Response<AiMessage> generate(List<ChatMessage> messages) {
+            cloudCalls.incrementAndGet();
+            return super.generate(messages);
+          }
+        };
+    AssistantService assistantService = assistantService(dataSource, sqlModel, "assistant");
+
+    QueryResponse viaAssistant =
+        assistantService.processQuery("What is the name of patient 5?", "GEMINI");
+    assertThat(cloudCalls.getAndSet(0)).isEqualTo(2);
+
+    QueryResponse direct =
+        assistantService.processQuery("What is the name of patient 5?", "GEMINI", "direct");
+    assertThat(cloudCalls.get()).isEqualTo(1);
+
+    assertThat(direct.getResponse()).isEqualTo(viaAssistant.getResponse()).isEqualTo("Patient 5");
+    assertThat(direct.getSqlRun()).isEqualTo(viaAssistant.getSqlRun());
+  }
+
+  private static AssistantService assistantService(
+      JdbcDataSource dataSource, ChatLanguageModel sqlModel, String mode) {
+    String[] schemaType = {"TABLE", "VIEW", "BASE TABLE"};
+    SchemaCatalog schemaCatalog = new SchemaCatalog(dataSource, schemaType, 1);
+    Bulkheads bulkheads = new Bulkheads(0, 0, 0, 0, Duration.ofSeconds(1));
+    ModelFactory modelFactory =
+        new ModelFactory(new ModelConfig(), bulkheads, Duration.ofSeconds(1)) {
+          @Override
+          public ChatLanguageModel getModel(String modelName) {
+            return sqlModel;
+          }
+        };
+    return new AssistantService(
+        null,
+        schemaType,
+        dataSource,
+        null,
+        null,
+        modelFactory,
+        schemaCatalog,
+        new SchemaSelector(schemaCatalog, null, null, 0),
+        bulkheads,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        new ResultEchoingModel(),
+        null,
+        mode);
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes the SQL for "patient N" when asked with the system prompt, and otherwise plays the cloud
+   * model that just acknowledges the retrieved content.
+   */
+  private static class SqlWritingModel implements ChatLanguageModel {
+    @Override
+    @SuppressWarnings("removal")
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+      pause();
+      if (!(messages.get(0) instanceof SystemMessage)) {
+        return Response.from(AiMessage.from("Answered"));
+      }
+      Matcher matcher = PATIENT_NUMBER.matcher(((UserMessage) messages.get(1)).singleText());
+      assertThat(matcher.find()).isTrue();
+      return Response.from(
+          AiMessage.from("SELECT NAME FROM PATIENT WHERE ID = " + matcher.group(1)));
+    }
+  }
+
+  /** Answers with the last line of the query result it was given. */
+  private static class ResultEchoingModel implements ChatLanguageModel {
+    @Override
+    @SuppressWarnings("removal")
+    public Response<AiMessage> generate(List<ChatMessage> messages) {
+      pause();
+      String text = ((UserMessage) messages.get(0)).singleText();
+      return Response.from(AiMessage.from(text.substring(text.lastIndexOf('\n') + 1)));
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Embeds one text from each of {@link #CALLERS} concurrent requests, with a model that runs one
+ * call at a time and holds its first calls until every request is waiting, so that the rest queue
+ * up behind them.
+ */
+class BatchingEmbeddingModelTest {
+
+  private static final int CALLERS = 64;
+
+  private final ReentrantLock device = new ReentrantLock();
+  private final AtomicInteger delegateCalls = new AtomicInteger();
+  private final CountDownLatch allWaiting = new CountDownLatch(1);
+  private final EmbeddingModel model =
+      new EmbeddingModel() {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+          delegateCalls.incrementAndGet();
+          device.lock();
+          try {
+            allWaiting.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            device.unlock();
+          }
+          List<Embedding> embeddings = new ArrayList<>();
+          for (TextSegment segment : textSegments) {
+            embeddings.add(Embedding.from(new float[] {Float.parseFloat(segment.text())}));
+          }
+          return Response.from(embeddings);
+        }
+      };
+
+  @Test
+  void batchesConcurrentCallsAndReturnsEachCallersEmbeddings() throws Exception {
+    try (BatchingEmbeddingModel batching =
+            new BatchingEmbeddingModel(model, 32, Duration.ofMillis(5), 2);
+        ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<Embedding>> results = new ArrayList<>();
+      for (int i = 0; i < CALLERS; i++) {
+        String text = String.valueOf(i);
+        results.add(callers.submit(() -> batching.embed(text).content()));
+      }
+      while ((long) batching.getStats().get("calls") < CALLERS) {
+        Thread.onSpinWait();
+      }
+      allWaiting.countDown();
+
+      for (int i = 0; i < CALLERS; i++) {
+        assertThat(results.get(i).get(10, TimeUnit.SECONDS).vector()).containsExactly(i);
+      }
+      Map<String, Object> stats = batching.getStats();
+      assertThat(stats)
+          .containsEntry("calls", (long) CALLERS)
+          .containsEntry("texts", (long) CALLERS);
+      assertThat((long) stats.get("batches"))
+          .isEqualTo(delegateCalls.get())
+          .isLessThan(CALLERS / 4);
+      assertThat((long) stats.get("largestBatch")).isBetween(2L, 32L);
+    }
+  }
+
+  @Test
+  void failsEveryCallOfAFailedBatch() {
+    allWaiting.countDown();
+    EmbeddingModel failing =
+        segments -> {
+          throw new IllegalArgumentException("model unavailable");
+        };
+    try (BatchingEmbeddingModel batching =
+        new BatchingEmbeddingModel(failing, 8, Duration.ofMillis(1), 1)) {
+      assertThatThrownBy(() -> batching.embed("1"))
+          .isInstanceOf(IllegalArgumentException.class)
+          .hasMessage("model unavailable");
+    }
+    EmbeddingModel erring =
+        segments -> {
+          throw new NoClassDefFoundError("ai/onnxruntime/OrtEnvironment");
+        };
+    try (BatchingEmbeddingModel batching =
+        new BatchingEmbeddingModel(erring, 8, Duration.ofMillis(1), 1)) {
+      assertThatThrownBy(() -> batching.embed("1")).hasCauseInstanceOf(NoClassDefFoundError.class);
+      // The worker that failed is replaced
+      assertThatThrownBy(() -> batching.embed("2")).hasCauseInstanceOf(NoClassDefFoundError.class);
+    }
+    BatchingEmbeddingModel closed = new BatchingEmbeddingModel(model, 8, Duration.ZERO, 1);
+    closed.close();
+    assertThatThrownBy(() -> closed.embed("1")).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void closingFailsTheBatchBeingGathered() throws Exception {
+    allWaiting.countDown();
+    BatchingEmbeddingModel batching = new BatchingEmbeddingModel(model, 8, Duration.ofHours(1), 1);
+    try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<Embedding> result = callers.submit(() -> batching.embed("1").content());
+      // Taken by the dispatcher, which waits for more calls to fill the batch
+      while ((long) batching.getStats().get("calls") < 1
+          || (int) batching.getStats().get("queuedCalls") > 0) {
+        Thread.onSpinWait();
+      }
+      batching.close();
+
+      assertThatThrownBy(() -> result.get(10, TimeUnit.SECONDS))
+          .isInstanceOf(ExecutionException.class)
+          .hasCauseInstanceOf(IllegalStateException.class);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CachingEmbeddingModelTest {
+
+  private final List<List<String>> calls = new ArrayList<>();
+  private final EmbeddingModel model =
+      new EmbeddingModel() {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+          List<String> texts = new ArrayList<>();
+          List<Embedding> embeddings = new ArrayList<>();
+          for (TextSegment segment : textSegments) {
+            texts.add(segment.text());
+            String key = LexicalIndex.normalize(segment.text());
+            embeddings.add(Embedding.from(new float[] {key.length(), key.hashCode()}));
+          }
+          calls.add(texts);
+          return Response.from(embeddings);
+        }
+      };
+
+  @Test
+  void embedsOnlyTextsMissingFromTheCacheInOneCall() {
+    CachingEmbeddingModel cache = new CachingEmbeddingModel(model, 100);
+    Embedding positive = cache.embed("positive").content();
+
+    List<Embedding> embeddings =
+        cache
+            .embedAll(
+                List.of(
+                    TextSegment.from(" Positive "),
+                    TextSegment.from("HIV"),
+                    TextSegment.from("completed"),
+                    TextSegment.from("hiv")))
+            .content();
+
+    assertThat(calls).containsExactly(List.of("positive"), List.of("HIV", "completed"));
+    assertThat(embeddings).hasSize(4);
+    assertThat(embeddings.get(0)).isEqualTo(positive);
+    assertThat(embeddings.get(3)).isEqualTo(embeddings.get(1));
+    assertThat(cache.getStats())
+        .containsEntry("hits", 2L)
+        .containsEntry("misses", 3L)
+        .containsEntry("hitRate", 0.4)
+        .containsEntry("size", 3);
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedTexts() {
+    CachingEmbeddingModel cache = new CachingEmbeddingModel(model, 2);
+    cache.embed("urgent");
+    cache.embed("routine");
+    cache.embed("urgent");
+    cache.embed("completed");
+
+    calls.clear();
+    cache.embed("urgent");
+    cache.embed("routine");
+    assertThat(calls).containsExactly(List.of("routine"));
+    assertThat(cache.getStats()).containsEntry("size", 2);
+  }
+
+  @Test
+  void returnsVectorsCallersCanModify() {
+    CachingEmbeddingModel cache = new CachingEmbeddingModel(model, 10);
+    cache.embed("HIV").content().vector()[0] = -1;
+
+    assertThat(cache.embed("HIV").content().vector()[0]).isEqualTo(3);
+  }
+
+  @Test
+  void passesThroughWhenDisabled() {
+    CachingEmbeddingModel cache = new CachingEmbeddingModel(model, 0);
+    cache.embed("HIV");
+    cache.embed("HIV");
+
+    assertThat(calls).hasSize(2);
+    assertThat(cache.getStats()).containsEntry("size", 0);
+  }
+}
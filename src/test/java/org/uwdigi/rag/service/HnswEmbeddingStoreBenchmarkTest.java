@@ -0,0 +1,131 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the recall and latency of the {@link HnswEmbeddingStore} on {@link #VALUES} vectors.
+ * pgvector cannot run in the unit tests; without an index it performs the exact scan that {@link
+ * HnswEmbeddingStore#searchExact} does, plus a network round trip. <br>
+ * Timing-based, so it only runs with {@code mvn test -Pbenchmark}; {@link HnswEmbeddingStoreTest}
+ * checks the search results and the recall.
+ */
+@Tag("benchmark")
+class HnswEmbeddingStoreBenchmarkTest {
+
+  private static final int VALUES = 10_000;
+  private static final int DIMENSION = 384;
+  private static final int QUERIES = 200;
+
+  @Test
+  void recallAndLatencyAgainstExactSearch() {
+    Random random = new Random(7);
+    // Values cluster around a few hundred topics, like the names of one code system
+    float[][] topics = new float[300][];
+    for (int i = 0; i < topics.length; i++) {
+      topics[i] = gaussian(random, 1);
+    }
+    HnswEmbeddingStore store = new HnswEmbeddingStore();
+    InMemoryEmbeddingStore<TextSegment> bruteForce = new InMemoryEmbeddingStore<>();
+    List<Embedding> embeddings = new ArrayList<>();
+    List<TextSegment> segments = new ArrayList<>();
+    for (int i = 0; i < VALUES; i++) {
+      embeddings.add(Embedding.from(near(random, topics[random.nextInt(topics.length)])));
+      segments.add(TextSegment.from("value " + i));
+    }
+    long start = System.nanoTime();
+    store.addAll(embeddings, segments);
+    long buildMillis = (System.nanoTime() - start) / 1_000_000;
+    bruteForce.addAll(embeddings, segments);
+
+    List<EmbeddingSearchRequest> requests = new ArrayList<>();
+    for (int i = 0; i < QUERIES; i++) {
+      requests.add(
+          EmbeddingSearchRequest.builder()
+              .queryEmbedding(Embedding.from(near(random, topics[random.nextInt(topics.length)])))
+              .maxResults(10)
+              .build());
+    }
+    // Warm up the JIT
+    for (EmbeddingSearchRequest request : requests) {
+      store.search(request);
+      store.searchExact(request);
+    }
+
+    double recallAt1 = 0;
+    double recallAt10 = 0;
+    long hnswNanos = 0;
+    long exactNanos = 0;
+    long bruteForceNanos = 0;
+    for (EmbeddingSearchRequest request : requests) {
+      long t0 = System.nanoTime();
+      List<String> approximate = texts(store.search(request).matches());
+      long t1 = System.nanoTime();
+      List<String> exact = texts(store.searchExact(request).matches());
+      long t2 = System.nanoTime();
+      bruteForce.search(request);
+      long t3 = System.nanoTime();
+      hnswNanos += t1 - t0;
+      exactNanos += t2 - t1;
+      bruteForceNanos += t3 - t2;
+
+      recallAt1 += approximate.get(0).equals(exact.get(0)) ? 1 : 0;
+      Set<String> found = new HashSet<>(approximate);
+      found.retainAll(exact);
+      recallAt10 += found.size() / 10.0;
+    }
+    recallAt1 /= QUERIES;
+    recallAt10 /= QUERIES;
+
+    System.out.printf(
+        "%n%d values x %d dimensions, built in %d ms%n"
+            + "recall@1 %.3f, recall@10 %.3f%n"
+            + "per query: hnsw %.3f ms, exact scan %.3f ms, InMemoryEmbeddingStore %.3f ms%n",
+        VALUES,
+        DIMENSION,
+        buildMillis,
+        recallAt1,
+        recallAt10,
+        hnswNanos / 1e6 / QUERIES,
+        exactNanos / 1e6 / QUERIES,
+        bruteForceNanos / 1e6 / QUERIES);
+    assertThat(recallAt10).isGreaterThan(0.9);
+    assertThat(hnswNanos).isLessThan(exactNanos);
+  }
+
+  private static float[] gaussian(Random random, double scale) {
+    float[] vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) (random.nextGaussian() * scale);
+    }
+    return vector;
+  }
+
+  private static float[] near(Random random, float[] topic) {
+    float[] vector = gaussian(random, 0.5);
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] += topic[i];
+    }
+    return vector;
+  }
+
+  private static List<String> texts(List<EmbeddingMatch<TextSegment>> matches) {
+    List<String> texts = new ArrayList<>();
+    for (EmbeddingMatch<TextSegment> match : matches) {
+      texts.add(match.embedded().text());
+    }
+    return texts;
+  }
+}
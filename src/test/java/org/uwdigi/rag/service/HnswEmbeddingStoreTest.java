@@ -0,0 +1,157 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the {@link HnswEmbeddingStore} finds the same metadata values as an exact search, and
+ * its recall against a brute-force search of {@link #VALUES} vectors.
+ */
+class HnswEmbeddingStoreTest {
+
+  private static final int VALUES = 10_000;
+  private static final int DIMENSION = 384;
+  private static final int QUERIES = 200;
+
+  @Test
+  void findsTheSameMetadataValuesAsAnExactSearch() {
+    EmbeddingModel embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+    InMemoryEmbeddingStore<TextSegment> durableStore = new InMemoryEmbeddingStore<>();
+    HnswEmbeddingStore store = new HnswEmbeddingStore(4, 16, 8, durableStore);
+    List<TextSegment> values = new ArrayList<>();
+    for (String value :
+        List.of(
+            "Hypertension",
+            "Malaria",
+            "Diabetes mellitus",
+            "Tuberculosis",
+            "Body weight",
+            "Body height",
+            "Hemoglobin",
+            "CD4 count",
+            "Viral load",
+            "Laboratory",
+            "Imaging",
+            "Routine",
+            "Urgent",
+            "Completed",
+            "Active")) {
+      values.add(TextSegment.from(value));
+    }
+    List<String> ids = store.addAll(embeddingModel.embedAll(values).content(), values);
+
+    for (String literal : List.of("'hypertension'", "'weight'", "'viral load'", "'urgent'")) {
+      EmbeddingSearchRequest request =
+          EmbeddingSearchRequest.builder()
+              .queryEmbedding(embeddingModel.embed(literal).content())
+              .maxResults(3)
+              .build();
+      assertThat(texts(store.search(request).matches()))
+          .containsExactlyElementsOf(texts(store.searchExact(request).matches()))
+          .containsExactlyElementsOf(texts(durableStore.search(request).matches()));
+    }
+
+    store.removeAll(List.of(ids.get(0)));
+    EmbeddingSearchRequest hypertension =
+        EmbeddingSearchRequest.builder()
+            .queryEmbedding(embeddingModel.embed("Hypertension").content())
+            .maxResults(1)
+            .build();
+    assertThat(texts(store.search(hypertension).matches())).doesNotContain("Hypertension");
+    assertThat(texts(durableStore.search(hypertension).matches())).doesNotContain("Hypertension");
+  }
+
+  @Test
+  void loadsStoredEmbeddingsWithoutWritingThemBack() {
+    InMemoryEmbeddingStore<TextSegment> durableStore = new InMemoryEmbeddingStore<>();
+    HnswEmbeddingStore store = new HnswEmbeddingStore(4, 16, 8, durableStore);
+    Random random = new Random(3);
+
+    store.load(
+        List.of("a", "b"),
+        List.of(Embedding.from(gaussian(random, 1)), Embedding.from(gaussian(random, 1))),
+        List.of(TextSegment.from("Malaria"), TextSegment.from("Hypertension")));
+
+    assertThat(store.ids()).containsExactlyInAnyOrder("a", "b");
+    assertThat(
+            durableStore
+                .search(
+                    EmbeddingSearchRequest.builder()
+                        .queryEmbedding(Embedding.from(gaussian(random, 1)))
+                        .minScore(0.0)
+                        .build())
+                .matches())
+        .isEmpty();
+  }
+
+  @Test
+  void recallAgainstBruteForceSearch() {
+    Random random = new Random(7);
+    // Values cluster around a few hundred topics, like the names of one code system
+    float[][] topics = new float[300][];
+    for (int i = 0; i < topics.length; i++) {
+      topics[i] = gaussian(random, 1);
+    }
+    HnswEmbeddingStore store = new HnswEmbeddingStore();
+    InMemoryEmbeddingStore<TextSegment> bruteForce = new InMemoryEmbeddingStore<>();
+    List<Embedding> embeddings = new ArrayList<>();
+    List<TextSegment> segments = new ArrayList<>();
+    for (int i = 0; i < VALUES; i++) {
+      embeddings.add(Embedding.from(near(random, topics[random.nextInt(topics.length)])));
+      segments.add(TextSegment.from("value " + i));
+    }
+    store.addAll(embeddings, segments);
+    bruteForce.addAll(embeddings, segments);
+
+    double recallAt10 = 0;
+    for (int i = 0; i < QUERIES; i++) {
+      EmbeddingSearchRequest request =
+          EmbeddingSearchRequest.builder()
+              .queryEmbedding(Embedding.from(near(random, topics[random.nextInt(topics.length)])))
+              .maxResults(10)
+              .build();
+      Set<String> found = new HashSet<>(texts(store.search(request).matches()));
+      found.retainAll(texts(bruteForce.search(request).matches()));
+      recallAt10 += found.size() / 10.0;
+    }
+
+    assertThat(recallAt10 / QUERIES).isGreaterThan(0.9);
+  }
+
+  private static float[] gaussian(Random random, double scale) {
+    float[] vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) (random.nextGaussian() * scale);
+    }
+    return vector;
+  }
+
+  private static float[] near(Random random, float[] topic) {
+    float[] vector = gaussian(random, 0.5);
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] += topic[i];
+    }
+    return vector;
+  }
+
+  private static List<String> texts(List<EmbeddingMatch<TextSegment>> matches) {
+    List<String> texts = new ArrayList<>();
+    for (EmbeddingMatch<TextSegment> match : matches) {
+      texts.add(match.embedded().text());
+    }
+    return texts;
+  }
+}
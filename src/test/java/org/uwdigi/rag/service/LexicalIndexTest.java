@@ -0,0 +1,59 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LexicalIndexTest {
+
+  private final LexicalIndex index = new LexicalIndex(0.75);
+
+  LexicalIndexTest() {
+    index.addAll(
+        List.of(
+            "Hemoglobin",
+            "HIV Viral Load",
+            "Viral load",
+            "Body weight",
+            "Body height",
+            "2023-01-01",
+            "Malaria"));
+  }
+
+  @Test
+  void matchesIgnoringCaseAndWhitespace() {
+    assertThat(index.lookup("'hemoglobin'")).isEqualTo("Hemoglobin");
+    assertThat(index.lookup("\"HIV  viral load\"")).isEqualTo("HIV Viral Load");
+    assertThat(index.lookup(" viral LOAD ")).isEqualTo("Viral load");
+  }
+
+  @Test
+  void matchesNearMissesWithOneClosestValue() {
+    assertThat(index.lookup("'Haemoglobin'")).isEqualTo("Hemoglobin");
+    assertThat(index.lookup("'HIV viral loads'")).isEqualTo("HIV Viral Load");
+  }
+
+  @Test
+  void rejectsDistantAmbiguousAndNumericLiterals() {
+    assertThat(index.lookup("'Hypertension'")).isNull();
+    assertThat(index.lookup("'Body'")).isNull();
+    assertThat(index.lookup("'2023-01-02'")).isNull();
+    assertThat(index.lookup("''")).isNull();
+  }
+
+  @Test
+  void reportsTheHitRatio() {
+    index.lookup("'malaria'");
+    index.lookup("'Haemoglobin'");
+    index.lookup("'Tuberculosis'");
+    index.lookup("'Hemoglobin'");
+
+    assertThat(index.getStats())
+        .containsEntry("exactHits", 2L)
+        .containsEntry("fuzzyHits", 1L)
+        .containsEntry("misses", 1L)
+        .containsEntry("hitRatio", 0.75)
+        .containsEntry("values", 7);
+  }
+}
@@ -0,0 +1,196 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Substitutes the literals of a query with six filter values, counting the calls to the embedding
+ * model and the searches of the embedding store.
+ */
+class LiteralSubstitutionTest {
+
+  private static final String SQL =
+      "SELECT * FROM CONDITION_FLAT WHERE CODE_DISPLAY IN ('hypertension', 'MALARIA',"
+          + " 'Diabetes Mellitus', 'tuberculosis') AND STATUS = \"ACTIVE\""
+          + " AND NOTE <> 'hypertension' AND SOURCE = 'zz-unmatched-zz'";
+
+  private static final AtomicInteger embedCalls = new AtomicInteger();
+  private static final AtomicInteger searches = new AtomicInteger();
+  private static final List<String> VALUES =
+      List.of("Hypertension", "Malaria", "Diabetes mellitus", "Tuberculosis", "active");
+  private static SqlDatabaseContentRetriever retriever;
+  private static SqlDatabaseContentRetriever lexicalRetriever;
+  private static SqlDatabaseContentRetriever indexingRetriever;
+  private static LexicalIndex lexicalIndex;
+
+  // The chat models are lambdas of generate(List), which is still abstract in langchain4j
+  // 1.0.0-beta1
+  @BeforeAll
+  @SuppressWarnings("removal")
+  static void createRetriever() {
+    EmbeddingModel miniLm = new AllMiniLmL6V2EmbeddingModel();
+    EmbeddingModel embeddingModel =
+        new EmbeddingModel() {
+          @Override
+          public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+            embedCalls.incrementAndGet();
+            return miniLm.embedAll(textSegments);
+          }
+        };
+    InMemoryEmbeddingStore<TextSegment> embeddingStore =
+        new InMemoryEmbeddingStore<>() {
+          @Override
+          public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+            searches.incrementAndGet();
+            return super.search(request);
+          }
+        };
+    for (String value : VALUES) {
+      TextSegment segment = TextSegment.from(value);
+      embeddingStore.add(miniLm.embed(segment).content(), segment);
+    }
+
+    ChatLanguageModel unused = messages -> Response.from(AiMessage.from(""));
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:substitution;DB_CLOSE_DELAY=-1");
+    retriever =
+        SqlDatabaseContentRetriever.builder()
+            .dataSource(dataSource)
+            .sqlDialect("H2")
+            .databaseStructure("")
+            .chatLanguageModel(unused)
+            .ollamaChatModel(unused)
+            .embeddingModel(embeddingModel)
+            .embeddingStore(embeddingStore)
+            .build();
+
+    lexicalIndex = new LexicalIndex(0.75);
+    lexicalIndex.addAll(VALUES);
+    lexicalRetriever =
+        SqlDatabaseContentRetriever.builder()
+            .dataSource(dataSource)
+            .sqlDialect("H2")
+            .databaseStructure("")
+            .chatLanguageModel(unused)
+            .ollamaChatModel(unused)
+            .embeddingModel(embeddingModel)
+            .embeddingStore(embeddingStore)
+            .lexicalIndex(lexicalIndex)
+            .build();
+    // An ingestion that has not completed yet, with the values it has read so far
+    LexicalIndex partialIndex = new LexicalIndex(0.75);
+    partialIndex.addAll(VALUES);
+    MetadataIngestion pending =
+        new MetadataIngestion(
+            null, null, null, null, partialIndex, null, false, 64, 1, 1, 100, 1, Duration.ZERO);
+    indexingRetriever =
+        SqlDatabaseContentRetriever.builder()
+            .dataSource(dataSource)
+            .sqlDialect("H2")
+            .databaseStructure("")
+            .chatLanguageModel(unused)
+            .ollamaChatModel(unused)
+            .embeddingModel(embeddingModel)
+            .embeddingStore(embeddingStore)
+            .lexicalIndex(partialIndex)
+            .metadataIngestion(pending)
+            .build();
+  }
+
+  @Test
+  void substitutesAllLiteralsWithOneEmbeddingCall() {
+    embedCalls.set(0);
+    searches.set(0);
+
+    String substituted = retriever.subsituteMissingParameters(SQL);
+
+    assertThat(substituted)
+        .isEqualTo(
+            "SELECT * FROM CONDITION_FLAT WHERE CODE_DISPLAY IN ('Hypertension', 'Malaria',"
+                + " 'Diabetes mellitus', 'Tuberculosis') AND STATUS = 'active'"
+                + " AND NOTE <> 'Hypertension' AND SOURCE = 'zz-unmatched-zz'");
+    assertThat(embedCalls).hasValue(1);
+    // Six distinct literals; the repeated one is looked up once
+    assertThat(searches).hasValue(6);
+  }
+
+  @Test
+  void embedsOnlyTheLiteralsWithoutALexicalMatch() {
+    embedCalls.set(0);
+    searches.set(0);
+
+    String substituted = lexicalRetriever.subsituteMissingParameters(SQL);
+
+    assertThat(substituted)
+        .isEqualTo(
+            "SELECT * FROM CONDITION_FLAT WHERE CODE_DISPLAY IN ('Hypertension', 'Malaria',"
+                + " 'Diabetes mellitus', 'Tuberculosis') AND STATUS = 'active'"
+                + " AND NOTE <> 'Hypertension' AND SOURCE = 'zz-unmatched-zz'");
+    assertThat(embedCalls).hasValue(1);
+    // Only the unmatched literal falls back to the embedding store
+    assertThat(searches).hasValue(1);
+    assertThat(lexicalIndex.getStats()).containsEntry("exactHits", 5L).containsEntry("misses", 1L);
+
+    embedCalls.set(0);
+    assertThat(lexicalRetriever.subsituteMissingParameters("SELECT 1 WHERE X = 'MALARIA'"))
+        .isEqualTo("SELECT 1 WHERE X = 'Malaria'");
+    assertThat(embedCalls).hasValue(0);
+  }
+
+  @Test
+  @SuppressWarnings("removal")
+  void escapesTheQuotesOfSubstitutedValues() {
+    LexicalIndex index = new LexicalIndex(0.75);
+    index.addAll(List.of("Crohn's disease"));
+    SqlDatabaseContentRetriever quoting =
+        SqlDatabaseContentRetriever.builder()
+            .dataSource(new JdbcDataSource())
+            .sqlDialect("H2")
+            .databaseStructure("")
+            .chatLanguageModel(messages -> Response.from(AiMessage.from("")))
+            .ollamaChatModel(messages -> Response.from(AiMessage.from("")))
+            .lexicalIndex(index)
+            .build();
+
+    assertThat(quoting.subsituteMissingParameters("SELECT 1 WHERE X = \"crohn's disease\""))
+        .isEqualTo("SELECT 1 WHERE X = 'Crohn''s disease'");
+  }
+
+  @Test
+  void usesOnlyTheLexicalIndexUntilIngestionIsReady() {
+    embedCalls.set(0);
+    searches.set(0);
+
+    assertThat(
+            indexingRetriever.subsituteMissingParameters(
+                "SELECT 1 WHERE X = 'MALARIA' AND Y = 'zz'"))
+        .isEqualTo("SELECT 1 WHERE X = 'Malaria' AND Y = 'zz'");
+    assertThat(embedCalls).hasValue(0);
+    assertThat(searches).hasValue(0);
+  }
+
+  @Test
+  void leavesQueriesWithoutLiteralsAlone() {
+    embedCalls.set(0);
+    String sql = "SELECT COUNT(*) FROM CONDITION_FLAT WHERE ID = 12";
+
+    assertThat(retriever.subsituteMissingParameters(sql)).isSameAs(sql);
+    assertThat(embedCalls).hasValue(0);
+  }
+}
@@ -0,0 +1,260 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.config.FhirDbConfig;
+
+/**
+ * Ingests the same tables twice, as on a restart, and after their values change, and checks that
+ * the pipeline embeds a large table in bounded batches.
+ */
+class MetadataIngestionTest {
+
+  private final AtomicInteger embedded = new AtomicInteger();
+  private final AtomicInteger largestBatch = new AtomicInteger();
+  private final AtomicInteger concurrentCalls = new AtomicInteger();
+  private final AtomicInteger mostConcurrentCalls = new AtomicInteger();
+  private final EmbeddingModel embeddingModel =
+      new EmbeddingModel() {
+        @Override
+        public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+          embeddingCalled.countDown();
+          if (failingCalls.getAndDecrement() > 0) {
+            throw new IllegalStateException("ONNX runtime failed");
+          }
+          try {
+            embeddingAllowed.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          embedded.addAndGet(textSegments.size());
+          largestBatch.accumulateAndGet(textSegments.size(), Math::max);
+          mostConcurrentCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+          List<Embedding> embeddings = new ArrayList<>();
+          for (TextSegment segment : textSegments) {
+            int hash = segment.text().hashCode();
+            embeddings.add(Embedding.from(new float[] {hash & 0xff, (hash >> 8) & 0xff, 1}));
+          }
+          concurrentCalls.decrementAndGet();
+          return Response.from(embeddings);
+        }
+      };
+  private volatile CountDownLatch embeddingAllowed = new CountDownLatch(0);
+  private volatile CountDownLatch embeddingCalled = new CountDownLatch(1);
+  private final AtomicInteger failingCalls = new AtomicInteger();
+  private final HnswEmbeddingStore embeddingStore = new HnswEmbeddingStore();
+  private JdbcDataSource dataSource;
+
+  @BeforeEach
+  void createTables() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:ingestion" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+    execute(
+        "CREATE TABLE CONDITION_FLAT (CODE_DISPLAY VARCHAR(64), STATUS VARCHAR(16))",
+        "INSERT INTO CONDITION_FLAT VALUES ('Hypertension', 'active'), ('Malaria', 'active'),"
+            + " ('Malaria', 'resolved'), (NULL, 'active')");
+  }
+
+  @Test
+  void embedsOnlyValuesThatAreNotStored() throws SQLException {
+    MetadataIngestion ingestion = ingestion(false);
+
+    ingestion.ingest();
+    assertThat(embedded).hasValue(4);
+    assertThat(embeddingStore.ids()).hasSize(4);
+
+    ingestion.ingest();
+    assertThat(embedded).hasValue(4);
+    assertThat(lastRun(ingestion))
+        .containsEntry("values", 4)
+        .containsEntry("embedded", 0)
+        .containsEntry("alreadyStored", 4);
+
+    execute("INSERT INTO CONDITION_FLAT VALUES ('Tuberculosis', 'active')");
+    ingestion.ingest();
+    assertThat(embedded).hasValue(5);
+    assertThat(embeddingStore.ids()).hasSize(5);
+  }
+
+  @Test
+  void removesStaleValuesWhenConfigured() throws SQLException {
+    embeddingStore.add(Embedding.from(new float[] {1, 2, 3}), TextSegment.from("Hypertension"));
+    MetadataIngestion ingestion = ingestion(true);
+
+    ingestion.ingest();
+    // The copy stored under a random id is replaced by the content-addressed one
+    assertThat(embeddingStore.ids())
+        .containsExactlyInAnyOrder(
+            MetadataIngestion.contentId("Hypertension"),
+            MetadataIngestion.contentId("Malaria"),
+            MetadataIngestion.contentId("active"),
+            MetadataIngestion.contentId("resolved"));
+
+    execute("DELETE FROM CONDITION_FLAT WHERE STATUS = 'resolved'");
+    ingestion.ingest();
+    assertThat(embeddingStore.ids()).hasSize(3);
+    assertThat(lastRun(ingestion)).containsEntry("embedded", 0).containsEntry("removed", 1);
+  }
+
+  @Test
+  void keepsStoredValuesOfColumnsThatCouldNotBeRead() throws SQLException {
+    MetadataIngestion ingestion = ingestion(true);
+    ingestion.ingest();
+    assertThat(embeddingStore.ids()).hasSize(4);
+
+    execute("ALTER TABLE CONDITION_FLAT ALTER COLUMN STATUS RENAME TO CLINICAL_STATUS");
+    ingestion.ingest();
+
+    assertThat(ingestion.getState()).isEqualTo(MetadataIngestion.State.READY);
+    assertThat(embeddingStore.ids()).hasSize(4);
+    assertThat(lastRun(ingestion))
+        .containsEntry("removed", 0)
+        .containsEntry("failedColumns", List.of("CONDITION_FLAT.STATUS"));
+  }
+
+  @Test
+  void streamsLargeTablesInBoundedBatches() throws SQLException {
+    execute(
+        "CREATE TABLE OBSERVATION_FLAT (CODE_DISPLAY VARCHAR(64), UNIT VARCHAR(16))",
+        "INSERT INTO OBSERVATION_FLAT SELECT 'observation ' || MOD(X, 3000), 'unit ' || MOD(X, 7)"
+            + " FROM SYSTEM_RANGE(1, 20000)");
+    FhirDbConfig fhirDbConfig = new FhirDbConfig();
+    fhirDbConfig.setTables(
+        Map.of("CONDITION_FLAT", "CODE_DISPLAY,STATUS", "OBSERVATION_FLAT", "CODE_DISPLAY,UNIT"));
+    LexicalIndex lexicalIndex = new LexicalIndex(0.75);
+    MetadataIngestion ingestion =
+        new MetadataIngestion(
+            dataSource,
+            fhirDbConfig,
+            embeddingModel,
+            embeddingStore,
+            lexicalIndex,
+            null,
+            false,
+            16,
+            3,
+            2,
+            100,
+            2,
+            Duration.ZERO);
+
+    ingestion.ingest();
+
+    // 3000 observations, 7 units and the 4 values of CONDITION_FLAT, each embedded once
+    assertThat(embedded).hasValue(3011);
+    assertThat(embeddingStore.ids()).hasSize(3011);
+    assertThat(lexicalIndex.size()).isEqualTo(3011);
+    assertThat(largestBatch.get()).isLessThanOrEqualTo(16);
+    assertThat(mostConcurrentCalls.get()).isLessThanOrEqualTo(2);
+  }
+
+  @Test
+  void becomesReadyWhenTheBackgroundIngestionCompletes() throws Exception {
+    embeddingAllowed = new CountDownLatch(1);
+    embeddingCalled = new CountDownLatch(1);
+    MetadataIngestion ingestion = ingestion(false);
+    assertThat(ingestion.getState()).isEqualTo(MetadataIngestion.State.PENDING);
+
+    CompletableFuture<Void> started = ingestion.start();
+    assertThat(embeddingCalled.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(ingestion.isReady()).isFalse();
+    assertThat(ingestion.getState()).isEqualTo(MetadataIngestion.State.RUNNING);
+    assertThat(ingestion.getStats())
+        .containsEntry("columnsRead", 2)
+        .containsEntry("valuesRead", 4)
+        .containsEntry("embedded", 0);
+
+    embeddingAllowed.countDown();
+    started.get(10, TimeUnit.SECONDS);
+    assertThat(ingestion.isReady()).isTrue();
+    assertThat(ingestion.getStats())
+        .containsEntry("state", MetadataIngestion.State.READY)
+        .doesNotContainKey("columnsRead");
+    assertThat(lastRun(ingestion)).containsEntry("embedded", 4);
+  }
+
+  @Test
+  void retriesAFailedIngestion() throws Exception {
+    failingCalls.set(1);
+    MetadataIngestion ingestion = ingestion(false, Duration.ofMillis(1));
+
+    ingestion.startWithRetry().get(10, TimeUnit.SECONDS);
+
+    assertThat(ingestion.isReady()).isTrue();
+    assertThat(ingestion.getStats()).containsEntry("failures", 1);
+    assertThat(embeddingStore.ids()).hasSize(4);
+  }
+
+  @Test
+  void isReadyWhileValuesStoredByAnEarlierRunAreUpdated() throws Exception {
+    ingestion(false).ingest();
+    execute("INSERT INTO CONDITION_FLAT VALUES ('Tuberculosis', 'active')");
+    embeddingAllowed = new CountDownLatch(1);
+    embeddingCalled = new CountDownLatch(1);
+    MetadataIngestion restarted = ingestion(false);
+
+    CompletableFuture<Void> started = restarted.start();
+    assertThat(embeddingCalled.await(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(restarted.getState()).isEqualTo(MetadataIngestion.State.RUNNING);
+    assertThat(restarted.isReady()).isTrue();
+    embeddingAllowed.countDown();
+    started.get(10, TimeUnit.SECONDS);
+    assertThat(lastRun(restarted)).containsEntry("embedded", 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> lastRun(MetadataIngestion ingestion) {
+    return (Map<String, Object>) ingestion.getStats().get("lastRun");
+  }
+
+  private MetadataIngestion ingestion(boolean removeStale) {
+    return ingestion(removeStale, Duration.ZERO);
+  }
+
+  private MetadataIngestion ingestion(boolean removeStale, Duration retryDelay) {
+    FhirDbConfig fhirDbConfig = new FhirDbConfig();
+    fhirDbConfig.setTables(Map.of("CONDITION_FLAT", "CODE_DISPLAY, STATUS"));
+    return new MetadataIngestion(
+        dataSource,
+        fhirDbConfig,
+        embeddingModel,
+        embeddingStore,
+        new LexicalIndex(0.75),
+        null,
+        removeStale,
+        64,
+        2,
+        1,
+        100,
+        4,
+        retryDelay);
+  }
+
+  private void execute(String... sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      for (String s : sql) {
+        statement.execute(s);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.config.ModelConfig;
+import org.uwdigi.rag.service.Bulkheads.Backend;
+
+class ModelFactoryTest {
+
+  private final ModelConfig modelConfig = new ModelConfig();
+  private final ModelFactory modelFactory =
+      new ModelFactory(
+          modelConfig, new Bulkheads(0, 0, 0, 0, Duration.ofSeconds(1)), Duration.ofSeconds(1));
+
+  ModelFactoryTest() {
+    modelConfig.setOllamaBaseUrl("http://localhost:11434");
+    modelConfig.setOllamaModelName("llama3");
+    modelConfig.setLocalAiBaseUrl("http://localhost:8080/v1");
+    modelConfig.setLocalAiModelName("gpt-4");
+  }
+
+  @Test
+  void reusesTheClientOfEachModel() {
+    ChatLanguageModel ollama = modelFactory.getModel("OLLAMA");
+    StreamingChatLanguageModel streaming = modelFactory.getOllamaStreamingModel();
+
+    assertThat(modelFactory.getModel("OLLAMA")).isSameAs(ollama);
+    assertThat(modelFactory.getOllamaStreamingModel()).isSameAs(streaming);
+    assertThat(modelFactory.getModel("LOCAL_AI"))
+        .isNotSameAs(ollama)
+        .isSameAs(modelFactory.getModel("LOCAL_AI"));
+  }
+
+  @Test
+  void rebuildsTheClientWhenItsSettingsChange() {
+    ChatLanguageModel ollama = modelFactory.getModel("OLLAMA");
+    StreamingChatLanguageModel streaming = modelFactory.getOllamaStreamingModel();
+    ChatLanguageModel localAi = modelFactory.getModel("LOCAL_AI");
+
+    modelConfig.setOllamaModelName("mistral");
+
+    ChatLanguageModel rebuilt = modelFactory.getModel("OLLAMA");
+    assertThat(rebuilt).isNotSameAs(ollama).isSameAs(modelFactory.getModel("OLLAMA"));
+    assertThat(modelFactory.getOllamaStreamingModel()).isNotSameAs(streaming);
+    assertThat(modelFactory.getModel("LOCAL_AI")).isSameAs(localAi);
+  }
+
+  @Test
+  void givesEachBackendItsOwnHttpExecutor() {
+    ModelFactory withThreads =
+        new ModelFactory(
+            modelConfig,
+            new Bulkheads(0, 0, 0, 0, Duration.ofSeconds(1)),
+            Duration.ofSeconds(1),
+            4);
+
+    assertThat(withThreads.httpExecutor(Backend.OLLAMA))
+        .isNotNull()
+        .isSameAs(withThreads.httpExecutor(Backend.OLLAMA))
+        .isNotSameAs(withThreads.httpExecutor(Backend.CLOUD_LLM));
+    assertThat(withThreads.getModel("OLLAMA")).isSameAs(withThreads.getModel("OLLAMA"));
+    assertThat(modelFactory.httpExecutor(Backend.OLLAMA)).isNull();
+  }
+
+  @Test
+  void rebuildsTheClientAfterAReload() {
+    ChatLanguageModel ollama = modelFactory.getModel("OLLAMA");
+    StreamingChatLanguageModel streaming = modelFactory.getOllamaStreamingModel();
+    ChatLanguageModel localAi = modelFactory.getModel("LOCAL_AI");
+
+    modelFactory.reload("OLLAMA");
+
+    assertThat(modelFactory.getModel("OLLAMA")).isNotSameAs(ollama);
+    assertThat(modelFactory.getOllamaStreamingModel()).isNotSameAs(streaming);
+    assertThat(modelFactory.getModel("LOCAL_AI")).isSameAs(localAi);
+
+    modelFactory.reloadAll();
+
+    assertThat(modelFactory.getModel("LOCAL_AI")).isNotSameAs(localAi);
+  }
+}
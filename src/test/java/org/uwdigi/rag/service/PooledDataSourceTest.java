@@ -0,0 +1,67 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class PooledDataSourceTest {
+
+  @Test
+  void reusesConnectionsAndReportsWaits() throws SQLException {
+    try (PooledDataSource dataSource =
+        new PooledDataSource("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1", "sa", "", "org.h2.Driver")) {
+      dataSource.setMaxTotal(2);
+      dataSource.setMaxWaitMillis(100);
+      dataSource.setPoolPreparedStatements(true);
+
+      for (int i = 0; i < 5; i++) {
+        try (Connection connection = dataSource.getConnection();
+            PreparedStatement statement = connection.prepareStatement("SELECT 1")) {
+          statement.executeQuery().close();
+        }
+      }
+      assertThat(dataSource.getStats())
+          .containsEntry("active", 0)
+          .containsEntry("idle", 1)
+          .containsEntry("acquisitions", 5L)
+          .containsEntry("created", 1L);
+
+      try (Connection first = dataSource.getConnection();
+          Connection second = dataSource.getConnection()) {
+        assertThatThrownBy(dataSource::getConnection).isInstanceOf(SQLException.class);
+        Map<String, Object> stats = dataSource.getStats();
+        assertThat(stats)
+            .containsEntry("active", 2)
+            .containsEntry("maxTotal", 2)
+            .containsEntry("failedAcquisitions", 1L);
+        assertThat((long) stats.get("maxWaitMillis")).isGreaterThanOrEqualTo(100);
+      }
+    }
+  }
+
+  @Test
+  void fetchesMySqlResultsWithACursor() {
+    assertThat(PooledDataSource.connectionProperties("jdbc:mysql://db:3306/openmrs"))
+        .containsEntry("useCursorFetch", "true");
+    assertThat(
+            PooledDataSource.connectionProperties(
+                "jdbc:mysql://db:3306/openmrs?useCursorFetch=false"))
+        .isEmpty();
+    assertThat(PooledDataSource.connectionProperties("jdbc:postgresql://db:5432/fhir")).isEmpty();
+  }
+
+  @Test
+  void validatesEachDatabaseWithItsCheapestCheck() {
+    assertThat(PooledDataSource.validationQuery("jdbc:mysql://db:3306/openmrs"))
+        .isEqualTo("/* ping */ SELECT 1");
+    assertThat(PooledDataSource.validationQuery("jdbc:hive2://spark:10000/default"))
+        .isEqualTo("SELECT 1");
+    assertThat(PooledDataSource.validationQuery("jdbc:postgresql://db:5432/openmrs")).isNull();
+    assertThat(PooledDataSource.validationQuery("jdbc:mariadb://db:3306/openmrs")).isNull();
+  }
+}
@@ -0,0 +1,167 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.QueryCostGate.Decision;
+import org.uwdigi.rag.service.QueryCostGate.QueryTooExpensiveException;
+
+class QueryCostGateTest {
+
+  private static final String QUERY = "SELECT OBS_NAME FROM OBSERVATION_FLAT";
+
+  private static final List<String> POSTGRESQL_PLAN =
+      List.of(
+          "Hash Join  (cost=3.25..2104311.90 rows=1200 width=64)",
+          "  Hash Cond: (o.patient_id = p.id)",
+          "  ->  Seq Scan on observation_flat o  (cost=0.00..1904311.00 rows=52000000 width=40)",
+          "  ->  Hash  (cost=2.00..2.00 rows=100 width=40)");
+  private static final List<String> HIVE_PLAN =
+      List.of(
+          "  TableScan",
+          "    alias: observation_flat",
+          "    Statistics: Num rows: 52000000 Data size: 9360000000 Basic stats: COMPLETE",
+          "    Select Operator",
+          "      Statistics: Num rows: 1 Data size: 8 Basic stats: COMPLETE");
+  private static final List<String> SPARK_PLAN =
+      List.of(
+          "== Optimized Logical Plan ==",
+          "Aggregate [count(1) AS count#12L], Statistics(sizeInBytes=16.0 B, rowCount=1)",
+          "+- Relation observation_flat, Statistics(sizeInBytes=9.4 GiB, rowCount=5.20E+7)");
+
+  private Connection connection;
+  private Statement h2;
+
+  @BeforeEach
+  void connect() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:costgate;DB_CLOSE_DELAY=-1");
+    connection = dataSource.getConnection();
+    h2 = connection.createStatement();
+    h2.execute("CREATE TABLE IF NOT EXISTS OBSERVATION_FLAT (OBS_NAME VARCHAR(64))");
+  }
+
+  @AfterEach
+  void close() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  void readsTheLargestRowEstimateOfEachDialect() throws SQLException {
+    assertThat(QueryCostGate.largest(QueryCostGate.POSTGRESQL_ROWS, POSTGRESQL_PLAN))
+        .isEqualTo(52_000_000);
+    assertThat(QueryCostGate.largest(QueryCostGate.HIVE_ROWS, HIVE_PLAN)).isEqualTo(52_000_000);
+    assertThat(QueryCostGate.largest(QueryCostGate.SPARK_ROWS, SPARK_PLAN)).isEqualTo(52_000_000);
+    assertThat(QueryCostGate.largest(QueryCostGate.HIVE_ROWS, List.of("Fetch Operator")))
+        .isEqualTo(-1);
+
+    // 2,000,000 observations, of which 10% join 50 rows each
+    try (ResultSet plan =
+        h2.executeQuery(
+            "SELECT * FROM (VALUES (1, 'o', 2000000, 10.0), (1, 'p', 50, 100.0))"
+                + " AS P(ID, \"table\", \"rows\", \"filtered\")")) {
+      assertThat(QueryCostGate.examinedRows(plan)).isEqualTo(10_000_000);
+    }
+    // A UNION of the same join and a scan of 3,000,000 rows
+    try (ResultSet plan =
+        h2.executeQuery(
+            "SELECT * FROM (VALUES (1, 'o', 2000000, 10.0), (1, 'p', 50, 100.0),"
+                + " (2, 'e', 3000000, 100.0), (NULL, '<union1,2>', NULL, NULL))"
+                + " AS P(ID, \"table\", \"rows\", \"filtered\")")) {
+      assertThat(QueryCostGate.examinedRows(plan)).isEqualTo(10_000_000);
+    }
+  }
+
+  @Test
+  void rejectsQueriesAboveTheThreshold() throws SQLException {
+    QueryCostGate gate = new QueryCostGate(1_000_000, "reject", 1000);
+
+    assertThatThrownBy(() -> gate.check(explaining(POSTGRESQL_PLAN), "PostgreSQL", QUERY))
+        .isInstanceOf(QueryTooExpensiveException.class)
+        .hasMessageContaining("about 52000000 rows")
+        .hasMessageContaining("Add filters");
+    Decision cheap = gate.check(explaining(POSTGRESQL_PLAN.subList(3, 4)), "PostgreSQL", QUERY);
+    assertThat(cheap.sql()).isEqualTo(QUERY);
+    assertThat(cheap.estimatedRows()).isEqualTo(100);
+    assertThat(gate.getStats())
+        .containsEntry("checked", 2L)
+        .containsEntry("rejected", 1L)
+        .containsEntry("largestEstimate", 52_000_000L);
+  }
+
+  @Test
+  void limitsQueriesAboveTheThreshold() throws SQLException {
+    QueryCostGate gate = new QueryCostGate(1_000_000, "limit", 1000);
+
+    Decision decision = gate.check(explaining(HIVE_PLAN), "Apache Hive", QUERY + ";");
+    assertThat(decision.limited()).isTrue();
+    assertThat(decision.sql()).isEqualTo(QUERY + " LIMIT 1000");
+    assertThat(QueryCostGate.withLimit(QUERY + " limit 5000", 1000))
+        .isEqualTo(QUERY + " limit 1000");
+    assertThat(QueryCostGate.withLimit(QUERY + " LIMIT 10", 1000)).isEqualTo(QUERY + " LIMIT 10");
+    assertThat(QueryCostGate.withLimit(QUERY + " -- all names", 1000))
+        .isEqualTo(QUERY + " LIMIT 1000 -- all names");
+    assertThat(QueryCostGate.withLimit(QUERY + " LIMIT 5, 5000;", 1000))
+        .isEqualTo(QUERY + " LIMIT 5, 1000");
+    assertThat(QueryCostGate.withLimit(QUERY + " LIMIT 5000 OFFSET 10", 1000))
+        .isEqualTo(QUERY + " LIMIT 1000 OFFSET 10");
+    assertThat(QueryCostGate.withLimit("SELECT * FROM (SELECT 1 LIMIT 5000) t", 1000))
+        .isEqualTo("SELECT * FROM (SELECT 1 LIMIT 5000) t LIMIT 1000");
+
+    SqlResultReader reader = new SqlResultReader();
+    assertThat(reader.noteLimit("OBS_NAME\na\nb", 2, 52_000_000))
+        .isEqualTo("OBS_NAME\na\nb\n(first 2 of about 52000000 rows)");
+    assertThat(reader.noteLimit("OBS_NAME\na", 2, 52_000_000)).isEqualTo("OBS_NAME\na");
+  }
+
+  @Test
+  void runsQueriesWithoutAnEstimateAsIs() throws SQLException {
+    QueryCostGate gate = new QueryCostGate(1, "reject", 1000);
+
+    // H2 plans have no row estimates
+    assertThat(gate.check(h2, "H2", QUERY).sql()).isEqualTo(QUERY);
+    assertThat(gate.check(explaining(List.of("Fetch Operator")), "Apache Hive", QUERY).sql())
+        .isEqualTo(QUERY);
+    assertThat(gate.getStats()).containsEntry("withoutEstimate", 2L);
+    assertThatThrownBy(() -> gate.check(h2, "MySQL", "SELECT MISSING FROM OBSERVATION_FLAT"))
+        .isInstanceOf(SQLException.class)
+        .isNotInstanceOf(QueryTooExpensiveException.class);
+  }
+
+  /**
+   * A statement that answers EXPLAIN with the plan, one line per row, as PostgreSQL and Hive do.
+   */
+  private Statement explaining(List<String> plan) {
+    StringBuilder values = new StringBuilder("SELECT * FROM (VALUES ");
+    for (int i = 0; i < plan.size(); i++) {
+      values.append(i > 0 ? ", " : "").append("('").append(plan.get(i)).append("')");
+    }
+    String explain = values.append(") AS P(QUERY_PLAN)").toString();
+    return (Statement)
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {Statement.class},
+            (proxy, method, args) -> {
+              try {
+                if (method.getName().equals("executeQuery")
+                    && ((String) args[0]).startsWith("EXPLAIN")) {
+                  return h2.executeQuery(explain);
+                }
+                return method.invoke(h2, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+  }
+}
@@ -0,0 +1,121 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.QueryGovernor.QueryCancelledException;
+import org.uwdigi.rag.service.QueryGovernor.Reason;
+
+class QueryGovernorTest {
+
+  // A cross join that runs for minutes unless cancelled
+  private static final String CROSS_JOIN =
+      "SELECT COUNT(*) FROM SYSTEM_RANGE(1, 100000) A, SYSTEM_RANGE(1, 100000) B"
+          + " WHERE A.X + B.X = 7";
+
+  private JdbcDataSource dataSource;
+
+  @BeforeEach
+  void createTable() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:governor;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS OBSERVATION_FLAT (OBS_NAME VARCHAR(64))");
+      statement.execute("DELETE FROM OBSERVATION_FLAT");
+      for (int i = 0; i < 20; i++) {
+        statement.execute("INSERT INTO OBSERVATION_FLAT VALUES ('obs " + i + "')");
+      }
+    }
+  }
+
+  @Test
+  void cancelsQueriesRunningLongerThanTheTimeout() throws Exception {
+    QueryGovernor governor = new QueryGovernor(null, Duration.ofSeconds(1), 0, true);
+
+    // Without the cancellation the cross join runs for minutes, so the future only guards against
+    // a hang and is not a latency assertion
+    CompletableFuture<Throwable> cancelled =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                governor.execute(dataSource, statement -> read(statement, CROSS_JOIN));
+                return null;
+              } catch (SQLException e) {
+                return e;
+              }
+            });
+    assertThat(cancelled.get(60, TimeUnit.SECONDS))
+        .isInstanceOfSatisfying(
+            QueryCancelledException.class,
+            e -> {
+              assertThat(e.getReason()).isEqualTo(Reason.TIMED_OUT);
+              assertThat(e.isRetryable()).isTrue();
+            });
+    assertThat(governor.getStats()).containsEntry("timedOut", 1L).containsEntry("running", 0);
+  }
+
+  @Test
+  void capsTheRowsReadByTheResultReader() throws SQLException {
+    QueryGovernor governor = new QueryGovernor(null, Duration.ofSeconds(10), 5, true);
+    SqlResultReader reader = new SqlResultReader(500, 3, 100_000, 100_000, "csv");
+
+    String result =
+        governor.execute(
+            dataSource, statement -> reader.read(statement, "SELECT * FROM OBSERVATION_FLAT"));
+
+    assertThat(result).endsWith("(first 3 of more than 5 rows)");
+  }
+
+  @Test
+  void rejectsQueriesBeyondTheConcurrencyLimit() throws Exception {
+    Bulkheads bulkheads = new Bulkheads(0, 0, 1, 0, Duration.ofMillis(100));
+    QueryGovernor governor = new QueryGovernor(bulkheads, Duration.ofSeconds(2), 0, true);
+    CountDownLatch started = new CountDownLatch(1);
+
+    CompletableFuture<String> running =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return governor.execute(
+                    dataSource,
+                    statement -> {
+                      started.countDown();
+                      return read(statement, CROSS_JOIN);
+                    });
+              } catch (SQLException e) {
+                return e.getClass().getSimpleName();
+              }
+            });
+    started.await();
+
+    assertThatThrownBy(
+            () ->
+                governor.execute(
+                    dataSource, statement -> read(statement, "SELECT 1 FROM OBSERVATION_FLAT")))
+        .isInstanceOfSatisfying(
+            QueryCancelledException.class,
+            e -> {
+              assertThat(e.getReason()).isEqualTo(Reason.REJECTED);
+              assertThat(e.isRetryable()).isFalse();
+            });
+    assertThat(running.get()).isEqualTo("QueryCancelledException");
+    assertThat(governor.getStats()).containsEntry("rejected", 1L).containsEntry("queries", 1L);
+  }
+
+  private static String read(Statement statement, String sql) throws SQLException {
+    try (var resultSet = statement.executeQuery(sql)) {
+      return resultSet.next() ? resultSet.getString(1) : null;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.ResultEncoder.Format;
+
+/**
+ * Compares the time and allocations of every {@link ResultEncoder.Format} with the CSV string
+ * builder it replaces, on a wide table like the flattened FHIR tables. <br>
+ * Timing-based, so it only runs with {@code mvn test -Pbenchmark}; {@link ResultEncoderTest} checks
+ * the output of each format.
+ */
+@Tag("benchmark")
+class ResultEncoderBenchmarkTest {
+
+  private static final int COLUMNS = 40;
+  private static final int ROWS = 20_000;
+  private static final int ITERATIONS = 5;
+
+  private static JdbcDataSource dataSource;
+
+  @BeforeAll
+  static void createTables() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:encoder-benchmark;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      StringBuilder wide = new StringBuilder("CREATE TABLE WIDE_FLAT (ID INT");
+      StringBuilder select = new StringBuilder("INSERT INTO WIDE_FLAT SELECT X");
+      for (int i = 1; i < COLUMNS; i++) {
+        if (i % 3 == 0) {
+          wide.append(", N").append(i).append(" BIGINT");
+          select.append(", X * ").append(i);
+        } else if (i % 3 == 1) {
+          wide.append(", D").append(i).append(" DOUBLE");
+          select.append(", X / ").append(i).append(".0");
+        } else {
+          wide.append(", S").append(i).append(" VARCHAR(64)");
+          select.append(", 'display value ").append(i).append(", code ' || X");
+        }
+      }
+      statement.execute(wide.append(")").toString());
+      statement.execute(
+          select.append(" FROM SYSTEM_RANGE(1, ").append(ROWS).append(")").toString());
+    }
+  }
+
+  @Test
+  void timeAndAllocationsAgainstTheCsvStringBuilder() throws SQLException {
+    String sql = "SELECT * FROM WIDE_FLAT";
+    // Warm up class loading and JIT
+    for (int i = 0; i < 2; i++) {
+      legacyCsv(sql);
+      encode(Format.CSV, sql);
+    }
+
+    System.out.printf(
+        "%n%d rows x %d columns, per run:%n%-12s %-10s %-12s%n",
+        ROWS, COLUMNS, "method", "ms", "allocated");
+    long[] legacy = measure(() -> legacyCsv(sql));
+    print("legacy csv", legacy);
+    long[] csv = measure(() -> encode(Format.CSV, sql));
+    print("csv", csv);
+    print("markdown", measure(() -> encode(Format.MARKDOWN, sql)));
+    print("json", measure(() -> encode(Format.JSON, sql)));
+
+    assertThat(csv[1]).isLessThan(legacy[1]);
+  }
+
+  private interface Run {
+    String run() throws SQLException;
+  }
+
+  /** Returns the average milliseconds and bytes allocated per run. */
+  private static long[] measure(Run run) throws SQLException {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocated = threads.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertThat(run.run()).isNotEmpty();
+    }
+    long millis = (System.nanoTime() - start) / 1_000_000 / ITERATIONS;
+    return new long[] {millis, (threads.getThreadAllocatedBytes(thread) - allocated) / ITERATIONS};
+  }
+
+  private static void print(String method, long[] measurement) {
+    System.out.printf(
+        "%-12s %-10d %.1f MB%n", method, measurement[0], measurement[1] / (1024.0 * 1024));
+  }
+
+  private static String encode(Format format, String sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      ResultEncoder encoder = ResultEncoder.create(format, resultSet);
+      int rows = 0;
+      while (resultSet.next()) {
+        encoder.writeRow(resultSet);
+        rows++;
+      }
+      return encoder.finish(rows);
+    }
+  }
+
+  /** The row loop {@code SqlDatabaseContentRetriever.execute} used before the encoder. */
+  private static String legacyCsv(String sql) throws SQLException {
+    List<String> resultRows = new ArrayList<>();
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      int columnCount = resultSet.getMetaData().getColumnCount();
+      List<String> columnNames = new ArrayList<>();
+      for (int i = 1; i <= columnCount; i++) {
+        columnNames.add(resultSet.getMetaData().getColumnName(i));
+      }
+      resultRows.add(String.join(",", columnNames));
+      while (resultSet.next()) {
+        List<String> columnValues = new ArrayList<>();
+        for (int i = 1; i <= columnCount; i++) {
+          String columnValue =
+              resultSet.getObject(i) == null ? "" : resultSet.getObject(i).toString();
+          if (columnValue.contains(",")) {
+            columnValue = "\"" + columnValue + "\"";
+          }
+          columnValues.add(columnValue);
+        }
+        resultRows.add(String.join(",", columnValues));
+      }
+    }
+    return String.join("\n", resultRows);
+  }
+}
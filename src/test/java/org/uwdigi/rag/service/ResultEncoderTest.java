@@ -0,0 +1,184 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.function.IntFunction;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.ResultEncoder.Format;
+
+class ResultEncoderTest {
+
+  private static JdbcDataSource dataSource;
+
+  @BeforeAll
+  static void createTable() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:encoder;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute(
+          "CREATE TABLE OBS (ID INT, VALUE_NUM DECIMAL(10, 2), WEIGHT DOUBLE, ACTIVE BOOLEAN,"
+              + " OBS_NAME VARCHAR(64), NOTE VARCHAR(64))");
+      statement.execute(
+          "INSERT INTO OBS VALUES (1, 70.50, 1.5, TRUE, 'Weight, kg', 'said \"fine\"'),"
+              + " (2, NULL, NULL, NULL, 'a|b', 'line1\nline2')");
+    }
+  }
+
+  @Test
+  void encodesEveryFormat() throws SQLException {
+    String sql = "SELECT * FROM OBS ORDER BY ID";
+
+    assertThat(encode(Format.CSV, sql))
+        .isEqualTo(
+            "ID,VALUE_NUM,WEIGHT,ACTIVE,OBS_NAME,NOTE\n"
+                + "1,70.50,1.5,true,\"Weight, kg\",\"said \"\"fine\"\"\"\n"
+                + "2,,,,a|b,\"line1\nline2\"");
+    assertThat(encode(Format.MARKDOWN, sql))
+        .isEqualTo(
+            "| ID | VALUE_NUM | WEIGHT | ACTIVE | OBS_NAME | NOTE |\n"
+                + "| --- | --- | --- | --- | --- | --- |\n"
+                + "| 1 | 70.50 | 1.5 | true | Weight, kg | said \"fine\" |\n"
+                + "| 2 |  |  |  | a\\|b | line1 line2 |");
+    assertThat(encode(Format.JSON, sql))
+        .isEqualTo(
+            "{\"rows\":2,\"columns\":{\"ID\":[1,2],\"VALUE_NUM\":[70.50,null],"
+                + "\"WEIGHT\":[1.5,null],\"ACTIVE\":[true,null],"
+                + "\"OBS_NAME\":[\"Weight, kg\",\"a|b\"],"
+                + "\"NOTE\":[\"said \\\"fine\\\"\",\"line1\\nline2\"]}}");
+
+    for (Format format : Format.values()) {
+      assertThat(ResultEncoder.countRows(format, encode(format, sql), false)).isEqualTo(2);
+      assertThat(ResultEncoder.countRows(format, encode(format, sql + " LIMIT 0"), false)).isZero();
+    }
+  }
+
+  @Test
+  void encodesUnsignedIntegersBeyondTheSignedRange() throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:unsigned;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE COUNTS (SEEN BIGINT, TOTAL DECIMAL(20))");
+      statement.execute("INSERT INTO COUNTS VALUES (4294967295, 18446744073709551615)");
+      try (ResultSet resultSet = statement.executeQuery("SELECT * FROM COUNTS")) {
+        // Like MySQL INT UNSIGNED and BIGINT UNSIGNED, whose values getInt and getLong reject
+        ResultSet unsigned =
+            withMetaData(
+                resultSet,
+                Map.of(
+                    "isSigned", column -> false,
+                    "getColumnType", column -> column == 1 ? Types.INTEGER : Types.BIGINT));
+        ResultEncoder encoder = ResultEncoder.create(Format.CSV, unsigned);
+        assertThat(unsigned.next()).isTrue();
+        encoder.writeRow(unsigned);
+
+        assertThat(encoder.finish(1)).isEqualTo("SEEN,TOTAL\n4294967295,18446744073709551615");
+      }
+    }
+  }
+
+  @Test
+  void namesTheColumnsByTheirLabels() throws SQLException {
+    assertThat(encode(Format.CSV, "SELECT ID AS PATIENT_ID, COUNT(*) AS N FROM OBS GROUP BY ID"))
+        .startsWith("PATIENT_ID,N\n");
+  }
+
+  @Test
+  void writesNonFiniteDoublesAsText() throws SQLException {
+    String sql =
+        "SELECT CAST('NaN' AS DOUBLE PRECISION) AS A, CAST('Infinity' AS DOUBLE PRECISION) AS B";
+
+    assertThat(encode(Format.CSV, sql)).isEqualTo("A,B\nNaN,Infinity");
+    assertThat(encode(Format.MARKDOWN, sql)).endsWith("\n| NaN | Infinity |");
+    assertThat(encode(Format.JSON, sql))
+        .isEqualTo("{\"rows\":1,\"columns\":{\"A\":[\"NaN\"],\"B\":[\"Infinity\"]}}");
+  }
+
+  @Test
+  void readsBitStringsAsText() throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT TRUE AS FLAG, '00001010' AS MASK")) {
+      // Like PostgreSQL BIT and BIT(8), whose bit strings getBoolean cannot read
+      ResultSet bits =
+          withMetaData(
+              resultSet,
+              Map.of(
+                  "getColumnType", column -> Types.BIT,
+                  "getPrecision", column -> column == 1 ? 1 : 8));
+      ResultEncoder encoder = ResultEncoder.create(Format.CSV, bits);
+      assertThat(bits.next()).isTrue();
+      encoder.writeRow(bits);
+
+      assertThat(encoder.finish(1)).isEqualTo("FLAG,MASK\ntrue,00001010");
+    }
+  }
+
+  @Test
+  void parsesFormatNames() {
+    assertThat(Format.from(" Markdown ", Format.CSV)).isEqualTo(Format.MARKDOWN);
+    assertThat(Format.from("", Format.CSV)).isEqualTo(Format.CSV);
+    assertThatThrownBy(() -> Format.from("jsno", Format.CSV))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Unknown result format 'jsno', expected one of: csv, markdown, json");
+  }
+
+  private static String encode(Format format, String sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      ResultEncoder encoder = ResultEncoder.create(format, resultSet);
+      int rows = 0;
+      while (resultSet.next()) {
+        encoder.writeRow(resultSet);
+        rows++;
+      }
+      return encoder.finish(rows);
+    }
+  }
+
+  /** Overrides the metadata methods of the result set, by name, with functions of the column. */
+  private static ResultSet withMetaData(
+      ResultSet resultSet, Map<String, IntFunction<Object>> overrides) throws SQLException {
+    ResultSetMetaData metaData = resultSet.getMetaData();
+    ResultSetMetaData overriddenMetaData =
+        (ResultSetMetaData)
+            Proxy.newProxyInstance(
+                ResultSetMetaData.class.getClassLoader(),
+                new Class<?>[] {ResultSetMetaData.class},
+                (proxy, method, args) ->
+                    overrides.containsKey(method.getName())
+                        ? overrides.get(method.getName()).apply((int) args[0])
+                        : invoke(metaData, method, args));
+    return (ResultSet)
+        Proxy.newProxyInstance(
+            ResultSet.class.getClassLoader(),
+            new Class<?>[] {ResultSet.class},
+            (proxy, method, args) ->
+                method.getName().equals("getMetaData")
+                    ? overriddenMetaData
+                    : invoke(resultSet, method, args));
+  }
+
+  private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
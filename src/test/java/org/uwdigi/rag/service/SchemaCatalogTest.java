@@ -0,0 +1,153 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+class SchemaCatalogTest {
+
+  private static final String[] SCHEMA_TYPE = {"TABLE", "BASE TABLE"};
+
+  @Test
+  void pollsHiveSchemaWithoutReadingColumns() throws SQLException {
+    JdbcDataSource h2 = createSchema("poll");
+    AtomicInteger columnLookups = new AtomicInteger();
+    SchemaCatalog catalog =
+        new SchemaCatalog(counting(h2, "Apache Hive", columnLookups), SCHEMA_TYPE, 2);
+    catalog.refresh();
+    long version = catalog.getVersion();
+    columnLookups.set(0);
+
+    catalog.refresh();
+
+    assertThat(catalog.getVersion()).isEqualTo(version);
+    assertThat(columnLookups).hasValue(0);
+
+    // Only the table list is polled, so the new column shows with the new comment
+    execute(h2, "ALTER TABLE ENCOUNTER ADD COLUMN STATUS VARCHAR(16)");
+    catalog.refresh();
+
+    assertThat(catalog.getVersion()).isEqualTo(version);
+    assertThat(columnLookups).hasValue(0);
+
+    execute(h2, "COMMENT ON TABLE ENCOUNTER IS 'visits'");
+    catalog.refresh();
+
+    assertThat(catalog.getVersion()).isEqualTo(version + 1);
+    assertThat(catalog.getTableDdl("ENCOUNTER")).contains("STATUS CHARACTER VARYING(16)");
+    // Only the table with the new comment is read again
+    assertThat(columnLookups).hasValue(1);
+  }
+
+  @Test
+  void rereadsOnlyTheChangedTables() throws SQLException {
+    JdbcDataSource h2 = createSchema("changed");
+    AtomicInteger columnLookups = new AtomicInteger();
+    SchemaCatalog catalog = new SchemaCatalog(counting(h2, null, columnLookups), SCHEMA_TYPE, 1);
+    catalog.refresh();
+    long version = catalog.getVersion();
+    String patient = catalog.getTableDdl("PATIENT");
+    columnLookups.set(0);
+
+    execute(h2, "ALTER TABLE ENCOUNTER ADD COLUMN STATUS VARCHAR(16)");
+    catalog.refresh();
+
+    assertThat(catalog.getVersion()).isEqualTo(version + 1);
+    assertThat(catalog.getTableDdl("ENCOUNTER")).contains("STATUS CHARACTER VARYING(16)");
+    assertThat(catalog.getTableDdl("PATIENT")).isSameAs(patient);
+    // The catalog-wide read of the fingerprint, and the one changed table
+    assertThat(columnLookups).hasValue(2);
+  }
+
+  @Test
+  void snapshotsStayConsistentAcrossRefreshes() throws SQLException {
+    JdbcDataSource h2 = createSchema("snapshot");
+    SchemaCatalog catalog = new SchemaCatalog(h2, SCHEMA_TYPE, 1);
+    SchemaCatalog.Snapshot snapshot = catalog.getSnapshot();
+
+    execute(h2, "DROP TABLE ENCOUNTER");
+    catalog.refresh();
+
+    assertThat(catalog.getTableDdl("ENCOUNTER")).isNull();
+    assertThat(snapshot.getTableNames()).contains("ENCOUNTER");
+    assertThat(snapshot.getTableDdl("ENCOUNTER")).startsWith("CREATE TABLE ENCOUNTER");
+    assertThat(snapshot.getVersion()).isEqualTo(catalog.getVersion() - 1);
+  }
+
+  @Test
+  void pollPicksUpNewForeignKeys() throws SQLException {
+    JdbcDataSource h2 = createSchema("keys");
+    SchemaCatalog catalog = new SchemaCatalog(h2, SCHEMA_TYPE, 1);
+    catalog.refresh();
+    long version = catalog.getVersion();
+
+    execute(h2, "ALTER TABLE ENCOUNTER ADD FOREIGN KEY (PATIENT_ID) REFERENCES PATIENT(ID)");
+    catalog.refresh();
+
+    assertThat(catalog.getVersion()).isEqualTo(version + 1);
+    assertThat(catalog.getTableDdl("ENCOUNTER"))
+        .contains("FOREIGN KEY (PATIENT_ID) REFERENCES PATIENT(ID)");
+    assertThat(catalog.getRelatedTables("PATIENT")).containsExactly("ENCOUNTER");
+  }
+
+  private static JdbcDataSource createSchema(String name) throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:catalog-" + name + ";DB_CLOSE_DELAY=-1");
+    execute(dataSource, "CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+    execute(dataSource, "CREATE TABLE ENCOUNTER (ID INT PRIMARY KEY, PATIENT_ID INT)");
+    return dataSource;
+  }
+
+  private static void execute(DataSource dataSource, String sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+  /** Counts the {@code getColumns} calls and optionally reports another database product name. */
+  private static DataSource counting(
+      DataSource dataSource, String productName, AtomicInteger columnLookups) {
+    return (DataSource)
+        Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(),
+            new Class<?>[] {DataSource.class},
+            delegating(dataSource, productName, columnLookups));
+  }
+
+  private static InvocationHandler delegating(
+      Object target, String productName, AtomicInteger columnLookups) {
+    return (proxy, method, args) -> {
+      if (productName != null && method.getName().equals("getDatabaseProductName")) {
+        return productName;
+      }
+      if (method.getName().equals("getColumns")) {
+        columnLookups.incrementAndGet();
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      Class<?> type = method.getReturnType();
+      if (type == Connection.class || type == DatabaseMetaData.class) {
+        return Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            delegating(result, productName, columnLookups));
+      }
+      return result;
+    };
+  }
+}
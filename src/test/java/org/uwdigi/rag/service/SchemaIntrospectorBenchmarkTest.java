@@ -0,0 +1,165 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.SchemaIntrospector.TableMetadata;
+
+/**
+ * Compares catalog-wide introspection with the per-table {@link DatabaseMetaData} walk it replaces.
+ * Every metadata call and query is delayed by {@link #ROUND_TRIP_MILLIS} to model a remote server
+ * such as a Hive/Spark Thrift server, where round trips dominate the build time. <br>
+ * Timing-based, so it only runs with {@code mvn test -Pbenchmark}; {@link SchemaIntrospectorTest}
+ * checks the DDL and the number of round trips.
+ */
+@Tag("benchmark")
+class SchemaIntrospectorBenchmarkTest {
+
+  private static final long ROUND_TRIP_MILLIS = 2;
+  private static final String[] SCHEMA_TYPE = {"TABLE", "VIEW", "BASE TABLE"};
+
+  @Test
+  void buildTimeAgainstTableCount() throws Exception {
+    System.out.printf(
+        "%n%-8s %-24s %-24s %-24s%n", "tables", "per-table", "bulk", "hive parallel (4)");
+    for (int tableCount : new int[] {10, 50, 200}) {
+      AtomicInteger calls = new AtomicInteger();
+
+      DataSource plain = createSchema("bench" + tableCount, tableCount, null, calls);
+      Result perTable = measure(calls, () -> perTableDdl(plain));
+      Result bulk = measure(calls, () -> bulkDdl(plain));
+
+      DataSource hive = createSchema("bench" + tableCount, tableCount, "Apache Hive", calls);
+      Result parallel = measure(calls, () -> bulkDdl(hive));
+
+      System.out.printf("%-8d %-24s %-24s %-24s%n", tableCount, perTable, bulk, parallel);
+
+      assertThat(bulk.calls).isLessThan(perTable.calls);
+      assertThat(bulk.millis).isLessThan(perTable.millis);
+      assertThat(parallel.millis).isLessThan(perTable.millis);
+    }
+  }
+
+  private static String perTableDdl(DataSource dataSource) throws SQLException {
+    StringBuilder ddl = new StringBuilder();
+    try (Connection connection = dataSource.getConnection()) {
+      DatabaseMetaData metaData = connection.getMetaData();
+      String currentDb = SqlDatabaseContentRetriever.getCurrentDatabase(connection);
+      try (ResultSet tables = metaData.getTables(currentDb, null, "%", SCHEMA_TYPE)) {
+        while (tables.next()) {
+          ddl.append(
+                  SqlDatabaseContentRetriever.generateCreateTableStatement(
+                      tables.getString("TABLE_NAME"), metaData))
+              .append("\n");
+        }
+      }
+    }
+    return ddl.toString();
+  }
+
+  private static String bulkDdl(DataSource dataSource) throws SQLException {
+    StringBuilder ddl = new StringBuilder();
+    try (Connection connection = dataSource.getConnection()) {
+      String currentDb = SqlDatabaseContentRetriever.getCurrentDatabase(connection);
+      for (TableMetadata table :
+          new SchemaIntrospector(dataSource, SCHEMA_TYPE, 4)
+              .introspect(connection, currentDb)
+              .values()) {
+        ddl.append(SchemaIntrospector.render(table)).append("\n");
+      }
+    }
+    return ddl.toString();
+  }
+
+  private static Result measure(AtomicInteger calls, DdlBuilder builder) throws SQLException {
+    calls.set(0);
+    long start = System.nanoTime();
+    String ddl = builder.build();
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    assertThat(ddl).isNotBlank();
+    return new Result(millis, calls.get());
+  }
+
+  /** Creates a chain of tables, each with a primary key, a comment and a foreign key. */
+  private static DataSource createSchema(
+      String name, int tableCount, String productName, AtomicInteger calls) throws SQLException {
+    JdbcDataSource h2 = new JdbcDataSource();
+    h2.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+
+    try (Connection connection = h2.getConnection();
+        Statement statement = connection.createStatement()) {
+      for (int i = 1; i <= tableCount; i++) {
+        statement.execute(
+            "CREATE TABLE IF NOT EXISTS T"
+                + i
+                + " (ID INT PRIMARY KEY, NAME VARCHAR(64) NOT NULL, STATUS VARCHAR(16) DEFAULT"
+                + " 'active', PARENT_ID INT"
+                + (i > 1 ? " REFERENCES T" + (i - 1) + "(ID)" : "")
+                + ")");
+        statement.execute("COMMENT ON TABLE T" + i + " IS 'table " + i + "'");
+        statement.execute("COMMENT ON COLUMN T" + i + ".NAME IS 'display name'");
+      }
+    }
+
+    return (DataSource)
+        Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(),
+            new Class<?>[] {DataSource.class},
+            delegating(h2, productName, calls));
+  }
+
+  /**
+   * Wraps JDBC objects so that every call returning a {@link ResultSet} costs one simulated round
+   * trip, and optionally reports a different database product name.
+   */
+  private static InvocationHandler delegating(
+      Object target, String productName, AtomicInteger calls) {
+    return (proxy, method, args) -> {
+      if (productName != null && method.getName().equals("getDatabaseProductName")) {
+        return productName;
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof ResultSet) {
+        calls.incrementAndGet();
+        Thread.sleep(ROUND_TRIP_MILLIS);
+      }
+      Class<?> type = method.getReturnType();
+      if (type == Connection.class
+          || type == DatabaseMetaData.class
+          || type == Statement.class
+          || type == java.sql.PreparedStatement.class) {
+        return Proxy.newProxyInstance(
+            type.getClassLoader(), new Class<?>[] {type}, delegating(result, productName, calls));
+      }
+      return result;
+    };
+  }
+
+  private interface DdlBuilder {
+    String build() throws SQLException;
+  }
+
+  private record Result(long millis, int calls) {
+    @Override
+    public String toString() {
+      return millis + " ms / " + calls + " calls";
+    }
+  }
+}
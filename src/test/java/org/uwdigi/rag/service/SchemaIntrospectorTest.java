@@ -0,0 +1,217 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.service.SchemaIntrospector.TableMetadata;
+
+/**
+ * Checks catalog-wide introspection against the per-table {@link DatabaseMetaData} walk it
+ * replaces: the same DDL, in fewer round trips, and with the keys when the catalog hides them.
+ */
+class SchemaIntrospectorTest {
+
+  private static final String[] SCHEMA_TYPE = {"TABLE", "VIEW", "BASE TABLE"};
+
+  @Test
+  void bulkIntrospectionProducesSameDdlAsPerTableGeneration() throws Exception {
+    DataSource dataSource = createChain("ddl", 12, null, new AtomicInteger());
+
+    try (Connection connection = dataSource.getConnection()) {
+      Map<String, TableMetadata> tables = introspect(dataSource, connection);
+
+      assertThat(tables).containsKeys("T1", "T6", "T12");
+      for (TableMetadata table : tables.values()) {
+        assertThat(SchemaIntrospector.render(table))
+            .isEqualTo(
+                SqlDatabaseContentRetriever.generateCreateTableStatement(
+                    table.getName(), connection.getMetaData()));
+      }
+      assertThat(SchemaIntrospector.render(tables.get("T3")))
+          .contains("ID INTEGER(32) NOT NULL PRIMARY KEY")
+          .contains("FOREIGN KEY (PARENT_ID) REFERENCES T2(ID)")
+          .contains("COMMENT ON TABLE T3 IS 'table 3'");
+    }
+  }
+
+  @Test
+  void bulkIntrospectionTakesTheSameRoundTripsForAnyNumberOfTables() throws Exception {
+    AtomicInteger roundTrips = new AtomicInteger();
+    int fewTables = roundTrips(createChain("trips10", 10, null, roundTrips), roundTrips);
+    int manyTables = roundTrips(createChain("trips50", 50, null, roundTrips), roundTrips);
+
+    assertThat(manyTables).isEqualTo(fewTables);
+  }
+
+  @Test
+  void hiveIntrospectionReadsTheColumnsOfEveryTable() throws Exception {
+    AtomicInteger roundTrips = new AtomicInteger();
+    DataSource hive = createChain("hive", 20, "Apache Hive", roundTrips);
+
+    try (Connection connection = hive.getConnection()) {
+      Map<String, TableMetadata> tables = introspect(hive, connection);
+
+      for (int i = 1; i <= 20; i++) {
+        assertThat(tables.get("T" + i).getColumns()).hasSize(4);
+      }
+    }
+  }
+
+  @Test
+  void readsKeysAsSelectOnlyUser() throws SQLException {
+    JdbcDataSource dataSource = createSchema("readonly");
+
+    try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:readonly", "RO", "ro")) {
+      assertKeysInDdl(dataSource, connection);
+    }
+  }
+
+  @Test
+  void readsKeysPerTableWhenTheCatalogHidesThem() throws SQLException {
+    JdbcDataSource dataSource = createSchema("hidden");
+
+    try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:hidden", "RO", "ro")) {
+      // Like information_schema on PostgreSQL for a user with only SELECT on the tables
+      assertKeysInDdl(dataSource, hidingConstraints(connection));
+    }
+  }
+
+  private static Map<String, TableMetadata> introspect(DataSource dataSource, Connection connection)
+      throws SQLException {
+    String currentDb = SqlDatabaseContentRetriever.getCurrentDatabase(connection);
+    return new SchemaIntrospector(dataSource, SCHEMA_TYPE, 4).introspect(connection, currentDb);
+  }
+
+  /** The number of result sets the introspection of the data source reads. */
+  private static int roundTrips(DataSource dataSource, AtomicInteger roundTrips)
+      throws SQLException {
+    try (Connection connection = dataSource.getConnection()) {
+      String currentDb = SqlDatabaseContentRetriever.getCurrentDatabase(connection);
+      roundTrips.set(0);
+      new SchemaIntrospector(dataSource, SCHEMA_TYPE, 4).introspect(connection, currentDb);
+      return roundTrips.get();
+    }
+  }
+
+  private static void assertKeysInDdl(JdbcDataSource dataSource, Connection connection)
+      throws SQLException {
+    Map<String, TableMetadata> tables = introspect(dataSource, connection);
+
+    assertThat(SchemaIntrospector.render(tables.get("ENCOUNTER")))
+        .contains("ID INTEGER(32) NOT NULL PRIMARY KEY")
+        .contains("FOREIGN KEY (PATIENT_ID) REFERENCES PATIENT(ID)")
+        .isEqualTo(
+            SqlDatabaseContentRetriever.generateCreateTableStatement(
+                "ENCOUNTER", connection.getMetaData()));
+  }
+
+  /** Creates two related tables and a user {@code RO} that may only SELECT from them. */
+  private static JdbcDataSource createSchema(String name) throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      statement.execute(
+          "CREATE TABLE ENCOUNTER (ID INT PRIMARY KEY, PATIENT_ID INT REFERENCES PATIENT(ID))");
+      statement.execute("CREATE USER RO PASSWORD 'ro'");
+      statement.execute("GRANT SELECT ON PATIENT, ENCOUNTER TO RO");
+    }
+    return dataSource;
+  }
+
+  /**
+   * Creates a chain of tables, each with a primary key, a comment and a foreign key, behind a data
+   * source that counts the result sets read and optionally reports another database product name.
+   */
+  private static DataSource createChain(
+      String name, int tableCount, String productName, AtomicInteger roundTrips)
+      throws SQLException {
+    JdbcDataSource h2 = new JdbcDataSource();
+    h2.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+
+    try (Connection connection = h2.getConnection();
+        Statement statement = connection.createStatement()) {
+      for (int i = 1; i <= tableCount; i++) {
+        statement.execute(
+            "CREATE TABLE IF NOT EXISTS T"
+                + i
+                + " (ID INT PRIMARY KEY, NAME VARCHAR(64) NOT NULL, STATUS VARCHAR(16) DEFAULT"
+                + " 'active', PARENT_ID INT"
+                + (i > 1 ? " REFERENCES T" + (i - 1) + "(ID)" : "")
+                + ")");
+        statement.execute("COMMENT ON TABLE T" + i + " IS 'table " + i + "'");
+        statement.execute("COMMENT ON COLUMN T" + i + ".NAME IS 'display name'");
+      }
+    }
+
+    return (DataSource)
+        Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(),
+            new Class<?>[] {DataSource.class},
+            counting(h2, productName, roundTrips));
+  }
+
+  private static InvocationHandler counting(
+      Object target, String productName, AtomicInteger roundTrips) {
+    return (proxy, method, args) -> {
+      if (productName != null && method.getName().equals("getDatabaseProductName")) {
+        return productName;
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof ResultSet) {
+        roundTrips.incrementAndGet();
+      }
+      Class<?> type = method.getReturnType();
+      if (type == Connection.class
+          || type == DatabaseMetaData.class
+          || type == Statement.class
+          || type == PreparedStatement.class) {
+        return Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            counting(result, productName, roundTrips));
+      }
+      return result;
+    };
+  }
+
+  /** Wraps a connection so that queries of the table constraints return no rows. */
+  private static Connection hidingConstraints(Connection connection) {
+    return (Connection)
+        Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+              if (method.getName().equals("prepareStatement")
+                  && args[0] instanceof String sql
+                  && sql.contains("table_constraints")) {
+                args[0] = sql.replace(" WHERE ", " WHERE 1 = 0 AND ");
+              }
+              try {
+                return method.invoke(connection, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            });
+  }
+}
@@ -0,0 +1,137 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Selects tables with an embedding model that scores a text by the column names it mentions, so
+ * that the most similar table of a question is known in advance. The catalog also holds the tables
+ * of the H2 INFORMATION_SCHEMA, none of which mentions those columns.
+ */
+class SchemaSelectorTest {
+
+  private static final List<String> COLUMNS =
+      List.of("BIRTHDATE", "ADMITTED", "DOSAGE", "ADDRESS", "SPECIALTY", "MNEMONIC");
+
+  private final AtomicInteger questionsEmbedded = new AtomicInteger();
+  private final AtomicInteger tablesEmbedded = new AtomicInteger();
+  private JdbcDataSource dataSource;
+  private SchemaCatalog catalog;
+  private SchemaSelector selector;
+
+  @BeforeEach
+  void createSchema() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:selector;DB_CLOSE_DELAY=-1");
+    execute("DROP ALL OBJECTS");
+    execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, BIRTHDATE DATE)");
+    execute(
+        "CREATE TABLE VISIT (ID INT PRIMARY KEY, PATIENT_ID INT REFERENCES PATIENT(ID),"
+            + " ADMITTED DATE)");
+    execute("CREATE TABLE DRUG (ID INT PRIMARY KEY, DOSAGE VARCHAR(16))");
+    execute("CREATE TABLE LOCATION (ID INT PRIMARY KEY, ADDRESS VARCHAR(64))");
+    execute("CREATE TABLE PROVIDER (ID INT PRIMARY KEY, SPECIALTY VARCHAR(64))");
+    execute("CREATE TABLE CONCEPT (ID INT PRIMARY KEY, MNEMONIC VARCHAR(64))");
+    catalog = new SchemaCatalog(dataSource, new String[] {"TABLE", "BASE TABLE"}, 1);
+    catalog.refresh();
+    selector =
+        new SchemaSelector(catalog, counting(questionsEmbedded), counting(tablesEmbedded), 2);
+  }
+
+  @Test
+  void selectsTheMostSimilarTables() {
+    String ddl = selector.selectDatabaseStructure("What DOSAGE and SPECIALTY are recorded?");
+
+    assertThat(ddl)
+        .contains("CREATE TABLE DRUG")
+        .contains("CREATE TABLE PROVIDER")
+        .doesNotContain("CREATE TABLE PATIENT")
+        .doesNotContain("CREATE TABLE LOCATION");
+    assertThat(questionsEmbedded).hasValue(1);
+    assertThat(tablesEmbedded).hasValue(catalog.getTableNames().size());
+  }
+
+  @Test
+  void addsTheTablesLinkedByForeignKeys() {
+    String ddl = selector.selectDatabaseStructure("Patients by BIRTHDATE near an ADDRESS");
+
+    assertThat(ddl)
+        .contains("CREATE TABLE PATIENT")
+        .contains("CREATE TABLE LOCATION")
+        .contains("CREATE TABLE VISIT")
+        .doesNotContain("CREATE TABLE DRUG");
+    // Tables follow the catalog order, whatever their score
+    assertThat(ddl.indexOf("CREATE TABLE PATIENT")).isLessThan(ddl.indexOf("CREATE TABLE VISIT"));
+  }
+
+  @Test
+  void embedsOnlyTheChangedTablesWhenTheCatalogChanges() throws SQLException {
+    selector.selectDatabaseStructure("DOSAGE");
+    tablesEmbedded.set(0);
+
+    selector.selectDatabaseStructure("SPECIALTY");
+    assertThat(tablesEmbedded).hasValue(0);
+
+    execute("ALTER TABLE CONCEPT ADD COLUMN DOSAGE VARCHAR(16)");
+    catalog.refresh();
+    String ddl = selector.selectDatabaseStructure("Which DOSAGE?");
+
+    assertThat(tablesEmbedded).hasValue(1);
+    assertThat(ddl).contains("CREATE TABLE DRUG").contains("CREATE TABLE CONCEPT");
+  }
+
+  @Test
+  void returnsTheWholeSchemaWhenItHasNoMoreThanTopKTables() {
+    SchemaSelector wide =
+        new SchemaSelector(
+            catalog,
+            counting(questionsEmbedded),
+            counting(tablesEmbedded),
+            catalog.getTableNames().size());
+
+    assertThat(wide.selectDatabaseStructure("DOSAGE")).isEqualTo(catalog.getDatabaseStructure());
+    assertThat(questionsEmbedded).hasValue(0);
+    assertThat(tablesEmbedded).hasValue(0);
+  }
+
+  private void execute(String sql) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+  /** Embeds a text as the number of times it mentions each of the {@link #COLUMNS}. */
+  private static EmbeddingModel counting(AtomicInteger texts) {
+    return new EmbeddingModel() {
+      @Override
+      public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        List<Embedding> embeddings = new ArrayList<>();
+        for (TextSegment segment : textSegments) {
+          texts.incrementAndGet();
+          float[] vector = new float[COLUMNS.size() + 1];
+          // Keeps texts that mention none of the columns away from the zero vector
+          vector[COLUMNS.size()] = 0.1f;
+          for (int i = 0; i < COLUMNS.size(); i++) {
+            vector[i] = segment.text().split(COLUMNS.get(i), -1).length - 1;
+          }
+          embeddings.add(Embedding.from(vector));
+        }
+        return Response.from(embeddings);
+      }
+    };
+  }
+}
@@ -0,0 +1,123 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/** Runs the {@link SqlQueryCache} with the embedding model the application uses. */
+class SqlQueryCacheTest {
+
+  private static final String PENDING_ORDERS = "SELECT COUNT(*) FROM SERVICE_REQUEST";
+
+  private static EmbeddingModel embeddingModel;
+
+  @BeforeAll
+  static void loadEmbeddingModel() {
+    embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+  }
+
+  @Test
+  void reusesSqlForRewordedQuestions() throws SQLException {
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog("reworded"), 10, 0.9);
+    cache.put(cache.lookup("How many pending lab orders?"), PENDING_ORDERS);
+
+    assertThat(cache.lookup("how many  pending lab orders").getSql()).isEqualTo(PENDING_ORDERS);
+    assertThat(cache.lookup("How many pending lab orders are there?").getSql())
+        .isEqualTo(PENDING_ORDERS);
+    assertThat(cache.lookup("How many of the lab orders are pending?").getSql())
+        .isEqualTo(PENDING_ORDERS);
+    // Similar, but other words may ask for other rows
+    assertThat(cache.lookup("Number of pending laboratory orders").getSql()).isNull();
+    assertThat(cache.lookup("List completed lab orders").getSql()).isNull();
+    assertThat(cache.lookup("How many patients are male?").getSql()).isNull();
+
+    assertThat(cache.getStats()).containsEntry("hits", 3L).containsEntry("misses", 4L);
+  }
+
+  @Test
+  void neverReusesSqlForNegatedOrOppositeQuestions() throws SQLException {
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog("negation"), 10, 0.9);
+    cache.put(cache.lookup("List patients with HIV"), "SELECT 1");
+    cache.put(cache.lookup("Patients with a high viral load"), "SELECT 2");
+
+    assertThat(cache.lookup("list patients with hiv.").getSql()).isEqualTo("SELECT 1");
+    assertThat(cache.lookup("List the patients with HIV").getSql()).isEqualTo("SELECT 1");
+    assertThat(cache.lookup("List patients without HIV").getSql()).isNull();
+    assertThat(cache.lookup("List patients not with HIV").getSql()).isNull();
+    assertThat(cache.lookup("Patients with a low viral load").getSql()).isNull();
+  }
+
+  @Test
+  void neverReusesSqlForOtherTimeWindows() throws SQLException {
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog("time"), 10, 0.9);
+    cache.put(cache.lookup("How many patients were admitted this week?"), "SELECT 1");
+
+    assertThat(cache.lookup("how many patients were admitted this week").getSql())
+        .isEqualTo("SELECT 1");
+    assertThat(cache.lookup("How many patients were admitted this month?").getSql()).isNull();
+    assertThat(cache.lookup("How many patients were admitted last week?").getSql()).isNull();
+    assertThat(cache.lookup("How many patients were admitted?").getSql()).isNull();
+  }
+
+  @Test
+  void neverReusesSqlForOtherValues() throws SQLException {
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog("values"), 10, 0.9);
+    cache.put(
+        cache.lookup("Pending lab orders of patient 12"),
+        "SELECT * FROM SERVICE_REQUEST WHERE PATIENT_ID = 12");
+
+    assertThat(cache.lookup("pending lab orders of patient 13").getSql()).isNull();
+    assertThat(cache.lookup("Pending lab orders for patient 12").getSql()).contains("= 12");
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedQuestions() throws SQLException {
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog("lru"), 2, 0.9);
+    cache.put(cache.lookup("How many pending lab orders?"), PENDING_ORDERS);
+    cache.put(cache.lookup("How many patients are male?"), "SELECT 2");
+    cache.lookup("How many pending lab orders?");
+    cache.put(cache.lookup("Which wards are full?"), "SELECT 3");
+
+    assertThat(cache.lookup("How many pending lab orders?").getSql()).isEqualTo(PENDING_ORDERS);
+    assertThat(cache.lookup("How many patients are male?").getSql()).isNull();
+    assertThat(cache.getStats()).containsEntry("evictions", 1L).containsEntry("size", 2);
+  }
+
+  @Test
+  void schemaChangeInvalidatesCachedSql() throws SQLException {
+    SchemaCatalog catalog = catalog("invalidation");
+    SqlQueryCache cache = new SqlQueryCache(embeddingModel, catalog, 10, 0.9);
+    SqlQueryCache.Lookup staleLookup = cache.lookup("How many pending lab orders?");
+    cache.put(staleLookup, PENDING_ORDERS);
+
+    catalog.rebuild();
+
+    assertThat(cache.lookup("How many pending lab orders?").getSql()).isNull();
+    // SQL generated against the old schema is not cached
+    cache.put(staleLookup, PENDING_ORDERS);
+    assertThat(cache.lookup("How many pending lab orders?").getSql()).isNull();
+    assertThat(cache.getStats()).containsEntry("invalidations", 1L);
+  }
+
+  @Test
+  void disabledWithoutEntries() throws SQLException {
+    assertThat(new SqlQueryCache(embeddingModel, catalog("disabled"), 0, 0.9).lookup("x")).isNull();
+  }
+
+  private static SchemaCatalog catalog(String name) throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS SERVICE_REQUEST (ID INT, STATUS VARCHAR(16))");
+    }
+    return new SchemaCatalog(dataSource, new String[] {"TABLE"}, 1);
+  }
+}
@@ -0,0 +1,109 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+class SqlQueryParserTest {
+
+  private final SqlQueryParser parser = new SqlQueryParser(100000, 10);
+
+  @Test
+  void addsOrLowersTheLimitOfTheQuery() {
+    assertThat(parser.prepare("SELECT obs_name FROM observation_flat"))
+        .isEqualTo("SELECT obs_name FROM observation_flat LIMIT 100001");
+    assertThat(parser.prepare("SELECT obs_name FROM observation_flat LIMIT 5000000;"))
+        .isEqualTo("SELECT obs_name FROM observation_flat LIMIT 100001");
+    assertThat(parser.prepare("SELECT obs_name FROM observation_flat FETCH FIRST 500000 ROWS ONLY"))
+        .containsIgnoringCase("FETCH FIRST 100001 ROWS ONLY")
+        .doesNotContainIgnoringCase("LIMIT");
+  }
+
+  @Test
+  void keepsQueriesThatNeedNoChangeAsWritten() {
+    String query = "select count(*)  from observation_flat where obs_name = 'Weight' limit 10";
+
+    assertThat(parser.prepare(query)).isEqualTo(query);
+  }
+
+  @Test
+  void removesTheOrderOfSubqueriesWithoutLimit() {
+    String prepared =
+        parser.prepare(
+            "SELECT t.obs_name, COUNT(*) FROM (SELECT obs_name FROM observation_flat ORDER BY"
+                + " obs_name) t GROUP BY t.obs_name ORDER BY COUNT(*) DESC");
+
+    assertThat(prepared)
+        .isEqualTo(
+            "SELECT t.obs_name, COUNT(*) FROM (SELECT obs_name FROM observation_flat) t GROUP BY"
+                + " t.obs_name ORDER BY COUNT(*) DESC LIMIT 100001");
+    assertThat(
+            parser.prepare(
+                "SELECT * FROM (SELECT obs_name FROM observation_flat ORDER BY obs_date DESC LIMIT"
+                    + " 5) t"))
+        .contains("ORDER BY obs_date DESC LIMIT 5");
+    assertThat(parser.getStats()).containsEntry("subqueryOrdersRemoved", 1L);
+  }
+
+  @Test
+  void rejectsStatementsOtherThanASingleSelect() {
+    assertThatThrownBy(() -> parser.prepare("DELETE FROM observation_flat"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("only SELECT statements are allowed");
+    assertThatThrownBy(() -> parser.prepare("SELECT 1; DROP TABLE observation_flat"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> parser.prepare("SELECT obs_name INTO copy FROM observation_flat"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("INTO");
+  }
+
+  @Test
+  void limitsHiveQueriesJSqlParserCannotParse() {
+    String query =
+        "SELECT p.id, `update` FROM patient_flat p WHERE p.name = 'INSERT INTO x'"
+            + " DISTRIBUTE BY p.id SORT BY p.id";
+
+    assertThat(parser.prepare(query)).isEqualTo(query + " LIMIT 100001");
+    assertThat(parser.prepare(query + " LIMIT 10, 900000")).isEqualTo(query + " LIMIT 10, 100001");
+    assertThat(parser.getStats()).containsEntry("tokenized", 2L);
+  }
+
+  @Test
+  void limitsHiveQueriesBeforeATrailingComment() {
+    String query = "SELECT p.id FROM patient_flat p DISTRIBUTE BY p.id SORT BY p.id";
+
+    assertThat(parser.prepare(query + " -- latest patients"))
+        .isEqualTo(query + " LIMIT 100001 -- latest patients");
+    assertThat(parser.prepare(query + " /* latest */ -- patients"))
+        .isEqualTo(query + " LIMIT 100001 /* latest */ -- patients");
+  }
+
+  @Test
+  void rejectsHiveStatementsThatChangeData() {
+    assertThatThrownBy(
+            () ->
+                parser.prepare(
+                    "INSERT OVERWRITE TABLE copy SELECT id FROM patient_flat DISTRIBUTE BY id"
+                        + " SORT BY id"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () ->
+                parser.prepare(
+                    "FROM patient_flat p INSERT OVERWRITE TABLE copy SELECT p.id DISTRIBUTE BY"
+                        + " p.id"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("INSERT");
+  }
+
+  @Test
+  void reusesTheOutcomeOfAPreparedQuery() {
+    String query = "SELECT obs_name FROM observation_flat";
+
+    String first = parser.prepare(query);
+    String second = parser.prepare(query + "\n");
+
+    assertThat(second).isEqualTo(first);
+    assertThat(parser.getStats()).containsEntry("parsed", 1L).containsEntry("cacheHits", 1L);
+  }
+}
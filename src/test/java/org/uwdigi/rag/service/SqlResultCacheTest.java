@@ -0,0 +1,230 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SqlResultCacheTest {
+
+  private static final String OBSERVATIONS = "SELECT COUNT(*) FROM OBSERVATION_FLAT";
+  private static final String PATIENTS = "SELECT COUNT(*) FROM PATIENT_FLAT";
+
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicInteger executions = new AtomicInteger();
+  private JdbcDataSource dataSource;
+  private SchemaCatalog schemaCatalog;
+
+  @BeforeEach
+  void createTables() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:results;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS OBSERVATION_FLAT (OBS_NAME VARCHAR(64))");
+      statement.execute("CREATE TABLE IF NOT EXISTS PATIENT_FLAT (NAME VARCHAR(64))");
+    }
+    schemaCatalog = new SchemaCatalog(dataSource, new String[] {"TABLE"}, 1);
+  }
+
+  @Test
+  void runsEachQueryOnceAndReportsSavedTime() {
+    SqlResultCache cache = cache(Map.of(), 1 << 20);
+
+    assertThat(get(cache, OBSERVATIONS, "42")).isEqualTo("42");
+    assertThat(get(cache, "select count(*)\n  from OBSERVATION_FLAT;", "other")).isEqualTo("other");
+    assertThat(get(cache, " SELECT COUNT(*)   FROM OBSERVATION_FLAT ; ", "other")).isEqualTo("42");
+    assertThat(get(cache, "SELECT * FROM PATIENT_FLAT WHERE NAME = 'A  B'", "1")).isEqualTo("1");
+    assertThat(get(cache, "SELECT * FROM PATIENT_FLAT WHERE NAME = 'A B'", "2")).isEqualTo("2");
+
+    assertThat(executions).hasValue(4);
+    assertThat(cache.getStats())
+        .containsEntry("hits", 1L)
+        .containsEntry("misses", 4L)
+        .containsEntry("savedDbTimeMillis", 1000L);
+  }
+
+  @Test
+  void expiresEntriesAfterTheShortestTableTtl() {
+    SqlResultCache cache = cache(Map.of("observation_flat", Duration.ofMinutes(1)), 1 << 20);
+    String joined = "SELECT * FROM PATIENT_FLAT P JOIN OBSERVATION_FLAT O ON O.OBS_NAME = P.NAME";
+    get(cache, OBSERVATIONS, "1");
+    get(cache, PATIENTS, "2");
+    get(cache, joined, "3");
+
+    now.addAndGet(Duration.ofMinutes(2).toNanos());
+
+    assertThat(get(cache, OBSERVATIONS, "fresh")).isEqualTo("fresh");
+    assertThat(get(cache, joined, "fresh")).isEqualTo("fresh");
+    assertThat(get(cache, PATIENTS, "fresh")).isEqualTo("2");
+
+    now.addAndGet(Duration.ofMinutes(4).toNanos());
+
+    assertThat(get(cache, PATIENTS, "fresh")).isEqualTo("fresh");
+    assertThat(cache.getStats()).containsEntry("expirations", 3L);
+  }
+
+  @Test
+  void staysWithinItsMemoryBudget() {
+    // Room for two results of 1500 chars, not three
+    SqlResultCache cache = cache(Map.of(), 8000);
+    String result = "x".repeat(1500);
+    get(cache, OBSERVATIONS, result);
+    get(cache, PATIENTS, result);
+    get(cache, OBSERVATIONS, "unused");
+    get(cache, "SELECT NAME FROM PATIENT_FLAT", result);
+    get(cache, "SELECT OBS_NAME FROM OBSERVATION_FLAT", "y".repeat(3000));
+
+    assertThat(get(cache, OBSERVATIONS, "unused")).isEqualTo(result);
+    assertThat(get(cache, PATIENTS, "evicted")).isEqualTo("evicted");
+    assertThat(get(cache, "SELECT OBS_NAME FROM OBSERVATION_FLAT", "small")).isEqualTo("small");
+    assertThat(cache.getStats())
+        .containsEntry("skippedTooLarge", 1L)
+        .containsEntry("evictions", 1L)
+        .containsEntry("size", 4);
+    assertThat((Long) cache.getStats().get("bytes")).isLessThanOrEqualTo(8000L);
+  }
+
+  @Test
+  void invalidatesByTable() {
+    SqlResultCache cache = cache(Map.of(), 1 << 20);
+    get(cache, OBSERVATIONS, "1");
+    get(cache, PATIENTS, "2");
+
+    assertThat(cache.invalidateTable("Observation_Flat")).isEqualTo(1);
+
+    assertThat(get(cache, OBSERVATIONS, "reloaded")).isEqualTo("reloaded");
+    assertThat(get(cache, PATIENTS, "reloaded")).isEqualTo("2");
+  }
+
+  @Test
+  void concurrentMissesRunTheQueryOnce() throws Exception {
+    SqlResultCache cache =
+        new SqlResultCache(
+            schemaCatalog, Duration.ofMinutes(5), Map.of(), 1 << 20, 1 << 20, System::nanoTime);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 16; i++) {
+        results.add(
+            executor.submit(
+                () ->
+                    cache.get(
+                        dataSource,
+                        OBSERVATIONS,
+                        () -> {
+                          executions.incrementAndGet();
+                          while ((int) cache.getStats().get("waiting") < 15) {
+                            Thread.yield();
+                          }
+                          return "42";
+                        })));
+      }
+      for (Future<String> result : results) {
+        assertThat(result.get()).isEqualTo("42");
+      }
+    }
+    assertThat(executions).hasValue(1);
+    assertThat(cache.getStats())
+        .containsEntry("misses", 1L)
+        .containsEntry("coalesced", 15L)
+        .containsEntry("hits", 0L);
+  }
+
+  @Test
+  void aFollowerTakesOverWhenTheLeaderFails() throws Exception {
+    SqlResultCache cache =
+        new SqlResultCache(
+            schemaCatalog, Duration.ofMinutes(5), Map.of(), 1 << 20, 1 << 20, System::nanoTime);
+    AtomicInteger failures = new AtomicInteger();
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(
+            executor.submit(
+                () ->
+                    cache.get(
+                        dataSource,
+                        OBSERVATIONS,
+                        () -> {
+                          if (executions.incrementAndGet() > 1) {
+                            return "42";
+                          }
+                          while ((int) cache.getStats().get("waiting") < 7) {
+                            Thread.yield();
+                          }
+                          throw new IllegalStateException("connection reset");
+                        })));
+      }
+      for (Future<String> result : results) {
+        try {
+          assertThat(result.get()).isEqualTo("42");
+        } catch (ExecutionException e) {
+          assertThat(e.getCause()).hasMessage("connection reset");
+          failures.incrementAndGet();
+        }
+      }
+    }
+    assertThat(failures).hasValue(1);
+    assertThat(executions).hasValue(2);
+    Map<String, Object> stats = cache.getStats();
+    assertThat(stats).containsEntry("misses", 2L).containsEntry("waiting", 0);
+    // The other followers wait for the new leader or find its result cached
+    assertThat((long) stats.get("hits") + (long) stats.get("coalesced")).isEqualTo(6);
+  }
+
+  @Test
+  void keepsWhitespaceInsideQuotedIdentifiers() {
+    assertThat(SqlResultCache.normalize("SELECT  \"a  b\" ,`c  d`  FROM t WHERE x = 'e  f' ;"))
+        .isEqualTo("SELECT \"a  b\" ,`c  d` FROM t WHERE x = 'e  f'");
+    assertThat(SqlResultCache.normalize("SELECT \"a\"\"  b\" FROM t"))
+        .isEqualTo("SELECT \"a\"\"  b\" FROM t");
+  }
+
+  @Test
+  void disabledWithoutBudget() {
+    SqlResultCache cache = cache(Map.of(), 0);
+    get(cache, OBSERVATIONS, "1");
+    assertThat(get(cache, OBSERVATIONS, "2")).isEqualTo("2");
+  }
+
+  @Test
+  void parsesTableTtls() {
+    assertThat(SqlResultCache.parseTableTtls(" observation_flat=PT1M, patient_flat = PT1H,"))
+        .containsEntry("observation_flat", Duration.ofMinutes(1))
+        .containsEntry("patient_flat", Duration.ofHours(1))
+        .hasSize(2);
+    assertThat(SqlResultCache.parseTableTtls("")).isEmpty();
+  }
+
+  private SqlResultCache cache(Map<String, Duration> tableTtls, long maxBytes) {
+    return new SqlResultCache(
+        schemaCatalog, Duration.ofMinutes(5), tableTtls, maxBytes, 4000, now::get);
+  }
+
+  /** Gets the result of the query, which takes one second to run on a miss. */
+  private String get(SqlResultCache cache, String sqlQuery, String result) {
+    return cache.get(
+        dataSource,
+        sqlQuery,
+        () -> {
+          executions.incrementAndGet();
+          now.addAndGet(Duration.ofSeconds(1).toNanos());
+          return result;
+        });
+  }
+}
@@ -0,0 +1,152 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class SqlResultReaderTest {
+
+  private static JdbcDataSource dataSource;
+
+  @BeforeAll
+  static void createTable() throws SQLException {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:reader;DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE OBSERVATION_FLAT (ID INT, OBS_NAME VARCHAR(64))");
+      statement.execute(
+          "INSERT INTO OBSERVATION_FLAT SELECT X, 'Weight, kg' FROM SYSTEM_RANGE(1, 5000)");
+      statement.execute("INSERT INTO OBSERVATION_FLAT VALUES (5001, NULL)");
+    }
+  }
+
+  @Test
+  void readsSmallResultsCompletely() throws SQLException {
+    String result =
+        read(new SqlResultReader(), "SELECT * FROM OBSERVATION_FLAT WHERE ID IN (1, 5001)");
+
+    assertThat(result).isEqualTo("ID,OBS_NAME\n1,\"Weight, kg\"\n5001,");
+    assertThat(new SqlResultReader().countRows(result)).isEqualTo(2);
+  }
+
+  @Test
+  void stopsAtTheRowCapAndReportsTheTotal() throws SQLException {
+    String result =
+        read(
+            new SqlResultReader(100, 10, 100_000, 100_000, "csv"),
+            "SELECT ID FROM OBSERVATION_FLAT");
+
+    assertThat(result).startsWith("ID\n1\n2\n").endsWith("\n10\n(first 10 of 5001 rows)");
+    assertThat(new SqlResultReader().countRows(result)).isEqualTo(10);
+  }
+
+  @Test
+  void stopsAtTheCharacterBudget() throws SQLException {
+    String result =
+        read(new SqlResultReader(100, 1000, 200, 100_000, "csv"), "SELECT * FROM OBSERVATION_FLAT");
+
+    String rows = result.substring(0, result.lastIndexOf('\n'));
+    assertThat(rows.length()).isLessThanOrEqualTo(200);
+    assertThat(result).endsWith(new SqlResultReader().countRows(result) + " of 5001 rows)");
+  }
+
+  @Test
+  void stopsCountingAtTheCountLimit() throws SQLException {
+    String result =
+        read(new SqlResultReader(100, 10, 100_000, 1000, "csv"), "SELECT ID FROM OBSERVATION_FLAT");
+
+    assertThat(result).endsWith("(first 10 of more than 1000 rows)");
+  }
+
+  @Test
+  void memoryStaysFlatForHugeResults() throws SQLException {
+    String result =
+        read(new SqlResultReader(), "SELECT X, SPACE(100) FROM SYSTEM_RANGE(1, 2000000)");
+
+    assertThat(result.length()).isLessThanOrEqualTo(SqlResultReader.DEFAULT_MAX_CHARS + 100);
+    assertThat(result).endsWith("of more than 100000 rows)");
+  }
+
+  @Test
+  void readsPostgreSqlResultsInATransaction() throws SQLException {
+    List<String> calls = new ArrayList<>();
+    try (Connection h2 = dataSource.getConnection();
+        Statement statement = h2.createStatement()) {
+      Connection connection = postgreSql(h2, calls);
+      Statement wrapped =
+          (Statement)
+              Proxy.newProxyInstance(
+                  getClass().getClassLoader(),
+                  new Class<?>[] {Statement.class},
+                  (proxy, method, args) ->
+                      method.getName().equals("getConnection")
+                          ? connection
+                          : invoke(statement, method, args));
+
+      assertThat(
+              new SqlResultReader(100, 10, 100_000, 100_000, "csv")
+                  .read(wrapped, "SELECT ID FROM OBSERVATION_FLAT"))
+          .endsWith("(first 10 of 5001 rows)");
+    }
+    assertThat(calls).containsExactly("setAutoCommit(false)", "rollback", "setAutoCommit(true)");
+  }
+
+  /** The connection, reporting itself as PostgreSQL and recording its transaction calls. */
+  private Connection postgreSql(Connection h2, List<String> calls) throws SQLException {
+    DatabaseMetaData metaData =
+        (DatabaseMetaData)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {DatabaseMetaData.class},
+                (proxy, method, args) ->
+                    method.getName().equals("getDatabaseProductName")
+                        ? "PostgreSQL"
+                        : invoke(h2.getMetaData(), method, args));
+    return (Connection)
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getMetaData":
+                  return metaData;
+                case "setAutoCommit":
+                  calls.add("setAutoCommit(" + args[0] + ")");
+                  break;
+                case "rollback":
+                  calls.add("rollback");
+                  break;
+                default:
+                  break;
+              }
+              return invoke(h2, method, args);
+            });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static String read(SqlResultReader reader, String sqlQuery) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      return reader.read(statement, sqlQuery);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Saves an index of {@link #VALUES} vectors, restores it as on a restart, and checks that stale or
+ * damaged snapshots are ignored.
+ */
+class VectorSnapshotTest {
+
+  private static final int VALUES = 5_000;
+  private static final int DIMENSION = 384;
+  private static final long FINGERPRINT =
+      VectorSnapshot.fingerprint("model", DIMENSION, Map.of("CONDITION_FLAT", "CODE_DISPLAY"));
+
+  @TempDir Path directory;
+
+  private final Random random = new Random(3);
+  private final HnswEmbeddingStore store = new HnswEmbeddingStore();
+  private final List<String> ids = new ArrayList<>();
+
+  @BeforeEach
+  void fillStore() {
+    List<Embedding> embeddings = new ArrayList<>();
+    List<TextSegment> segments = new ArrayList<>();
+    for (int i = 0; i < VALUES; i++) {
+      embeddings.add(Embedding.from(vector()));
+      segments.add(TextSegment.from("value " + i + (i % 7 == 0 ? " été\nnext" : "")));
+      ids.add(MetadataIngestion.contentId("value " + i));
+    }
+    store.addAll(ids, embeddings, segments);
+    store.removeAll(List.of(ids.get(1)));
+  }
+
+  @Test
+  void restoresTheSameIndex() {
+    VectorSnapshot snapshot = new VectorSnapshot(directory, FINGERPRINT);
+    snapshot.save(store);
+
+    HnswEmbeddingStore restored = new HnswEmbeddingStore();
+    assertThat(snapshot.restore(restored)).isTrue();
+
+    assertThat(restored.ids()).isEqualTo(store.ids()).doesNotContain(ids.get(1));
+    for (int i = 0; i < 50; i++) {
+      EmbeddingSearchRequest request =
+          EmbeddingSearchRequest.builder()
+              .queryEmbedding(Embedding.from(vector()))
+              .maxResults(5)
+              .build();
+      assertThat(matches(restored, request)).isEqualTo(matches(store, request));
+    }
+
+    // The restored index accepts new values
+    restored.add("new", Embedding.from(vector()));
+    assertThat(restored.ids()).hasSize(VALUES);
+  }
+
+  @Test
+  void ignoresStaleAndDamagedSnapshots() throws IOException {
+    new VectorSnapshot(directory, FINGERPRINT).save(store);
+
+    long otherTables =
+        VectorSnapshot.fingerprint("model", DIMENSION, Map.of("CONDITION_FLAT", "STATUS"));
+    HnswEmbeddingStore restored = new HnswEmbeddingStore();
+    assertThat(new VectorSnapshot(directory, otherTables).restore(restored)).isFalse();
+    assertThat(new VectorSnapshot(directory.resolve("missing"), FINGERPRINT).restore(restored))
+        .isFalse();
+
+    try (FileChannel channel =
+        FileChannel.open(directory.resolve("values.hnsw"), StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() / 2);
+    }
+    assertThat(new VectorSnapshot(directory, FINGERPRINT).restore(restored)).isFalse();
+    assertThat(restored.ids()).isEmpty();
+  }
+
+  private float[] vector() {
+    float[] vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) random.nextGaussian();
+    }
+    return vector;
+  }
+
+  private static List<String> matches(HnswEmbeddingStore store, EmbeddingSearchRequest request) {
+    List<String> matches = new ArrayList<>();
+    for (EmbeddingMatch<TextSegment> match : store.search(request).matches()) {
+      matches.add(match.embeddingId() + " " + match.embedded().text() + " " + match.score());
+    }
+    return matches;
+  }
+}
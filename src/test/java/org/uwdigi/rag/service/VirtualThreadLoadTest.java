@@ -0,0 +1,209 @@
+package org.uwdigi.rag.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.uwdigi.rag.config.ModelConfig;
+import org.uwdigi.rag.service.Bulkheads.Backend;
+import org.uwdigi.rag.service.Bulkheads.BulkheadFullException;
+import org.uwdigi.rag.shared.QueryResponse;
+
+/**
+ * Serves many more concurrent chats than the bulkheads admit, each on its own virtual thread, and
+ * checks that every chat completes. Each chat makes two cloud LLM calls, one JDBC query and one
+ * local LLM call, with the models simulated by {@link #MODEL_LATENCY_MILLIS} of blocking ({@link
+ * #BENCHMARK_LATENCY_MILLIS} in the benchmark). <br>
+ * The benchmark comparing the throughput of platform and virtual threads only runs with {@code mvn
+ * test -Pbenchmark}.
+ */
+class VirtualThreadLoadTest {
+
+  private static final int CONCURRENT_USERS = 300;
+  private static final long MODEL_LATENCY_MILLIS = 20;
+  private static final int BENCHMARK_USERS = 1000;
+  private static final long BENCHMARK_LATENCY_MILLIS = 200;
+  private static final int PLATFORM_THREADS = 200;
+
+  @Test
+  void servesEveryChatOnVirtualThreads() throws Exception {
+    JdbcDataSource dataSource = patients("load");
+    Bulkheads bulkheads = new Bulkheads(0, 0, 64, 0, Duration.ofMinutes(1));
+    AssistantService assistantService =
+        assistantService(dataSource, bulkheads, MODEL_LATENCY_MILLIS);
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<QueryResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < CONCURRENT_USERS; i++) {
+        futures.add(
+            executor.submit(
+                () -> assistantService.processQuery("What is the name of patient 1?", "GEMINI")));
+      }
+      for (Future<QueryResponse> future : futures) {
+        assertThat(future.get(1, TimeUnit.MINUTES).getResponse()).isEqualTo("Patient 1");
+      }
+    }
+    assertThat(bulkheads.availablePermits(Backend.JDBC)).isEqualTo(64);
+  }
+
+  /**
+   * Compares how many chats per second one {@link AssistantService} completes when requests are
+   * served by a pool of platform threads the size of Tomcat's default (200), and when every request
+   * gets its own virtual thread.
+   */
+  @Test
+  @Tag("benchmark")
+  void throughputOfPlatformAndVirtualThreads() throws Exception {
+    JdbcDataSource dataSource = patients("load-benchmark");
+    Bulkheads bulkheads = new Bulkheads(0, 0, 64, 0, Duration.ofMinutes(1));
+    AssistantService assistantService =
+        assistantService(dataSource, bulkheads, BENCHMARK_LATENCY_MILLIS);
+
+    // Warm up class loading and JIT
+    run(assistantService, Executors.newFixedThreadPool(PLATFORM_THREADS), 200);
+
+    double platform =
+        run(assistantService, Executors.newFixedThreadPool(PLATFORM_THREADS), BENCHMARK_USERS);
+    double virtual =
+        run(assistantService, Executors.newVirtualThreadPerTaskExecutor(), BENCHMARK_USERS);
+
+    System.out.printf(
+        "%n%d concurrent chats: %d platform threads %.0f chats/s, virtual threads %.0f chats/s%n",
+        BENCHMARK_USERS, PLATFORM_THREADS, platform, virtual);
+    assertThat(virtual).isGreaterThan(platform);
+  }
+
+  @Test
+  void slowBackendOnlyQueuesItsOwnCallers() throws Exception {
+    Bulkheads bulkheads = new Bulkheads(0, 2, 4, 0, Duration.ofMillis(200));
+    CountDownLatch release = new CountDownLatch(1);
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 2; i++) {
+        executor.submit(
+            () -> bulkheads.call(Backend.OLLAMA, () -> release.await(5, TimeUnit.SECONDS)));
+      }
+      while (bulkheads.availablePermits(Backend.OLLAMA) > 0) {
+        Thread.sleep(1);
+      }
+
+      assertThat(bulkheads.call(Backend.JDBC, () -> "rows")).isEqualTo("rows");
+      assertThat(bulkheads.call(Backend.CLOUD_LLM, () -> "answer")).isEqualTo("answer");
+      assertThatThrownBy(() -> bulkheads.call(Backend.OLLAMA, () -> "local answer"))
+          .isInstanceOf(BulkheadFullException.class);
+
+      release.countDown();
+    }
+    assertThat(bulkheads.availablePermits(Backend.OLLAMA)).isEqualTo(2);
+  }
+
+  /** Runs the chats on the executor and returns the number of chats completed per second. */
+  private static double run(AssistantService assistantService, ExecutorService executor, int chats)
+      throws Exception {
+    long start = System.nanoTime();
+    try (executor) {
+      List<Future<QueryResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < chats; i++) {
+        futures.add(
+            executor.submit(
+                () -> assistantService.processQuery("What is the name of patient 1?", "GEMINI")));
+      }
+      for (Future<QueryResponse> future : futures) {
+        assertThat(future.get().getResponse()).isEqualTo("Patient 1");
+      }
+    }
+    return chats / ((System.nanoTime() - start) / 1e9);
+  }
+
+  private static JdbcDataSource patients(String name) throws SQLException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE PATIENT (ID INT PRIMARY KEY, NAME VARCHAR(64))");
+      statement.execute("INSERT INTO PATIENT VALUES (1, 'Patient 1')");
+    }
+    return dataSource;
+  }
+
+  private static AssistantService assistantService(
+      JdbcDataSource dataSource, Bulkheads bulkheads, long latencyMillis) {
+    String[] schemaType = {"TABLE", "VIEW", "BASE TABLE"};
+    SchemaCatalog schemaCatalog = new SchemaCatalog(dataSource, schemaType, 1);
+    ChatLanguageModel cloudModel =
+        bulkheads.decorate(
+            slowModel(
+                messages ->
+                    messages.get(0) instanceof SystemMessage
+                        ? "SELECT NAME FROM PATIENT WHERE ID = 1"
+                        : "Answered",
+                latencyMillis),
+            Backend.CLOUD_LLM);
+    ChatLanguageModel localModel =
+        bulkheads.decorate(slowModel(messages -> "Patient 1", latencyMillis), Backend.OLLAMA);
+    ModelFactory modelFactory =
+        new ModelFactory(new ModelConfig(), bulkheads, Duration.ofSeconds(1)) {
+          @Override
+          public ChatLanguageModel getModel(String modelName) {
+            return cloudModel;
+          }
+        };
+    return new AssistantService(
+        null,
+        schemaType,
+        dataSource,
+        null,
+        null,
+        modelFactory,
+        schemaCatalog,
+        new SchemaSelector(schemaCatalog, null, null, 0),
+        bulkheads,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        localModel,
+        null,
+        "assistant");
+  }
+
+  private static ChatLanguageModel slowModel(
+      Function<List<ChatMessage>, String> answer, long latencyMillis) {
+    return new ChatLanguageModel() {
+      // Still the abstract method of ChatLanguageModel in langchain4j 1.0.0-beta1
+      @Override
+      @SuppressWarnings("removal")
+      public Response<AiMessage> generate(List<ChatMessage> messages) {
+        try {
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return Response.from(AiMessage.from(answer.apply(messages)));
+      }
+    };
+  }
+}